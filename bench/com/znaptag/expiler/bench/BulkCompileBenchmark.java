@@ -0,0 +1,75 @@
+package com.znaptag.expiler.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.znaptag.expiler.CompilationResult;
+import com.znaptag.expiler.Compiler;
+
+// Throughput of Compiler.compileBulk with different numbers of threads. Each
+// invocation parses and compiles a batch of distinct medium sized
+// expressions, and the result is the time per expression.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkCompileBenchmark
+{
+    public static final int EXPRESSIONS = 1000;
+
+    @State(Scope.Benchmark)
+    public static class BulkState
+    {
+        @Param({ "1", "2", "4", "8", "16", "32" })
+        public int threads;
+
+        public Compiler compiler;
+        public List<String> expressions;
+        public ForkJoinPool pool;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            compiler = new Compiler();
+            compiler.registerBuiltins();
+
+            expressions = new ArrayList<>();
+            for (int i = 0; i < EXPRESSIONS; i++) {
+                expressions.add(Corpus.generate(Corpus.Size.MEDIUM.getTerms(), 5, i));
+            }
+
+            pool = new ForkJoinPool(threads);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXPRESSIONS)
+    public List<CompilationResult> compileBulk(BulkState state)
+    {
+        return state.compiler.compileBulk("BulkExpression", state.expressions, null, state.pool);
+    }
+}
@@ -0,0 +1,78 @@
+package com.znaptag.expiler.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.znaptag.expiler.ClassDefiner;
+import com.znaptag.expiler.ClassLoaderDefiner;
+import com.znaptag.expiler.Compiler;
+import com.znaptag.expiler.HiddenClassDefiner;
+import com.znaptag.expiler.ast.ASTNode;
+
+// Time spent turning a tree into a usable class: optimizing it, generating
+// the bytecode, and defining and instantiating the class
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class DefinitionState extends ExpressionState
+    {
+        @Param({ "loader", "hidden" })
+        public String definer;
+
+        public ClassDefiner classDefiner;
+        public byte[] bytecode;
+
+        @Setup(Level.Trial)
+        public void setupDefinition()
+        throws Exception
+        {
+            if ("hidden".equals(definer)) {
+                classDefiner = new HiddenClassDefiner();
+            } else {
+                classDefiner = new ClassLoaderDefiner();
+            }
+
+            bytecode = compiler.compileToBytecode("BenchExpression", tree, layout);
+        }
+    }
+
+    @Benchmark
+    public ASTNode optimize(ExpressionState state)
+    {
+        return state.compiler.optimize(state.tree);
+    }
+
+    // Includes optimization, which compileToBytecode always does first
+    @Benchmark
+    public byte[] generateBytecode(ExpressionState state)
+    throws Compiler.CompilationException
+    {
+        return state.compiler.compileToBytecode("BenchExpression", state.tree, state.layout);
+    }
+
+    @Benchmark
+    public Object defineClass(DefinitionState state)
+    throws ReflectiveOperationException
+    {
+        Class<?> c = state.classDefiner.define("com.znaptag.expiler.BenchExpression",
+                                               state.bytecode);
+        return c.getConstructor().newInstance();
+    }
+}
@@ -0,0 +1,111 @@
+package com.znaptag.expiler.bench;
+
+import java.util.Random;
+
+// Generates the expressions used by the benchmarks. Expressions are sums of
+// randomly chosen terms over the variables x0, x1, ..., and the same seed
+// always gives the same expression, so results are comparable between runs.
+public class Corpus
+{
+    public enum Size
+    {
+        // about 20 nodes, like a typical hand written formula
+        SMALL(4),
+        // about 300 nodes
+        MEDIUM(64),
+        // about 10000 nodes, close to what fits in a single method
+        HUGE(2048);
+
+        private int terms;
+
+        private Size(int terms)
+        {
+            this.terms = terms;
+        }
+
+        public int getTerms()
+        {
+            return terms;
+        }
+    }
+
+    private static final String[] TEMPLATES = {
+        "C*V",
+        "V^2",
+        "sin(V)",
+        "(V - C)/(V + C)",
+        "sqrt(abs(V))",
+        "max(V, C*V)",
+        "V*V*C",
+        "exp(V/C)"
+    };
+
+    public static final long SEED = 4711;
+
+    public static String generate(Size size, int variables)
+    {
+        return generate(size.getTerms(), variables, SEED);
+    }
+
+    public static String generate(int terms, int variables, long seed)
+    {
+        Random random = new Random(seed);
+        StringBuilder expression = new StringBuilder();
+
+        // Cycle through the variables for the first few terms, so that each
+        // of them is used at least once
+        int next = 0;
+        for (int i = 0; i < Math.max(terms, variables); i++) {
+            if (i > 0) {
+                expression.append(random.nextBoolean() ? " + " : " - ");
+            }
+
+            String template = TEMPLATES[random.nextInt(TEMPLATES.length)];
+            for (int j = 0; j < template.length(); j++) {
+                char c = template.charAt(j);
+                if (c == 'V') {
+                    int var = next < variables ? next++ : random.nextInt(variables);
+                    expression.append("x").append(var);
+                } else if (c == 'C') {
+                    expression.append(1 + random.nextInt(99));
+                } else {
+                    expression.append(c);
+                }
+            }
+        }
+
+        return expression.toString();
+    }
+
+    public static String[] variableNames(int variables)
+    {
+        String[] names = new String[variables];
+        for (int i = 0; i < variables; i++) {
+            names[i] = "x" + i;
+        }
+
+        return names;
+    }
+
+    // Random values in [0.5, 2), which keeps every term finite
+    public static double[] values(int variables, long seed)
+    {
+        Random random = new Random(seed);
+        double[] values = new double[variables];
+        for (int i = 0; i < variables; i++) {
+            values[i] = 0.5 + 1.5 * random.nextDouble();
+        }
+
+        return values;
+    }
+
+    // Basic test method: print an expression of each size
+    public static void main(String[] args)
+    {
+        for (Size size : Size.values()) {
+            String expression = generate(size, 5);
+            System.out.println(size + " (" + expression.length() + " chars): " +
+                               expression.substring(0, Math.min(200, expression.length())));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.znaptag.expiler.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.znaptag.expiler.CompiledExpression;
+import com.znaptag.expiler.Interpreter;
+import com.znaptag.expiler.PostfixInterpreter;
+
+// Time per evaluation of an expression, through each of the entry points of
+// a compiled expression and through both interpreters. All results are
+// per row.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluationBenchmark
+{
+    public static final int ROWS = 1024;
+
+    @State(Scope.Benchmark)
+    public static class EvaluationState extends ExpressionState
+    {
+        public CompiledExpression compiled;
+        public Interpreter interpreter;
+        public PostfixInterpreter postfix;
+        public Map<String, Double> map;
+        public double[][] columns;
+        public double[] out;
+
+        @Setup(Level.Trial)
+        public void setupEvaluation()
+        throws Exception
+        {
+            compiled = compiler.compile("BenchExpression", tree, layout);
+            interpreter = new Interpreter(compiler, tree, layout);
+            postfix = new PostfixInterpreter(compiler, tree, layout);
+
+            map = new HashMap<>();
+            for (int i = 0; i < variables; i++) {
+                map.put(layout.getName(i), values[i]);
+            }
+
+            columns = new double[variables][];
+            for (int i = 0; i < variables; i++) {
+                columns[i] = Corpus.values(ROWS, Corpus.SEED + i);
+            }
+            out = new double[ROWS];
+        }
+    }
+
+    @Benchmark
+    public double compiledArray(EvaluationState state)
+    {
+        return state.compiled.compute(state.values);
+    }
+
+    @Benchmark
+    public double compiledMap(EvaluationState state)
+    {
+        return state.compiled.compute(state.map);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] compiledBatch(EvaluationState state)
+    {
+        state.compiled.computeBatch(state.columns, state.out, 0, ROWS);
+        return state.out;
+    }
+
+    @Benchmark
+    public double interpretedArray(EvaluationState state)
+    {
+        return state.interpreter.compute(state.values);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] interpretedBatch(EvaluationState state)
+    {
+        state.interpreter.computeBatch(state.columns, state.out, 0, ROWS);
+        return state.out;
+    }
+
+    @Benchmark
+    public double postfixArray(EvaluationState state)
+    {
+        return state.postfix.compute(state.values);
+    }
+}
@@ -0,0 +1,44 @@
+package com.znaptag.expiler.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.znaptag.expiler.Compiler;
+import com.znaptag.expiler.Lexer;
+import com.znaptag.expiler.Parser;
+import com.znaptag.expiler.VariableLayout;
+import com.znaptag.expiler.ast.ASTNode;
+
+// An expression from the corpus, along with everything needed to compile it.
+// Every benchmark runs for each combination of size and variable count.
+@State(Scope.Benchmark)
+public class ExpressionState
+{
+    @Param({ "SMALL", "MEDIUM", "HUGE" })
+    public Corpus.Size size;
+
+    @Param({ "1", "5", "25" })
+    public int variables;
+
+    public String expression;
+    public ASTNode tree;
+    public VariableLayout layout;
+    public Compiler compiler;
+    public double[] values;
+
+    @Setup(Level.Trial)
+    public void setupExpression()
+    throws Exception
+    {
+        expression = Corpus.generate(size, variables);
+        tree = new Parser(new Lexer(expression)).parse();
+        layout = new VariableLayout(Corpus.variableNames(variables));
+        values = Corpus.values(variables, Corpus.SEED);
+
+        compiler = new Compiler();
+        compiler.registerBuiltins();
+    }
+}
@@ -0,0 +1,45 @@
+package com.znaptag.expiler.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.znaptag.expiler.Lexer;
+import com.znaptag.expiler.Parser;
+import com.znaptag.expiler.Token;
+import com.znaptag.expiler.ast.ASTNode;
+
+// Time spent turning the source text into a tree
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontendBenchmark
+{
+    @Benchmark
+    public void lex(ExpressionState state, Blackhole blackhole)
+    throws IOException
+    {
+        Lexer lexer = new Lexer(state.expression);
+        Token t;
+        while ((t = lexer.next()) != null) {
+            blackhole.consume(t);
+        }
+    }
+
+    @Benchmark
+    public ASTNode parse(ExpressionState state)
+    throws IOException, Parser.ParseException
+    {
+        return new Parser(new Lexer(state.expression)).parse();
+    }
+}
@@ -0,0 +1,112 @@
+package com.znaptag.expiler.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.znaptag.expiler.CompiledExpression;
+import com.znaptag.expiler.CompiledFloatExpression;
+import com.znaptag.expiler.CompiledLongExpression;
+import com.znaptag.expiler.Compiler;
+import com.znaptag.expiler.Lexer;
+import com.znaptag.expiler.Parser;
+import com.znaptag.expiler.VariableLayout;
+import com.znaptag.expiler.ast.ASTNode;
+
+// Batch evaluation of the same expression compiled as doubles, floats and
+// longs, reported as time per row. The row count is large enough for the
+// double columns not to fit in the caches, where floats move half the data.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NumericTypeBenchmark
+{
+    public static final int ROWS = 1 << 22;
+
+    @State(Scope.Benchmark)
+    public static class TypeState
+    {
+        // Only integer arithmetic, so that the long version exists too
+        @Param({ "x*y + z",
+                 "(x - 1)*(y + 2)/(z*z + 1)",
+                 "x^3 + y^2 + z" })
+        public String expression;
+
+        public CompiledExpression doubleExpr;
+        public CompiledFloatExpression floatExpr;
+        public CompiledLongExpression longExpr;
+        public double[][] doubleColumns;
+        public float[][] floatColumns;
+        public long[][] longColumns;
+        public double[] doubleOut;
+        public float[] floatOut;
+        public long[] longOut;
+
+        @Setup(Level.Trial)
+        public void setup()
+        throws Exception
+        {
+            Compiler compiler = new Compiler();
+            compiler.registerBuiltins();
+
+            VariableLayout layout = new VariableLayout("x", "y", "z");
+            ASTNode tree = new Parser(new Lexer(expression)).parse();
+            doubleExpr = compiler.compile("DoubleExpression", tree, layout);
+            floatExpr = compiler.compileFloat("FloatExpression", tree, layout);
+            longExpr = compiler.compileLong("LongExpression", tree, layout);
+
+            doubleColumns = new double[3][];
+            floatColumns = new float[3][ROWS];
+            longColumns = new long[3][ROWS];
+            for (int i = 0; i < 3; i++) {
+                doubleColumns[i] = Corpus.values(ROWS, Corpus.SEED + i);
+                for (int row = 0; row < ROWS; row++) {
+                    floatColumns[i][row] = (float)doubleColumns[i][row];
+                    // Keep the divisor in the second expression non-zero
+                    longColumns[i][row] = (long)(doubleColumns[i][row] * 1000) | 1;
+                }
+            }
+            doubleOut = new double[ROWS];
+            floatOut = new float[ROWS];
+            longOut = new long[ROWS];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] doubles(TypeState state)
+    {
+        state.doubleExpr.computeBatch(state.doubleColumns, state.doubleOut, 0, ROWS);
+        return state.doubleOut;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public float[] floats(TypeState state)
+    {
+        state.floatExpr.computeBatch(state.floatColumns, state.floatOut, 0, ROWS);
+        return state.floatOut;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long[] longs(TypeState state)
+    {
+        state.longExpr.computeBatch(state.longColumns, state.longOut, 0, ROWS);
+        return state.longOut;
+    }
+}
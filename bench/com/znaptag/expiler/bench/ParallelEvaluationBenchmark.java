@@ -0,0 +1,93 @@
+package com.znaptag.expiler.bench;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.znaptag.expiler.CompiledExpression;
+import com.znaptag.expiler.Compiler;
+import com.znaptag.expiler.Lexer;
+import com.znaptag.expiler.ParallelEvaluator;
+import com.znaptag.expiler.Parser;
+import com.znaptag.expiler.VariableLayout;
+
+// Scaling of ParallelEvaluator with the number of threads and the chunk
+// size, reported as time per row. Run with -prof gc to confirm that the
+// allocation rate per row stays near zero.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelEvaluationBenchmark
+{
+    public static final int ROWS = 1 << 24;
+
+    @State(Scope.Benchmark)
+    public static class ParallelState
+    {
+        @Param({ "1", "2", "4", "8", "16", "32" })
+        public int threads;
+
+        @Param({ "4096", "16384", "131072" })
+        public int chunkSize;
+
+        public ForkJoinPool pool;
+        public ParallelEvaluator evaluator;
+        public double[][] columns;
+        public double[] out;
+
+        @Setup(Level.Trial)
+        public void setup()
+        throws Exception
+        {
+            Compiler compiler = new Compiler();
+            compiler.registerBuiltins();
+
+            int variables = 5;
+            VariableLayout layout = new VariableLayout(Corpus.variableNames(variables));
+            String expression = Corpus.generate(Corpus.Size.SMALL, variables);
+            CompiledExpression compiled =
+                compiler.compile("ParallelExpression",
+                                 new Parser(new Lexer(expression)).parse(),
+                                 layout);
+
+            pool = new ForkJoinPool(threads);
+            evaluator = new ParallelEvaluator(compiled, pool, chunkSize);
+
+            columns = new double[variables][];
+            for (int i = 0; i < variables; i++) {
+                columns[i] = Corpus.values(ROWS, Corpus.SEED + i);
+            }
+            out = new double[ROWS];
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] computeBatch(ParallelState state)
+    {
+        state.evaluator.computeBatch(state.columns, state.out, 0, ROWS);
+        return state.out;
+    }
+}
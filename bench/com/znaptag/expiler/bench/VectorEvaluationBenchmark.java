@@ -0,0 +1,96 @@
+package com.znaptag.expiler.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.znaptag.expiler.CompiledExpression;
+import com.znaptag.expiler.Compiler;
+import com.znaptag.expiler.Lexer;
+import com.znaptag.expiler.Parser;
+import com.znaptag.expiler.VariableLayout;
+import com.znaptag.expiler.VectorCompiler;
+import com.znaptag.expiler.ast.ASTNode;
+
+// Batch evaluation with the scalar classes against the Vector API kernels,
+// reported as time per row. The rows are one more than a multiple of any
+// vector length, so the masked tail is included.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class VectorEvaluationBenchmark
+{
+    public static final int ROWS = (1 << 16) + 1;
+
+    @State(Scope.Benchmark)
+    public static class VectorState
+    {
+        @Param({ "x*y + z",
+                 "(x - 1)*(y + 2)/(z*z + 1)",
+                 "sin(x)*cos(y)",
+                 "exp(0 - x*x/2) + log(y)",
+                 "x^y" })
+        public String expression;
+
+        public CompiledExpression scalar;
+        public VectorCompiler.VectorizedExpression vector;
+        public double[][] columns;
+        public double[] out;
+
+        @Setup(Level.Trial)
+        public void setup()
+        throws Exception
+        {
+            if (!VectorCompiler.isSupported()) {
+                throw new IllegalStateException("Vector API not available");
+            }
+
+            Compiler compiler = new Compiler();
+            compiler.registerBuiltins();
+
+            VariableLayout layout = new VariableLayout("x", "y", "z");
+            ASTNode tree = new Parser(new Lexer(expression)).parse();
+            scalar = compiler.compile("ScalarExpression", tree, layout);
+            vector = new VectorCompiler(compiler).compile("VectorExpression", tree, layout);
+            if (!vector.isVectorized()) {
+                throw new IllegalStateException(vector.getFallbackReason());
+            }
+
+            columns = new double[3][];
+            for (int i = 0; i < 3; i++) {
+                columns[i] = Corpus.values(ROWS, Corpus.SEED + i);
+            }
+            out = new double[ROWS];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] scalar(VectorState state)
+    {
+        state.scalar.computeBatch(state.columns, state.out, 0, ROWS);
+        return state.out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] vector(VectorState state)
+    {
+        state.vector.computeBatch(state.columns, state.out, 0, ROWS);
+        return state.out;
+    }
+}
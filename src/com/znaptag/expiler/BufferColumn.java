@@ -0,0 +1,190 @@
+package com.znaptag.expiler;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import com.znaptag.expiler.ast.ASTNode;
+
+// A column of doubles stored in a ByteBuffer, typically a memory-mapped
+// file, for CompiledBufferExpression. Row i is the double at byte
+// offset + i * stride, in the given byte order. A stride larger than eight
+// bytes selects one field out of fixed-size records, so several columns
+// can share a buffer. Nothing is copied: the column reads and writes the
+// buffer's memory directly.
+public class BufferColumn
+{
+    private ByteBuffer buffer;
+    private int offset;
+    private int stride;
+
+    // A dense column starting at the beginning of the buffer, in the
+    // buffer's own byte order
+    public BufferColumn(ByteBuffer buffer)
+    {
+        this(buffer, 0, 8, buffer.order());
+    }
+
+    public BufferColumn(ByteBuffer buffer, int offset, int stride, ByteOrder order)
+    {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative");
+        }
+        if (stride < 8) {
+            throw new IllegalArgumentException("Stride must be at least 8 bytes");
+        }
+
+        // The duplicate shares the memory, but has a byte order of its own
+        this.buffer = buffer.duplicate().order(order);
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    // Map rows of a file, the first of which starts at the given position.
+    // The mapping stays valid until the column is garbage collected, even
+    // if the channel is closed. A single mapping is limited to 2 GB, so
+    // larger files have to be processed a window of rows at a time.
+    public static BufferColumn map(FileChannel channel,
+                                   FileChannel.MapMode mode,
+                                   long position,
+                                   int rows,
+                                   int stride,
+                                   ByteOrder order)
+    throws IOException
+    {
+        long size = rows == 0 ? 0 : (long)(rows - 1) * stride + 8;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many rows for a single mapping");
+        }
+
+        return new BufferColumn(channel.map(mode, position, size), 0, stride, order);
+    }
+
+    public ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    public int getStride()
+    {
+        return stride;
+    }
+
+    public ByteOrder getOrder()
+    {
+        return buffer.order();
+    }
+
+    // Number of complete rows in the buffer
+    public int getRowCount()
+    {
+        int capacity = buffer.capacity();
+        if (capacity - 8 < offset) {
+            return 0;
+        }
+
+        return (capacity - 8 - offset) / stride + 1;
+    }
+
+    public double get(int row)
+    {
+        return buffer.getDouble(offset + row * stride);
+    }
+
+    public void put(int row, double value)
+    {
+        buffer.putDouble(offset + row * stride, value);
+    }
+
+    // Basic test method: store x and y interleaved in a little endian file,
+    // evaluate an expression over a memory mapping of it in windows of rows,
+    // writing the results to a second mapped file, and compare them with
+    // computeBatch
+    public static void main(String[] args)
+    throws Exception
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 22;
+        int window = 1 << 20;
+
+        Compiler compiler = new Compiler();
+        compiler.registerBuiltins();
+
+        ASTNode tree = new Parser(new Lexer("sin(x)*y + sqrt(x*x + y*y)")).parse();
+        VariableLayout layout = new VariableLayout("x", "y");
+        CompiledBufferExpression buffered = compiler.compileBuffers("BufferExpression", tree,
+                                                                    layout);
+        CompiledExpression expr = compiler.compile("ArrayExpression", tree, layout);
+
+        Path input = Files.createTempFile("expiler", ".in");
+        Path output = Files.createTempFile("expiler", ".out");
+
+        Random random = new Random(4711);
+        double[][] columns = new double[2][rows];
+        try (RandomAccessFile file = new RandomAccessFile(input.toFile(), "rw")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_WRITE, 0, 16L * rows)
+                                        .order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < rows; i++) {
+                columns[0][i] = random.nextDouble();
+                columns[1][i] = random.nextDouble();
+                records.putDouble(columns[0][i]);
+                records.putDouble(columns[1][i]);
+            }
+        }
+
+        long start = System.nanoTime();
+        try (RandomAccessFile in = new RandomAccessFile(input.toFile(), "r");
+             RandomAccessFile out = new RandomAccessFile(output.toFile(), "rw")) {
+
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            for (int from = 0; from < rows; from += window) {
+                int count = Math.min(window, rows - from);
+
+                // x and y are the two halves of each 16 byte record
+                BufferColumn x = map(inChannel, FileChannel.MapMode.READ_ONLY,
+                                     16L * from, count, 16, ByteOrder.LITTLE_ENDIAN);
+                BufferColumn y = map(inChannel, FileChannel.MapMode.READ_ONLY,
+                                     16L * from + 8, count, 16, ByteOrder.LITTLE_ENDIAN);
+                BufferColumn result = map(outChannel, FileChannel.MapMode.READ_WRITE,
+                                          8L * from, count, 8, ByteOrder.nativeOrder());
+
+                buffered.compute(new BufferColumn[] { x, y }, result, 0, count);
+            }
+        }
+        long mappedTime = System.nanoTime() - start;
+
+        double[] expected = new double[rows];
+        start = System.nanoTime();
+        expr.computeBatch(columns, expected, 0, rows);
+        long arrayTime = System.nanoTime() - start;
+
+        int mismatches = 0;
+        try (RandomAccessFile out = new RandomAccessFile(output.toFile(), "r")) {
+            BufferColumn result = map(out.getChannel(), FileChannel.MapMode.READ_ONLY,
+                                      0, rows, 8, ByteOrder.nativeOrder());
+            for (int i = 0; i < rows; i++) {
+                if (result.get(i) != expected[i]) {
+                    mismatches++;
+                }
+            }
+        }
+
+        System.out.println("rows: " + rows + ", mismatches: " + mismatches);
+        System.out.println("mapped: " + mappedTime / rows + " ns/row, " +
+                           "arrays: " + arrayTime / rows + " ns/row");
+
+        Files.delete(input);
+        Files.delete(output);
+    }
+}
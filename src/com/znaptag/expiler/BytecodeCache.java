@@ -0,0 +1,590 @@
+package com.znaptag.expiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.znaptag.expiler.ast.ASTNode;
+
+// Cache of generated bytecode which persists across restarts. Each entry is a
+// file in the cache directory, named after a SHA-256 hash of the normalized
+// expression text, the variable layout and the compiler context: the
+// registered constants and functions, the optimization flags and the
+// compiler version. A hit therefore only costs hashing the text, and the
+// lexer, parser and ASM are never touched.
+//
+// The directory also holds an index of all entries, which preload maps into
+// memory to define every cached class in one go at startup. Entries and the
+// index are checked when they're read, and an entry which is truncated,
+// corrupt or doesn't match its key is deleted and compiled again. Entries
+// from another context are never used, and are skipped by preload.
+public class BytecodeCache
+{
+    private static final int ENTRY_MAGIC = 0x45585043; // "EXPC"
+    private static final int INDEX_MAGIC = 0x45585049; // "EXPI"
+    private static final int FORMAT = 1;
+
+    private static final int KEY_SIZE = 32;
+    // magic, format, context, key, bytecode length and crc
+    private static final int ENTRY_HEADER_SIZE = 4 + 4 + 8 + KEY_SIZE + 4 + 4;
+    // magic and format
+    private static final int INDEX_HEADER_SIZE = 4 + 4;
+    // key and context
+    private static final int RECORD_SIZE = KEY_SIZE + 8;
+
+    private static final String INDEX_FILE = "index";
+    private static final String ENTRY_SUFFIX = ".entry";
+
+    private Compiler compiler;
+    private Path directory;
+
+    // Expressions defined so far, by key
+    private Map<String, CompiledExpression> entries;
+
+    // The context is derived from the compiler's registries, and is only
+    // recomputed once they've changed
+    private Map<String, Double> contextConstants;
+    private Map<String, Class<? extends Function>> contextFunctions;
+    private boolean contextOptimize;
+    private boolean contextRelaxed;
+    private long context;
+
+    private long memoryHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long preloaded = 0;
+    private long stale = 0;
+    private long corrupt = 0;
+
+    public BytecodeCache(Compiler compiler, Path directory)
+    throws IOException
+    {
+        this.compiler = compiler;
+        this.directory = directory;
+        this.entries = new HashMap<>();
+
+        Files.createDirectories(directory);
+    }
+
+    // Collapse whitespace, so that formatting doesn't affect the key.
+    // Whitespace is dropped entirely, except between two characters which
+    // would otherwise merge into a single token.
+    static String normalize(String expression)
+    {
+        StringBuilder normalized = new StringBuilder(expression.length());
+        boolean skipped = false;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                skipped = true;
+                continue;
+            }
+
+            if (skipped && normalized.length() > 0 &&
+                isWordChar(normalized.charAt(normalized.length() - 1)) &&
+                isWordChar(c)) {
+
+                normalized.append(' ');
+            }
+            normalized.append(c);
+            skipped = false;
+        }
+
+        return normalized.toString();
+    }
+
+    private static boolean isWordChar(char c)
+    {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+    }
+
+    private static MessageDigest sha256()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+
+    // Hash everything besides the expression which affects the generated
+    // code. Constants and functions are sorted by name, so the registration
+    // order doesn't matter.
+    private synchronized long context()
+    {
+        Map<String, Double> constants = compiler.getConstants();
+        Map<String, Class<? extends Function>> functions = compiler.getFunctions();
+        boolean optimize = compiler.isOptimizationEnabled();
+        boolean relaxed = compiler.isRelaxedMath();
+
+        if (constants == contextConstants && functions == contextFunctions &&
+            optimize == contextOptimize && relaxed == contextRelaxed) {
+
+            return context;
+        }
+
+        StringBuilder description = new StringBuilder();
+        description.append(Compiler.VERSION).append(';').append(FORMAT).append(';');
+        description.append(optimize).append(';').append(relaxed).append(';');
+
+        List<String> names = new ArrayList<>(constants.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            description.append(name).append('=')
+                       .append(Double.doubleToRawLongBits(constants.get(name)))
+                       .append(';');
+        }
+
+        names = new ArrayList<>(functions.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            description.append(name).append('=')
+                       .append(functions.get(name).getName()).append(':')
+                       .append(compiler.isPureFunction(name)).append(';');
+        }
+
+        byte[] digest = sha256().digest(description.toString().getBytes(StandardCharsets.UTF_8));
+
+        contextConstants = constants;
+        contextFunctions = functions;
+        contextOptimize = optimize;
+        contextRelaxed = relaxed;
+        context = ByteBuffer.wrap(digest).getLong();
+
+        return context;
+    }
+
+    private static byte[] key(long context, VariableLayout layout, String normalized)
+    {
+        MessageDigest digest = sha256();
+        digest.update(ByteBuffer.allocate(8).putLong(0, context));
+        // The default layout depends on the expression only, so it doesn't
+        // need to be spelled out
+        String layoutKey = layout == null ? "*" : layout.toString();
+        digest.update(layoutKey.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update(normalized.getBytes(StandardCharsets.UTF_8));
+
+        return digest.digest();
+    }
+
+    private static String className(String hex)
+    {
+        return "PersistentExpression" + hex;
+    }
+
+    private Path entryPath(String hex)
+    {
+        return directory.resolve(hex + ENTRY_SUFFIX);
+    }
+
+    // Lex, parse and compile an expression with its default layout, unless
+    // it's in the cache
+    public CompiledExpression compile(String expression)
+    throws IOException, Parser.ParseException, Compiler.CompilationException
+    {
+        return compile(expression, null);
+    }
+
+    public CompiledExpression compile(String expression, VariableLayout layout)
+    throws IOException, Parser.ParseException, Compiler.CompilationException
+    {
+        long context = context();
+        byte[] key = key(context, layout, normalize(expression));
+        String hex = toHex(key);
+
+        synchronized (this) {
+            CompiledExpression expr = entries.get(hex);
+            if (expr != null) {
+                memoryHits++;
+                return expr;
+            }
+        }
+
+        CompiledExpression expr = loadEntry(hex, key, context);
+        if (expr != null) {
+            synchronized (this) {
+                diskHits++;
+            }
+            return put(hex, expr);
+        }
+
+        synchronized (this) {
+            misses++;
+        }
+
+        ASTNode tree = new Parser(new Lexer(expression)).parse();
+        if (layout == null) {
+            layout = compiler.getVariableLayout(tree);
+        }
+
+        byte[] bytecode = compiler.compileToBytecode(className(hex), tree, layout);
+        writeEntry(hex, key, context, bytecode);
+
+        return put(hex, compiler.load(className(hex), bytecode));
+    }
+
+    // If another thread got there first, use their instance instead
+    private synchronized CompiledExpression put(String hex, CompiledExpression expr)
+    {
+        CompiledExpression existing = entries.get(hex);
+        if (existing != null) {
+            return existing;
+        }
+
+        entries.put(hex, expr);
+        return expr;
+    }
+
+    // Read an entry and check it against the expected key and context.
+    // Returns null if it's missing, and deletes it if it's damaged.
+    private byte[] readEntry(String hex, byte[] key, long context)
+    throws IOException
+    {
+        Path path = entryPath(hex);
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+        boolean valid = false;
+        byte[] bytecode = null;
+        if (buf.remaining() >= ENTRY_HEADER_SIZE &&
+            buf.getInt() == ENTRY_MAGIC &&
+            buf.getInt() == FORMAT &&
+            buf.getLong() == context) {
+
+            byte[] storedKey = new byte[KEY_SIZE];
+            buf.get(storedKey);
+            int length = buf.getInt();
+            int crc = buf.getInt();
+
+            if (Arrays.equals(storedKey, key) && length == buf.remaining()) {
+                bytecode = new byte[length];
+                buf.get(bytecode);
+                valid = crc(bytecode) == crc;
+            }
+        }
+
+        if (!valid) {
+            discard(path);
+            return null;
+        }
+
+        return bytecode;
+    }
+
+    // Read and define an entry. Returns null if it's missing or unusable.
+    private CompiledExpression loadEntry(String hex, byte[] key, long context)
+    throws IOException
+    {
+        byte[] bytecode = readEntry(hex, key, context);
+        if (bytecode == null) {
+            return null;
+        }
+
+        try {
+            return compiler.load(className(hex), bytecode);
+        }
+        catch (LinkageError | RuntimeException e) {
+            // The checksum matched, but the class still can't be defined,
+            // for instance if it was written by an incompatible JVM
+            discard(entryPath(hex));
+            return null;
+        }
+    }
+
+    private void discard(Path path)
+    throws IOException
+    {
+        Files.deleteIfExists(path);
+        synchronized (this) {
+            corrupt++;
+        }
+    }
+
+    private static int crc(byte[] bytecode)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytecode, 0, bytecode.length);
+        return (int)crc.getValue();
+    }
+
+    // Write the entry to a temporary file first and move it into place, so
+    // that readers never see a partial entry, and then add it to the index
+    private void writeEntry(String hex, byte[] key, long context, byte[] bytecode)
+    throws IOException
+    {
+        int crc = crc(bytecode);
+
+        ByteBuffer buf = ByteBuffer.allocate(ENTRY_HEADER_SIZE + bytecode.length);
+        buf.putInt(ENTRY_MAGIC);
+        buf.putInt(FORMAT);
+        buf.putLong(context);
+        buf.put(key);
+        buf.putInt(bytecode.length);
+        buf.putInt(crc);
+        buf.put(bytecode);
+
+        Path tmp = Files.createTempFile(directory, hex, ".tmp");
+        try {
+            Files.write(tmp, buf.array());
+            try {
+                Files.move(tmp, entryPath(hex),
+                           StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entryPath(hex), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(key);
+        record.putLong(context);
+        record.flip();
+        appendRecords(record);
+    }
+
+    private synchronized void appendRecords(ByteBuffer records)
+    throws IOException
+    {
+        FileChannel channel = FileChannel.open(directory.resolve(INDEX_FILE),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE,
+                                               StandardOpenOption.APPEND);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+                header.putInt(INDEX_MAGIC);
+                header.putInt(FORMAT);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            }
+
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    // Map the index, and define every entry in it which belongs to the
+    // current context. Returns the number of classes defined. An index with a
+    // damaged header is rebuilt from the entries in the directory, and a
+    // partially written record at the end is ignored.
+    public int preload()
+    throws IOException
+    {
+        long context = context();
+        Path indexPath = directory.resolve(INDEX_FILE);
+
+        MappedByteBuffer index = mapIndex(indexPath);
+        if (index == null) {
+            rebuildIndex(false);
+            index = mapIndex(indexPath);
+            if (index == null) {
+                return 0;
+            }
+        }
+
+        int count = 0;
+        int records = (index.capacity() - INDEX_HEADER_SIZE) / RECORD_SIZE;
+        byte[] key = new byte[KEY_SIZE];
+        for (int i = 0; i < records; i++) {
+            index.position(INDEX_HEADER_SIZE + i * RECORD_SIZE);
+            index.get(key);
+            long recordContext = index.getLong();
+
+            if (recordContext != context) {
+                synchronized (this) {
+                    stale++;
+                }
+                continue;
+            }
+
+            String hex = toHex(key);
+            synchronized (this) {
+                if (entries.containsKey(hex)) {
+                    continue;
+                }
+            }
+
+            CompiledExpression expr = loadEntry(hex, key.clone(), context);
+            if (expr != null) {
+                put(hex, expr);
+                count++;
+            }
+        }
+
+        synchronized (this) {
+            preloaded += count;
+        }
+
+        return count;
+    }
+
+    // Map the index read only, or return null if it's missing or its header
+    // is damaged
+    private MappedByteBuffer mapIndex(Path indexPath)
+    throws IOException
+    {
+        if (!Files.exists(indexPath)) {
+            return null;
+        }
+
+        FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < INDEX_HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != FORMAT) {
+                return null;
+            }
+
+            return index;
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    // Delete all entries which were written in a different context, and
+    // compact the index. Stale entries are never used, but they're kept
+    // until this is called, since another process may still be using a
+    // different context.
+    public void prune()
+    throws IOException
+    {
+        rebuildIndex(true);
+    }
+
+    // Recreate the index from the headers of the entries in the directory,
+    // dropping entries which are too short to be valid. The contents are
+    // checked once the entries are loaded.
+    private synchronized void rebuildIndex(boolean prune)
+    throws IOException
+    {
+        long context = context();
+        List<byte[]> found = new ArrayList<>();
+
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ENTRY_SUFFIX);
+        try {
+            for (Path path : stream) {
+                ByteBuffer entry = ByteBuffer.wrap(Files.readAllBytes(path));
+                if (entry.remaining() < ENTRY_HEADER_SIZE ||
+                    entry.getInt() != ENTRY_MAGIC ||
+                    entry.getInt() != FORMAT) {
+
+                    discard(path);
+                    continue;
+                }
+
+                long entryContext = entry.getLong();
+                if (prune && entryContext != context) {
+                    Files.delete(path);
+                    continue;
+                }
+
+                byte[] record = new byte[RECORD_SIZE];
+                entry.get(record, 0, KEY_SIZE);
+                ByteBuffer.wrap(record).putLong(KEY_SIZE, entryContext);
+                found.add(record);
+            }
+        }
+        finally {
+            stream.close();
+        }
+
+        ByteBuffer records = ByteBuffer.allocate(found.size() * RECORD_SIZE);
+        for (byte[] record : found) {
+            records.put(record);
+        }
+        records.flip();
+
+        Files.deleteIfExists(directory.resolve(INDEX_FILE));
+        appendRecords(records);
+    }
+
+    // Number of expressions defined by this cache
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getMemoryHits()
+    {
+        return memoryHits;
+    }
+
+    // Number of expressions loaded from an entry on disk by compile
+    public synchronized long getDiskHits()
+    {
+        return diskHits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    // Number of classes defined by preload
+    public synchronized long getPreloaded()
+    {
+        return preloaded;
+    }
+
+    // Number of index records skipped by preload, since they were written
+    // in a different context
+    public synchronized long getStale()
+    {
+        return stale;
+    }
+
+    // Number of damaged entries which have been deleted
+    public synchronized long getCorrupt()
+    {
+        return corrupt;
+    }
+}
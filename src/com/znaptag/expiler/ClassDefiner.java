@@ -0,0 +1,8 @@
+package com.znaptag.expiler;
+
+// Strategy used by the Compiler to turn generated bytecode into a class. The
+// name is the binary name of the class, such as com.znaptag.expiler.Foo.
+public interface ClassDefiner
+{
+    public Class<?> define(String name, byte[] bytecode);
+}
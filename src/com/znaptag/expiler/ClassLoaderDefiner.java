@@ -0,0 +1,14 @@
+package com.znaptag.expiler;
+
+// Defines every class in a class loader of its own. This works on any JVM,
+// but each expression costs a class loader, and the class can only be
+// unloaded once the loader is unreachable.
+public class ClassLoaderDefiner implements ClassDefiner
+{
+    @Override
+    public Class<?> define(String name, byte[] bytecode)
+    {
+        Compiler.MyClassLoader classLoader = new Compiler.MyClassLoader();
+        return classLoader.defineClass(name, bytecode);
+    }
+}
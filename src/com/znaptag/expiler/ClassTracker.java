@@ -0,0 +1,59 @@
+package com.znaptag.expiler;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps track of how many generated classes are still alive. Every defined
+// class is watched through a weak reference, which is cleared once the class
+// has been unloaded.
+class ClassTracker
+{
+    private static final ReferenceQueue<Class<?>> queue = new ReferenceQueue<>();
+
+    // The references themselves have to stay reachable, or they'd never be
+    // enqueued
+    private static final Set<Reference<Class<?>>> references =
+        Collections.newSetFromMap(new ConcurrentHashMap<Reference<Class<?>>, Boolean>());
+
+    private static final AtomicLong defined = new AtomicLong();
+    private static final AtomicLong unloaded = new AtomicLong();
+
+    private ClassTracker()
+    {
+    }
+
+    public static void track(Class<?> c)
+    {
+        expunge();
+
+        references.add(new WeakReference<Class<?>>(c, queue));
+        defined.incrementAndGet();
+    }
+
+    public static long getDefinedCount()
+    {
+        return defined.get();
+    }
+
+    public static long getLiveCount()
+    {
+        expunge();
+
+        return defined.get() - unloaded.get();
+    }
+
+    private static void expunge()
+    {
+        Reference<? extends Class<?>> ref;
+        while ((ref = queue.poll()) != null) {
+            if (references.remove(ref)) {
+                unloaded.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.znaptag.expiler;
+
+// Receives the statistics of every expression compiled by a Compiler, for
+// instance to feed them into a metrics system. Listeners are called on the
+// compiling thread, right after the expression has been loaded or
+// compilation has failed, so they should return quickly.
+public interface CompilationListener
+{
+    public void compiled(CompilationStatistics statistics);
+
+    // The statistics cover the stages which finished before the failure
+    public void failed(CompilationStatistics statistics, Exception error);
+}
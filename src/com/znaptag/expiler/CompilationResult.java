@@ -0,0 +1,57 @@
+package com.znaptag.expiler;
+
+// Outcome of compiling a single expression in Compiler.compileBulk: either
+// the compiled expression, or the exception which made parsing or
+// compilation fail.
+public class CompilationResult
+{
+    private String source;
+    private CompiledExpression expression;
+    private Exception error;
+
+    public CompilationResult(String source, CompiledExpression expression)
+    {
+        this.source = source;
+        this.expression = expression;
+    }
+
+    public CompilationResult(String source, Exception error)
+    {
+        this.source = source;
+        this.error = error;
+    }
+
+    public String getSource()
+    {
+        return source;
+    }
+
+    public boolean isSuccess()
+    {
+        return expression != null;
+    }
+
+    // The compiled expression, or null if compilation failed
+    public CompiledExpression getExpression()
+    {
+        return expression;
+    }
+
+    // The exception compilation failed with, or null if it succeeded. This is
+    // usually a ParseException, a CompilationException or an IOException from
+    // the lexer.
+    public Exception getError()
+    {
+        return error;
+    }
+
+    @Override
+    public String toString()
+    {
+        if (isSuccess()) {
+            return source + ": ok";
+        }
+
+        return source + ": " + error.getMessage();
+    }
+}
@@ -0,0 +1,197 @@
+package com.znaptag.expiler;
+
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+// Where the time went when compiling a single expression, and how large the
+// result is. Stages which didn't run, such as lexing and parsing when the
+// compiler was handed a tree, take zero time.
+//
+// The JIT compilation of the generated methods happens later, in the
+// background. With JFR, HotSpot's own jdk.Compilation events cover it, and
+// can be matched to the class by name.
+public class CompilationStatistics
+{
+    // HotSpot only inlines hot methods up to this many bytes of bytecode
+    public static final int FREQ_INLINE_SIZE = intOption("FreqInlineSize", 325);
+    // Methods larger than this are never JIT compiled, unless
+    // -XX:-DontCompileHugeMethods is given
+    public static final int HUGE_METHOD_LIMIT = intOption("HugeMethodLimit", 8000);
+    private static final boolean DONT_COMPILE_HUGE_METHODS =
+        booleanOption("DontCompileHugeMethods", true);
+
+    String name;
+    int tokenCount;
+    int nodeCount;
+    int maxStackDepth;
+    int bytecodeSize;
+    int computeSize;
+    int batchSize;
+
+    long lexTime;
+    long parseTime;
+    long optimizeTime;
+    long firstPassTime;
+    long generateTime;
+    long defineTime;
+    long linkTime;
+
+    CompilationStatistics(String name)
+    {
+        this.name = name;
+    }
+
+    // Read a flag of the running JVM, falling back to the HotSpot default.
+    // Develop flags such as HugeMethodLimit can't be read in product
+    // builds, but can't be changed there either.
+    private static String option(String name)
+    {
+        try {
+            HotSpotDiagnosticMXBean bean =
+                ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return bean == null ? null : bean.getVMOption(name).getValue();
+        }
+        catch (RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static int intOption(String name, int defaultValue)
+    {
+        String value = option(name);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static boolean booleanOption(String name, boolean defaultValue)
+    {
+        String value = option(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    // Name of the generated class
+    public String getName()
+    {
+        return name;
+    }
+
+    // Number of tokens, or zero if the compiler didn't parse the expression
+    public int getTokenCount()
+    {
+        return tokenCount;
+    }
+
+    // Number of nodes in the tree after optimization
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    // Maximum number of values on the operand stack
+    public int getMaxStackDepth()
+    {
+        return maxStackDepth;
+    }
+
+    // Size of the class file
+    public int getBytecodeSize()
+    {
+        return bytecodeSize;
+    }
+
+    // Size of the code of compute(double[]), or of compute(double[], double[])
+    // for a set of expressions
+    public int getComputeSize()
+    {
+        return computeSize;
+    }
+
+    // Size of the code of computeBatch, or zero if there is none
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    // The durations of the stages, in nanoseconds
+
+    public long getLexTime()
+    {
+        return lexTime;
+    }
+
+    public long getParseTime()
+    {
+        return parseTime;
+    }
+
+    // Optimizing the tree and finding common subexpressions
+    public long getOptimizeTime()
+    {
+        return optimizeTime;
+    }
+
+    // Collecting variables and functions, and checking them
+    public long getFirstPassTime()
+    {
+        return firstPassTime;
+    }
+
+    // Generating the class file
+    public long getGenerateTime()
+    {
+        return generateTime;
+    }
+
+    // Defining the class
+    public long getDefineTime()
+    {
+        return defineTime;
+    }
+
+    // Verifying, initializing and instantiating the class
+    public long getLinkTime()
+    {
+        return linkTime;
+    }
+
+    public long getTotalTime()
+    {
+        return lexTime + parseTime + optimizeTime + firstPassTime + generateTime +
+               defineTime + linkTime;
+    }
+
+    // Whether compute is small enough to be inlined into hot callers
+    public boolean isInlinable()
+    {
+        return computeSize <= FREQ_INLINE_SIZE;
+    }
+
+    // Whether a generated method is too large to ever be JIT compiled, in
+    // which case it keeps running in the interpreter
+    public boolean isHugeMethod()
+    {
+        return DONT_COMPILE_HUGE_METHODS &&
+               Math.max(computeSize, batchSize) > HUGE_METHOD_LIMIT;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d tokens, %d nodes, stack %d, %d bytes " +
+                             "(compute %d, batch %d)%s%s, " +
+                             "lex %d, parse %d, optimize %d, first pass %d, " +
+                             "generate %d, define %d, link %d us",
+                             name, tokenCount, nodeCount, maxStackDepth, bytecodeSize,
+                             computeSize, batchSize,
+                             isInlinable() ? ", inlinable" : "",
+                             isHugeMethod() ? ", huge" : "",
+                             lexTime / 1000, parseTime / 1000, optimizeTime / 1000,
+                             firstPassTime / 1000, generateTime / 1000,
+                             defineTime / 1000, linkTime / 1000);
+    }
+}
@@ -0,0 +1,26 @@
+package com.znaptag.expiler;
+
+// An expression compiled by Compiler.compileBuffers, which reads its
+// variables from BufferColumns and writes the results to another one. This
+// evaluates data in memory-mapped files without copying it into arrays
+// first.
+public abstract class CompiledBufferExpression
+{
+    private VariableLayout variables;
+
+    protected CompiledBufferExpression(VariableLayout variables)
+    {
+        this.variables = variables;
+    }
+
+    // Layout of the columns passed to compute
+    public VariableLayout getVariableLayout()
+    {
+        return variables;
+    }
+
+    // Evaluate every row in [from, to), reading each variable from
+    // columns[slot] and storing the result in the same row of out. Columns
+    // of variables the expression doesn't use may be null.
+    public abstract void compute(BufferColumn[] columns, BufferColumn out, int from, int to);
+}
@@ -4,5 +4,17 @@ import java.util.Map;
 
 public interface CompiledExpression
 {
+    // Evaluate with variables stored positionally, as described by the
+    // VariableLayout the expression was compiled against
+    public double compute(double[] variables);
+
+    // Evaluate with variables looked up by name. This is a thin adapter which
+    // copies the values into an array and calls compute(double[]).
     public double compute(Map<String, Double> variables);
+
+    // Evaluate every row in [from, to) and store the results in out. Each
+    // variable is read from columns[slot][row], with the slot assigned by the
+    // VariableLayout. Columns of variables the expression doesn't use may be
+    // null.
+    public void computeBatch(double[][] columns, double[] out, int from, int to);
 }
@@ -0,0 +1,54 @@
+package com.znaptag.expiler;
+
+import java.util.Map;
+
+// A group of expressions which have been compiled into a single method by
+// Compiler.compileAll. Every variable is loaded once, and subexpressions
+// which occur in more than one output are only evaluated once. The results
+// are stored in an array, at the slots given by the output layout.
+public abstract class CompiledExpressionSet
+{
+    private VariableLayout variables;
+    private VariableLayout outputs;
+
+    protected CompiledExpressionSet(VariableLayout variables, VariableLayout outputs)
+    {
+        this.variables = variables;
+        this.outputs = outputs;
+    }
+
+    // Layout of the variables passed to compute(double[], double[])
+    public VariableLayout getVariableLayout()
+    {
+        return variables;
+    }
+
+    // Layout of the results stored by compute
+    public VariableLayout getOutputLayout()
+    {
+        return outputs;
+    }
+
+    // Returns the slot of an output, or -1 if there's no output by that name
+    public int indexOf(String output)
+    {
+        return outputs.indexOf(output);
+    }
+
+    // Allocate an array large enough to hold every output
+    public double[] newOutputArray()
+    {
+        return new double[outputs.size()];
+    }
+
+    // Evaluate all expressions with variables stored positionally, and store
+    // the result of each in out
+    public abstract void compute(double[] variables, double[] out);
+
+    // Evaluate all expressions with variables looked up by name. Variables
+    // missing from the map are taken to be zero.
+    public void compute(Map<String, Double> variables, double[] out)
+    {
+        compute(this.variables.toArray(variables), out);
+    }
+}
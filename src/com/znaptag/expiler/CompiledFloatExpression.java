@@ -0,0 +1,21 @@
+package com.znaptag.expiler;
+
+import java.util.Map;
+
+// An expression compiled by Compiler.compileFloat, which evaluates entirely
+// in single precision. Every operation rounds to float, so results differ
+// from CompiledExpression by up to a few float ulps, but columns take half
+// the memory and bandwidth.
+public interface CompiledFloatExpression
+{
+    // Evaluate with variables stored positionally, as described by the
+    // VariableLayout the expression was compiled against
+    public float compute(float[] variables);
+
+    // Evaluate with variables looked up by name
+    public float compute(Map<String, Float> variables);
+
+    // Evaluate every row in [from, to) and store the results in out, like
+    // CompiledExpression.computeBatch
+    public void computeBatch(float[][] columns, float[] out, int from, int to);
+}
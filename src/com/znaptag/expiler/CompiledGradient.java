@@ -0,0 +1,40 @@
+package com.znaptag.expiler;
+
+import java.util.Map;
+
+// An expression compiled by GradientCompiler, which evaluates the value
+// together with the partial derivative with respect to every variable in a
+// single call.
+public abstract class CompiledGradient
+{
+    private VariableLayout variables;
+
+    protected CompiledGradient(VariableLayout variables)
+    {
+        this.variables = variables;
+    }
+
+    // Layout of both the variables and the gradient
+    public VariableLayout getVariableLayout()
+    {
+        return variables;
+    }
+
+    // Allocate an array large enough to hold every partial derivative
+    public double[] newGradientArray()
+    {
+        return new double[variables.size()];
+    }
+
+    // Evaluate the expression with variables stored positionally, and store
+    // the derivative with respect to variable i in gradient[i]. Variables
+    // the expression doesn't depend on get a derivative of zero.
+    public abstract double compute(double[] variables, double[] gradient);
+
+    // Evaluate the expression with variables looked up by name. Variables
+    // missing from the map are taken to be zero.
+    public double compute(Map<String, Double> variables, double[] gradient)
+    {
+        return compute(this.variables.toArray(variables), gradient);
+    }
+}
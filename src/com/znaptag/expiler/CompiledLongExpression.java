@@ -0,0 +1,20 @@
+package com.znaptag.expiler;
+
+import java.util.Map;
+
+// An expression compiled by Compiler.compileLong, which evaluates with Java's
+// long arithmetic: results wrap around on overflow, divisions truncate
+// towards zero, and dividing by zero throws an ArithmeticException.
+public interface CompiledLongExpression
+{
+    // Evaluate with variables stored positionally, as described by the
+    // VariableLayout the expression was compiled against
+    public long compute(long[] variables);
+
+    // Evaluate with variables looked up by name
+    public long compute(Map<String, Long> variables);
+
+    // Evaluate every row in [from, to) and store the results in out, like
+    // CompiledExpression.computeBatch
+    public void computeBatch(long[][] columns, long[] out, int from, int to);
+}
@@ -3,13 +3,28 @@ package com.znaptag.expiler;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.lang.reflect.*;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import static org.objectweb.asm.Opcodes.*;
 
@@ -20,17 +35,23 @@ public class Compiler
 {
     // Visitor to do an initial pass over the AST and collect information about
     // which variables are used, and the maximum stack depth
-    private static class FirstPassVisitor extends AbstractVisitor
+    private static class FirstPassVisitor extends PostOrderVisitor
     {
         private Set<String> variables;
-        private Set<String> functions;
+        // let bindings in scope, which aren't variables
+        private Set<String> bindings = new HashSet<>();
+        // the number of arguments each function is called with
+        private Map<String, Set<Integer>> functions;
         private int maxStackDepth = 2;
         private int currentStackDepth = 0;
+        private int nodeCount = 0;
 
         public FirstPassVisitor()
         {
-            variables = new HashSet<String>();
-            functions = new HashSet<String>();
+            // Keep variables in order of first appearance, so that the
+            // default layout is stable between compilations
+            variables = new LinkedHashSet<String>();
+            functions = new LinkedHashMap<String, Set<Integer>>();
         }
 
         public int getMaxStackDepth()
@@ -38,12 +59,24 @@ public class Compiler
             return maxStackDepth;
         }
 
+        public int getNodeCount()
+        {
+            return nodeCount;
+        }
+
+        @Override
+        protected boolean enter(ASTNode node)
+        {
+            nodeCount++;
+            return true;
+        }
+
         public Set<String> getVariables()
         {
             return variables;
         }
 
-        public Set<String> getFunctions()
+        public Map<String, Set<Integer>> getFunctions()
         {
             return functions;
         }
@@ -58,7 +91,9 @@ public class Compiler
         @Override
         public void visit(VariableNode node)
         {
-            variables.add(node.getName());
+            if (!bindings.contains(node.getName())) {
+                variables.add(node.getName());
+            }
             currentStackDepth++;
             maxStackDepth = Math.max(currentStackDepth, maxStackDepth);
         }
@@ -66,348 +101,2594 @@ public class Compiler
         @Override
         public void visit(FunctionNode node)
         {
-            super.visit(node);
-            functions.add(node.getName());
+            Set<Integer> arities = functions.get(node.getName());
+            if (arities == null) {
+                arities = new HashSet<Integer>();
+                functions.put(node.getName(), arities);
+            }
+            arities.add(node.getArgumentCount());
+
+            // The arguments are replaced by the result
+            currentStackDepth += 1 - node.getArgumentCount();
+            maxStackDepth = Math.max(currentStackDepth, maxStackDepth);
         }
 
         @Override
         public void visit(AddNode node)
         {
-            super.visit(node);
             currentStackDepth--;
         }
 
         @Override
         public void visit(SubNode node)
         {
-            super.visit(node);
             currentStackDepth--;
         }
 
         @Override
         public void visit(MulNode node)
         {
-            super.visit(node);
             currentStackDepth--;
         }
 
         @Override
         public void visit(DivNode node)
         {
-            super.visit(node);
             currentStackDepth--;
         }
 
         @Override
         public void visit(ExpNode node)
         {
-            super.visit(node);
             currentStackDepth--;
         }
+
+        // Testing whether a condition or the left operand of && or || is
+        // non-zero compares it to a zero pushed on top of it. The value of a
+        // binding is stored in a register.
+        @Override
+        protected boolean enterChild(ASTNode parent, int index)
+        {
+            if (index == 1 && isLogical(parent)) {
+                maxStackDepth = Math.max(currentStackDepth + 1, maxStackDepth);
+            }
+            if (index > 0 && parent instanceof LetNode) {
+                bindings.add(((LetNode)parent).getName(index - 1));
+                currentStackDepth--;
+            }
+            return true;
+        }
+
+        @Override
+        public void visit(ComparisonNode node)
+        {
+            currentStackDepth--;
+        }
+
+        @Override
+        public void visit(AndNode node)
+        {
+            maxStackDepth = Math.max(currentStackDepth + 1, maxStackDepth);
+            currentStackDepth--;
+        }
+
+        @Override
+        public void visit(OrNode node)
+        {
+            maxStackDepth = Math.max(currentStackDepth + 1, maxStackDepth);
+            currentStackDepth--;
+        }
+
+        @Override
+        public void visit(ConditionalNode node)
+        {
+            currentStackDepth -= 2;
+        }
+
+        @Override
+        public void visit(LetNode node)
+        {
+            bindings.removeAll(node.getNames());
+        }
     }
 
-    // Visitor which walks the AST and generates the actual java bytecode
-    private static class CodeGenerationVisitor extends AbstractVisitor
+    // Whether a tree contains a VariableNode with any of the given names
+    private static boolean refersTo(ASTNode tree, Collection<String> names)
+    {
+        Deque<ASTNode> pending = new ArrayDeque<>();
+        pending.push(tree);
+        while (!pending.isEmpty()) {
+            ASTNode node = pending.pop();
+            if (node instanceof VariableNode &&
+                names.contains(((VariableNode)node).getName())) {
+
+                return true;
+            }
+            for (int i = 0; i < node.getChildCount(); i++) {
+                pending.push(node.getChild(i));
+            }
+        }
+
+        return false;
+    }
+
+    // Whether the node tests its first child for being non-zero
+    private static boolean isLogical(ASTNode node)
+    {
+        return node instanceof ConditionalNode ||
+               node instanceof AndNode ||
+               node instanceof OrNode;
+    }
+
+    // Visitor which finds the first number or constant that isn't an
+    // integer, for expressions compiled as longs
+    private static class IntegerCheckVisitor extends PostOrderVisitor
     {
-        // asm methodvisitor for code generation
-        private MethodVisitor mv;
-        // maps variable names to register indices
-        private Map<String, Integer> registers;
-        private Map<String, Class<? extends Function>> functions;
         private Map<String, Double> constants;
+        private String inexact;
+        // let bindings in scope, which hide constants of the same name
+        private Set<String> bindings = new HashSet<>();
 
-        public CodeGenerationVisitor(MethodVisitor mv,
-                                     Map<String, Integer> registers,
-                                     Map<String, Class<? extends Function>> functions,
-                                     Map<String, Double> constants)
+        public IntegerCheckVisitor(Map<String, Double> constants)
         {
-            this.mv = mv;
-            this.registers = registers;
-            this.functions = functions;
             this.constants = constants;
         }
 
+        // Description of the offending node, or null if there is none
+        public String getInexact()
+        {
+            return inexact;
+        }
+
         @Override
         public void visit(NumberNode node)
         {
-            // Numbers are loaded onto the stack as constants
-            mv.visitLdcInsn(node.getNumber());
+            if (inexact == null && !NumericType.LONG.isExact(node.getNumber())) {
+                inexact = "Number " + node.getNumber();
+            }
         }
 
         @Override
         public void visit(VariableNode node)
         {
-            if (constants.containsKey(node.getName())) {
-                // constants are translated into bytecode constants
-                double constant = constants.get(node.getName());
-                mv.visitLdcInsn(constant);
-            } else {
-                // Variables have already been loaded into local registers
-                int reg = registers.get(node.getName());
-                mv.visitVarInsn(DLOAD, reg);
+            Double constant = constants.get(node.getName());
+            if (inexact == null && constant != null && !NumericType.LONG.isExact(constant) &&
+                !bindings.contains(node.getName())) {
+
+                inexact = "Constant " + node.getName();
             }
         }
 
         @Override
-        public void visit(FunctionNode node)
+        protected boolean enterChild(ASTNode parent, int index)
         {
-            super.visit(node);
-            Class<? extends Function> func = functions.get(node.getName());
-            String name = func.getCanonicalName().replaceAll("\\.", "/");
+            if (index > 0 && parent instanceof LetNode) {
+                bindings.add(((LetNode)parent).getName(index - 1));
+            }
+            return true;
+        }
 
-            mv.visitMethodInsn(INVOKESTATIC,
-                               name,
-                               "call",
-                               "(D)D",
-                               false);
+        @Override
+        public void visit(LetNode node)
+        {
+            bindings.removeAll(node.getNames());
+        }
+    }
+
+    // Visitor which finds subexpressions that are evaluated more than once.
+    // The tree is walked in the same order as during code generation, and
+    // the children of a repeated subtree aren't visited again, since they
+    // won't be evaluated again either. Only subtrees which don't call any
+    // impure functions can be shared. A subtree which is only repeated in
+    // different branches of a conditional is still marked, but since only
+    // one of them runs, it's evaluated again in each. Subtrees which refer
+    // to a let binding are forgotten at the end of the let, since the same
+    // name may be bound to something else in the next tree. Also used by
+    // VectorCompiler.
+    static class CommonSubexpressionVisitor extends PostOrderVisitor
+    {
+        private Set<String> pureFunctions;
+        // Number of evaluations of each subtree
+        private Map<ASTNode, Integer> counts;
+        private Map<ASTNode, Boolean> purity;
+        // let bindings in scope, the subtrees referring to them, and those
+        // of the subtrees which were common when their let ended
+        private Set<String> bindings;
+        private Set<ASTNode> bound;
+        private Set<ASTNode> closed;
+
+        public CommonSubexpressionVisitor(Set<String> pureFunctions)
+        {
+            this.pureFunctions = pureFunctions;
+            this.counts = new HashMap<>();
+            this.purity = new HashMap<>();
+            this.bindings = new HashSet<>();
+            this.bound = new HashSet<>();
+            this.closed = new HashSet<>();
+        }
+
+        public Set<ASTNode> getCommonSubexpressions()
+        {
+            Set<ASTNode> common = new HashSet<>(closed);
+            for (Map.Entry<ASTNode, Integer> entry : counts.entrySet()) {
+                if (entry.getValue() > 1 && purity.get(entry.getKey())) {
+                    common.add(entry.getKey());
+                }
+            }
+
+            return common;
+        }
+
+        @Override
+        protected boolean enter(ASTNode node)
+        {
+            // Numbers and variables are cheaper to reload than to share, so
+            // they're never counted
+            if (node.getChildCount() == 0) {
+                return true;
+            }
+
+            // Don't descend into subtrees we've already seen
+            Integer count = counts.get(node);
+            if (count != null) {
+                counts.put(node, count + 1);
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            record(node, childrenPure(node) && pureFunctions.contains(node.getName()));
         }
 
         @Override
         public void visit(AddNode node)
         {
-            super.visit(node);
-            mv.visitInsn(DADD);
+            record(node, childrenPure(node));
         }
 
         @Override
         public void visit(SubNode node)
         {
-            super.visit(node);
-            mv.visitInsn(DSUB);
+            record(node, childrenPure(node));
         }
 
         @Override
         public void visit(MulNode node)
         {
-            super.visit(node);
-            mv.visitInsn(DMUL);
+            record(node, childrenPure(node));
         }
 
         @Override
         public void visit(DivNode node)
         {
-            super.visit(node);
-            mv.visitInsn(DDIV);
+            record(node, childrenPure(node));
         }
 
         @Override
         public void visit(ExpNode node)
         {
-            super.visit(node);
-            // There's no opcode for exponentiation, so we call the static
-            // method Math.pow(base, exp)
-            mv.visitMethodInsn(INVOKESTATIC,
-                               "java/lang/Math",
-                               "pow",
-                               "(DD)D",
-                               false);
+            record(node, childrenPure(node));
         }
-    }
 
-    // Custom class loaded that we use to define and load the class
-    public static class MyClassLoader extends ClassLoader
-    {
-        public Class defineClass(String name, byte[] b)
+        @Override
+        public void visit(ComparisonNode node)
         {
-            return defineClass(name, b, 0, b.length);
+            record(node, childrenPure(node));
         }
-    }
 
-    public static class CompilationException extends Exception
-    {
-        public CompilationException(String message)
+        @Override
+        public void visit(AndNode node)
         {
-            super(message);
+            record(node, childrenPure(node));
         }
-    }
-
-    private Map<String, Class<? extends Function>> functions;
-    private Map<String, Double> constants;
-
-    public Compiler()
-    {
-        functions = new HashMap<>();
-        constants = new HashMap<>();
-    }
-
-    public void registerConstant(String name, double value)
-    {
-        constants.put(name, value);
-    }
 
-    public void registerFunction(String name, Class<? extends Function> func)
-    {
-        Method[] methods = func.getMethods();
-        Method callMethod = null;
-        for (Method method : methods) {
-            if ("call".equals(method.getName())) {
-                callMethod = method;
-                break;
-            }
+        @Override
+        public void visit(OrNode node)
+        {
+            record(node, childrenPure(node));
         }
 
-        if (callMethod == null) {
-            throw new IllegalArgumentException("No call method found for function " +
-                                               name);
+        @Override
+        public void visit(ConditionalNode node)
+        {
+            record(node, childrenPure(node));
         }
 
-        if ((callMethod.getModifiers() & Modifier.STATIC) == 0) {
-            throw new IllegalArgumentException("Call method must be static for " +
-                                               "function " + name);
-        }
-        if ((callMethod.getModifiers() & Modifier.PUBLIC) == 0) {
-            throw new IllegalArgumentException("Call method must be public for " +
-                                               "function " + name);
+        @Override
+        protected boolean enterChild(ASTNode parent, int index)
+        {
+            if (index > 0 && parent instanceof LetNode) {
+                bindings.add(((LetNode)parent).getName(index - 1));
+            }
+            return true;
         }
 
-        functions.put(name, func);
-    }
-
-    public byte[] compileToBytecode(String name, ASTNode tree)
-    throws CompilationException
-    {
-        // Find all variables used by the expression, as well as the max stack
-        // depth
-        FirstPassVisitor firstPass = new FirstPassVisitor();
-        tree.visit(firstPass);
-
-        Set<String> foundFunctions = firstPass.getFunctions();
-        for (String functionName : foundFunctions) {
-            if (!functions.containsKey(functionName)) {
-                throw new CompilationException("Function " + functionName +
-                                               " is not known.");
+        @Override
+        public void visit(LetNode node)
+        {
+            for (ASTNode subtree : bound) {
+                if (counts.remove(subtree) > 1 && purity.get(subtree)) {
+                    closed.add(subtree);
+                }
+                purity.remove(subtree);
             }
+            bound.clear();
+            bindings.removeAll(node.getNames());
         }
 
-        Set<String> variables = firstPass.getVariables();
-
-        // Setup class header
-        ClassWriter cw = new ClassWriter(0);
-        cw.visit(V1_7, // java version
-                 ACC_PUBLIC, // flags, ACC_PUBLIC means public access
-                 "com/znaptag/expiler/" + name, // qualified name of new class
-                 null,
-                 "java/lang/Object", // parent class
-                 new String[] { "com/znaptag/expiler/CompiledExpression" } // implemented interfaces
-                 );
+        // Whether a subtree refers to a binding, given that its children
+        // have been recorded
+        private boolean refersToBinding(ASTNode node)
+        {
+            for (int i = 0; i < node.getChildCount(); i++) {
+                ASTNode child = node.getChild(i);
+                if (bound.contains(child) ||
+                    (child instanceof VariableNode &&
+                     bindings.contains(((VariableNode)child).getName()))) {
 
-        // Create default constructor
-        MethodVisitor mv1 = cw.visitMethod(ACC_PUBLIC,
-                                           "<init>", // java internal name of constructors
-                                           "()V", // return type is void, no parameters needed
-                                           null,
-                                           null);
+                    return true;
+                }
+            }
 
-            // load "this" reference from register 0
-            mv1.visitVarInsn(ALOAD, 0);
-            // invoke java.lang.Object constructor
-            mv1.visitMethodInsn(INVOKESPECIAL,
-                                "java/lang/Object",
-                                "<init>",
-                                "()V",
-                                false);
-            // return void
-            mv1.visitInsn(RETURN);
-            mv1.visitMaxs(2, 2);
-            mv1.visitEnd();
+            return false;
+        }
 
-        // Create computation method
-        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC,
-                                          "compute", // implement the compute method
-                                          "(Ljava/util/Map;)D", // accepts a java.util.Map as parameter, returns a double
-                                          null,
-                                          null);
-            mv.visitCode();
+        // Children have always been recorded by the time their parent is
+        // visited, except for numbers and variables, which are pure
+        private boolean childrenPure(ASTNode node)
+        {
+            for (int i = 0; i < node.getChildCount(); i++) {
+                Boolean pure = purity.get(node.getChild(i));
+                if (pure != null && !pure) {
+                    return false;
+                }
+            }
 
-            // Load all variables from the passed map into registers
+            return true;
+        }
 
-            // Used to keep track of the number of local variables used
-            int regCounter = 2;
+        private void record(ASTNode node, boolean pure)
+        {
+            counts.put(node, 1);
+            purity.put(node, pure);
+            if (!bindings.isEmpty() && refersToBinding(node)) {
+                bound.add(node);
+            }
+        }
+    }
 
-            // Lookup table to translate var names to register indices
-            Map<String, Integer> registers = new HashMap<>();
-            for (String var : variables) {
-                if (constants.containsKey(var)) {
-                    continue;
-                }
+    // Visitor which decides whether a subtree is cheap enough to evaluate
+    // even when its result is thrown away, which is how conditionals are
+    // compiled without branches. The subtree must be small, and may only
+    // contain arithmetic, powers which are reduced to multiplications and
+    // the functions which are single instructions on common hardware. For
+    // longs, division is ruled out as well, since it throws for a zero
+    // divisor.
+    private static class BranchCostVisitor extends PostOrderVisitor
+    {
+        private static final int MAX_NODES = 16;
 
-                // Load the map passed to the function onto the stack
-                mv.visitVarInsn(ALOAD, 1);
-                // Put the name of the variable onto the stack, as a constant
-                mv.visitLdcInsn(var);
-                // Invoke the Map.get method to push the variable on stack
-                mv.visitMethodInsn(INVOKEINTERFACE,
-                                   "java/util/Map",
-                                   "get",
-                                   "(Ljava/lang/Object;)Ljava/lang/Object;",
-                                   true);
-                // Assert that we're dealing with a double
-                mv.visitTypeInsn(CHECKCAST, "java/lang/Double");
-                // Perform unboxing of double
-                mv.visitMethodInsn(INVOKEVIRTUAL,
-                                   "java/lang/Double",
-                                   "doubleValue",
-                                   "()D",
-                                   false);
-                // Store it into a register
-                mv.visitVarInsn(DSTORE, regCounter);
+        private Map<String, Class<? extends Function>> functions;
+        private PowerReduction powerReduction;
+        private NumericType type;
+        private int nodeCount = 0;
+        private boolean cheap = true;
+
+        public BranchCostVisitor(Map<String, Class<? extends Function>> functions,
+                                 PowerReduction powerReduction,
+                                 NumericType type)
+        {
+            this.functions = functions;
+            this.powerReduction = powerReduction;
+            this.type = type;
+        }
 
-                registers.put(var, regCounter);
+        public boolean isCheap()
+        {
+            return cheap;
+        }
 
-                // doubles occupy two registers
-                regCounter += 2;
+        @Override
+        protected boolean enter(ASTNode node)
+        {
+            if (++nodeCount > MAX_NODES) {
+                cheap = false;
             }
+            return cheap;
+        }
 
-            // Walk the AST to generate the code for the actual calculation
-            CodeGenerationVisitor codegen =
-                new CodeGenerationVisitor(mv, registers, functions, constants);
-            tree.visit(codegen);
+        @Override
+        public void visit(FunctionNode node)
+        {
+            Intrinsic intrinsic = functions.get(node.getName()).getAnnotation(Intrinsic.class);
+            if (intrinsic == null ||
+                !intrinsic.owner().equals("java/lang/Math") ||
+                !Arrays.asList("abs", "min", "max", "sqrt").contains(intrinsic.name()) ||
+                findIntrinsicTarget(intrinsic, node.getArgumentCount(), type) == null) {
 
-            // Return the double
-            mv.visitInsn(DRETURN);
-            // Set stack parameters
-            mv.visitMaxs(2*firstPass.getMaxStackDepth(), regCounter+1);
-            mv.visitEnd();
+                cheap = false;
+            }
+        }
 
-        // Finish class and retrieve byte code
-        cw.visitEnd();
+        @Override
+        public void visit(DivNode node)
+        {
+            if (type == NumericType.LONG) {
+                cheap = false;
+            }
+        }
 
-        byte[] b = cw.toByteArray();
+        @Override
+        public void visit(ExpNode node)
+        {
+            if (powerReduction == null ||
+                !(node.getRight() instanceof NumberNode) ||
+                !powerReduction.canReduce(((NumberNode)node.getRight()).getNumber())) {
 
-        return b;
+                cheap = false;
+            }
+        }
     }
 
-    // Compile and save generated class to disk
-    public void compileAndSave(String name, ASTNode tree)
-    throws IOException, CompilationException
+    // Visitor which walks the AST and generates the actual java bytecode
+    private static class CodeGenerationVisitor extends PostOrderVisitor
     {
-        byte[] bytecode = compileToBytecode(name, tree);
+        // asm methodvisitor for code generation
+        private MethodVisitor mv;
+        // maps variable names to register indices
+        private Map<String, Integer> registers;
+        private Map<String, Class<? extends Function>> functions;
+        private Map<String, Double> constants;
+        // subtrees which are evaluated once and then kept in a register
+        private Set<ASTNode> common;
+        private Map<ASTNode, Integer> commonRegisters;
+        // strength reduction of constant exponents, or null if disabled
+        private PowerReduction powerReduction;
+        private int scratchRegister = -1;
+        // holds one of the bit patterns during a branchless conditional
+        private int selectRegister = -1;
+        // the next unused register
+        private int nextRegister;
+        // the type every value on the stack and in a register has
+        private NumericType type;
+        // The registers below the variables and the stack below the
+        // expression, and the types currently on the stack including those,
+        // for the stack map frames at the end of branches
+        private Object[] frameLocals = new Object[0];
+        private List<Object> frameStack = new ArrayList<>();
+        private Label lastFrame;
+        // Branch targets of the conditionals, && and || in progress, and the
+        // shared subexpressions which were in registers before each of them
+        // branched. Those stored in a branch are forgotten after it, since
+        // they haven't been evaluated when it isn't taken.
+        private Deque<Label> branches = new ArrayDeque<>();
+        private Deque<Map<ASTNode, Integer>> savedCommonRegisters = new ArrayDeque<>();
+        // registers holding the let bindings in scope, which hide variables
+        // and constants of the same name
+        private Map<String, Integer> bindingRegisters = new HashMap<>();
 
-        FileOutputStream out = new FileOutputStream(name + ".class");
-        out.write(bytecode, 0, bytecode.length);
-        out.close();
-    }
+        public CodeGenerationVisitor(MethodVisitor mv,
+                                     Map<String, Integer> registers,
+                                     Map<String, Class<? extends Function>> functions,
+                                     Map<String, Double> constants,
+                                     Set<ASTNode> common,
+                                     PowerReduction powerReduction,
+                                     int firstFreeRegister)
+        {
+            this(mv, registers, functions, constants, common, powerReduction,
+                 firstFreeRegister, NumericType.DOUBLE);
+        }
+
+        public CodeGenerationVisitor(MethodVisitor mv,
+                                     Map<String, Integer> registers,
+                                     Map<String, Class<? extends Function>> functions,
+                                     Map<String, Double> constants,
+                                     Set<ASTNode> common,
+                                     PowerReduction powerReduction,
+                                     int firstFreeRegister,
+                                     NumericType type)
+        {
+            this.mv = mv;
+            this.registers = registers;
+            this.functions = functions;
+            this.constants = constants;
+            this.common = common;
+            this.commonRegisters = new HashMap<>();
+            this.powerReduction = powerReduction;
+            this.nextRegister = firstFreeRegister;
+            this.type = type;
+        }
+
+        // Number of registers used, including the ones holding shared
+        // subexpressions
+        public int getRegisterCount()
+        {
+            return nextRegister;
+        }
+
+        // Describe the method around the next walk: the types of the fixed
+        // registers below the first variable, each of which takes a single
+        // register, and of what's on the stack below the result
+        public void setFrame(Object[] locals, Object... stack)
+        {
+            frameLocals = locals;
+            frameStack = new ArrayList<>(Arrays.asList(stack));
+        }
+
+        private void pushFrameType(Object frameType)
+        {
+            frameStack.add(frameType);
+        }
+
+        private void popFrameTypes(int count)
+        {
+            for (int i = 0; i < count; i++) {
+                frameStack.remove(frameStack.size() - 1);
+            }
+        }
+
+        // Place a branch target along with its stack map frame
+        private void visitBranchTarget(Label label)
+        {
+            // Two frames can't share an offset, which would happen where
+            // two branches end at the same place
+            Label here = new Label();
+            mv.visitLabel(here);
+            if (lastFrame != null && lastFrame.getOffset() == here.getOffset()) {
+                mv.visitInsn(NOP);
+            }
+
+            // Registers which aren't in the map, such as the scratch
+            // registers, are only used within straight line code and are
+            // left out
+            Object[] types = new Object[nextRegister];
+            System.arraycopy(frameLocals, 0, types, 0, frameLocals.length);
+            for (int reg : registers.values()) {
+                types[reg] = type.getFrameType();
+            }
+            for (int reg : commonRegisters.values()) {
+                types[reg] = type.getFrameType();
+            }
+            for (int reg : bindingRegisters.values()) {
+                types[reg] = type.getFrameType();
+            }
+
+            // Longs and doubles take two registers but a single entry
+            List<Object> locals = new ArrayList<>();
+            int last = 0;
+            for (int reg = 0; reg < types.length; reg++) {
+                if (types[reg] == null) {
+                    locals.add(TOP);
+                    continue;
+                }
+
+                locals.add(types[reg]);
+                last = locals.size();
+                if (types[reg] == DOUBLE || types[reg] == LONG) {
+                    reg++;
+                }
+            }
+
+            mv.visitLabel(label);
+            mv.visitFrame(F_FULL, last, locals.subList(0, last).toArray(),
+                          frameStack.size(), frameStack.toArray());
+            lastFrame = label;
+        }
+
+        @Override
+        public void visit(NumberNode node)
+        {
+            // Numbers are loaded onto the stack as constants
+            type.push(mv, node.getNumber());
+            pushFrameType(type.getFrameType());
+        }
+
+        @Override
+        public void visit(VariableNode node)
+        {
+            pushFrameType(type.getFrameType());
+            Integer binding = bindingRegisters.get(node.getName());
+            if (binding != null) {
+                mv.visitVarInsn(type.getOpcode(ILOAD), binding);
+            } else if (constants.containsKey(node.getName())) {
+                // constants are translated into bytecode constants
+                double constant = constants.get(node.getName());
+                type.push(mv, constant);
+            } else {
+                // Variables have already been loaded into local registers
+                int reg = registers.get(node.getName());
+                mv.visitVarInsn(type.getOpcode(ILOAD), reg);
+            }
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            Class<? extends Function> func = functions.get(node.getName());
+            int arity = node.getArgumentCount();
+            String descriptor = callDescriptor(arity, type);
+
+            // Intrinsics may only have a target for some of the types, in
+            // which case the others go through the function's own overloads
+            Intrinsic intrinsic = func.getAnnotation(Intrinsic.class);
+            if (intrinsic != null && findIntrinsicTarget(intrinsic, arity, type) != null) {
+                // Skip the wrapper and call the target directly
+                mv.visitMethodInsn(INVOKESTATIC,
+                                   intrinsic.owner(),
+                                   intrinsic.name(),
+                                   descriptor,
+                                   false);
+            } else {
+                String name = func.getCanonicalName().replaceAll("\\.", "/");
+
+                mv.visitMethodInsn(INVOKESTATIC,
+                                   name,
+                                   "call",
+                                   descriptor,
+                                   false);
+            }
+            popFrameTypes(arity);
+            pushFrameType(type.getFrameType());
+
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(AddNode node)
+        {
+            mv.visitInsn(type.getOpcode(IADD));
+            popFrameTypes(1);
+
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(SubNode node)
+        {
+            mv.visitInsn(type.getOpcode(ISUB));
+            popFrameTypes(1);
+
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(MulNode node)
+        {
+            mv.visitInsn(type.getOpcode(IMUL));
+            popFrameTypes(1);
+
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(DivNode node)
+        {
+            mv.visitInsn(type.getOpcode(IDIV));
+            popFrameTypes(1);
+
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(ExpNode node)
+        {
+            if (isReducible(node)) {
+                // The scratch registers are shared by all exponentiations,
+                // since they're never live at the same time
+                if (scratchRegister == -1) {
+                    scratchRegister = nextRegister;
+                    nextRegister += powerReduction.getScratchRegisters();
+                }
+
+                powerReduction.generate(mv,
+                                        ((NumberNode)node.getRight()).getNumber(),
+                                        scratchRegister);
+            } else if (type == NumericType.LONG) {
+                // Integer powers need a method of their own
+                mv.visitMethodInsn(INVOKESTATIC,
+                                   "com/znaptag/expiler/NumericType",
+                                   "pow",
+                                   "(JJ)J",
+                                   false);
+                popFrameTypes(1);
+            } else {
+                // There's no opcode for exponentiation, so we call the static
+                // method Math.pow(base, exp). Floats are converted to double
+                // and back, the base already having been converted by
+                // enterChild.
+                if (type == NumericType.FLOAT) {
+                    mv.visitInsn(F2D);
+                }
+                mv.visitMethodInsn(INVOKESTATIC,
+                                   "java/lang/Math",
+                                   "pow",
+                                   "(DD)D",
+                                   false);
+                if (type == NumericType.FLOAT) {
+                    mv.visitInsn(D2F);
+                }
+                popFrameTypes(2);
+                pushFrameType(type.getFrameType());
+            }
+
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(ComparisonNode node)
+        {
+            type.compare(mv, node.getOperator());
+            type.fromInt(mv);
+            popFrameTypes(1);
+
+            storeCommon(node);
+        }
+
+        // Conditionals are compiled without branches if both branches are
+        // cheap, and && and || if their right operand is, which avoids
+        // mispredictions when the data doesn't favour one side. Otherwise
+        // only the branch which is taken is evaluated.
+        private boolean isBranchless(ASTNode node)
+        {
+            BranchCostVisitor cost = new BranchCostVisitor(functions, powerReduction, type);
+            for (int i = 1; i < node.getChildCount(); i++) {
+                cost.walk(node.getChild(i));
+            }
+            return cost.isCheap();
+        }
+
+        // Replace the value of a child on top of the stack with the int 1
+        // if it's non-zero and 0 otherwise. Comparisons and logical
+        // operators are 0 or 1 already.
+        private void truth(ASTNode child)
+        {
+            if (child instanceof ComparisonNode || child instanceof AndNode ||
+                child instanceof OrNode) {
+
+                type.toInt(mv);
+            } else {
+                type.truth(mv);
+            }
+            popFrameTypes(1);
+            pushFrameType(INTEGER);
+        }
+
+        @Override
+        public void visit(AndNode node)
+        {
+            logical(node, true);
+        }
+
+        @Override
+        public void visit(OrNode node)
+        {
+            logical(node, false);
+        }
+
+        private void logical(BinaryNode node, boolean and)
+        {
+            truth(node.getRight());
+            if (isBranchless(node)) {
+                // Both operands are ints on the stack
+                mv.visitInsn(and ? IAND : IOR);
+                popFrameTypes(1);
+                type.fromInt(mv);
+            } else {
+                // The right operand has been evaluated, so it decides
+                type.fromInt(mv);
+                popFrameTypes(1);
+                Label end = new Label();
+                mv.visitJumpInsn(GOTO, end);
+
+                // Jumped to when the left operand decides the result
+                commonRegisters = savedCommonRegisters.pop();
+                visitBranchTarget(branches.pop());
+                type.push(mv, and ? 0.0 : 1.0);
+                pushFrameType(type.getFrameType());
+
+                visitBranchTarget(end);
+            }
+            popFrameTypes(1);
+            pushFrameType(type.getFrameType());
+
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(ConditionalNode node)
+        {
+            if (isBranchless(node)) {
+                // With the mask and the bit patterns of both branches on the
+                // stack, compute b ^ ((a ^ b) & mask)
+                type.toBits(mv);
+                if (selectRegister == -1) {
+                    selectRegister = nextRegister;
+                    nextRegister += 2;
+                }
+                mv.visitVarInsn(type.getBitsOpcode(ISTORE), selectRegister);
+                mv.visitVarInsn(type.getBitsOpcode(ILOAD), selectRegister);
+                mv.visitInsn(type.getBitsOpcode(IXOR));
+                mv.visitInsn(type.getBitsOpcode(IAND));
+                mv.visitVarInsn(type.getBitsOpcode(ILOAD), selectRegister);
+                mv.visitInsn(type.getBitsOpcode(IXOR));
+                type.fromBits(mv);
+                popFrameTypes(3);
+                pushFrameType(type.getFrameType());
+            } else {
+                commonRegisters = savedCommonRegisters.pop();
+                visitBranchTarget(branches.pop());
+            }
+
+            storeCommon(node);
+        }
+
+        // The body is on the stack. Shared subtrees which refer to the
+        // bindings can't be reused once they're out of scope.
+        @Override
+        public void visit(LetNode node)
+        {
+            List<String> names = node.getNames();
+            bindingRegisters.keySet().removeAll(names);
+
+            Iterator<ASTNode> it = commonRegisters.keySet().iterator();
+            while (it.hasNext()) {
+                if (refersTo(it.next(), names)) {
+                    it.remove();
+                }
+            }
+        }
+
+        // x < y ? x : y and the like are the minimum or maximum of x and y.
+        // That's exact for longs, but not for floating point numbers, where
+        // Math.min and Math.max treat NaN and -0.0 differently, so they're
+        // only used for relaxed math.
+        private String findMinMax(ConditionalNode node)
+        {
+            if (!(node.getCondition() instanceof ComparisonNode) ||
+                (type != NumericType.LONG &&
+                 (powerReduction == null || !powerReduction.isRelaxed()))) {
+
+                return null;
+            }
+
+            ComparisonNode condition = (ComparisonNode)node.getCondition();
+            boolean less;
+            switch (condition.getOperator()) {
+                case LESS:
+                case LESS_EQUAL:
+                    less = true;
+                    break;
+                case GREATER:
+                case GREATER_EQUAL:
+                    less = false;
+                    break;
+                default:
+                    return null;
+            }
+
+            ASTNode x = condition.getLeft();
+            ASTNode y = condition.getRight();
+            if (node.getWhenTrue().equals(x) && node.getWhenFalse().equals(y)) {
+                return less ? "min" : "max";
+            }
+            if (node.getWhenTrue().equals(y) && node.getWhenFalse().equals(x)) {
+                return less ? "max" : "min";
+            }
+
+            return null;
+        }
+
+        // Constant exponents can often be replaced by a few multiplications,
+        // in which case the exponent itself is never pushed
+        private boolean isReducible(ExpNode node)
+        {
+            return powerReduction != null &&
+                   node.getRight() instanceof NumberNode &&
+                   powerReduction.canReduce(((NumberNode)node.getRight()).getNumber());
+        }
+
+        @Override
+        protected boolean enterChild(ASTNode parent, int index)
+        {
+            if (isLogical(parent)) {
+                enterBranch(parent, index);
+                return true;
+            }
+            if (index > 0 && parent instanceof LetNode) {
+                // The value of the previous binding is on top of the stack
+                int reg = nextRegister;
+                nextRegister += type.getSize();
+
+                mv.visitVarInsn(type.getOpcode(ISTORE), reg);
+                popFrameTypes(1);
+                bindingRegisters.put(((LetNode)parent).getName(index - 1), reg);
+                return true;
+            }
+            if (index != 1 || !(parent instanceof ExpNode)) {
+                return true;
+            }
+            if (isReducible((ExpNode)parent)) {
+                return false;
+            }
+
+            // The base of a float power is on top of the stack now
+            if (type == NumericType.FLOAT) {
+                mv.visitInsn(F2D);
+                popFrameTypes(1);
+                pushFrameType(DOUBLE);
+            }
+            return true;
+        }
+
+        // Generate the code between the children of a conditional, && or ||
+        private void enterBranch(ASTNode parent, int index)
+        {
+            boolean branchless = isBranchless(parent);
+            if (index == 1) {
+                // The condition or left operand is on top of the stack
+                truth(parent.getChild(0));
+                if (branchless) {
+                    if (parent instanceof ConditionalNode) {
+                        type.mask(mv);
+                        popFrameTypes(1);
+                        pushFrameType(type.getBitsFrameType());
+                    }
+                    return;
+                }
+
+                Label target = new Label();
+                mv.visitJumpInsn(parent instanceof OrNode ? IFNE : IFEQ, target);
+                popFrameTypes(1);
+                branches.push(target);
+                savedCommonRegisters.push(new HashMap<>(commonRegisters));
+            }
+            else if (index == 2) {
+                if (branchless) {
+                    type.toBits(mv);
+                    popFrameTypes(1);
+                    pushFrameType(type.getBitsFrameType());
+                    return;
+                }
+
+                // Skip the second branch after the first one
+                Label end = new Label();
+                mv.visitJumpInsn(GOTO, end);
+                popFrameTypes(1);
+
+                commonRegisters = new HashMap<>(savedCommonRegisters.peek());
+                visitBranchTarget(branches.pop());
+                branches.push(end);
+            }
+        }
+
+        // If the subtree has already been evaluated, load it from its
+        // register instead of generating it again
+        @Override
+        protected boolean enter(ASTNode node)
+        {
+            Integer reg = commonRegisters.get(node);
+            if (reg != null) {
+                mv.visitVarInsn(type.getOpcode(ILOAD), reg);
+                pushFrameType(type.getFrameType());
+                return false;
+            }
+
+            String minMax = node instanceof ConditionalNode ?
+                            findMinMax((ConditionalNode)node) : null;
+            if (minMax != null) {
+                ComparisonNode condition = (ComparisonNode)((ConditionalNode)node).getCondition();
+                walk(condition.getLeft());
+                walk(condition.getRight());
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", minMax,
+                                   callDescriptor(2, type), false);
+                popFrameTypes(1);
+
+                storeCommon(node);
+                return false;
+            }
+
+            return true;
+        }
+
+        // After the first evaluation of a shared subtree, store the result
+        // in a fresh register and push it back onto the stack
+        private void storeCommon(ASTNode node)
+        {
+            if (!common.contains(node)) {
+                return;
+            }
+
+            int reg = nextRegister;
+            nextRegister += type.getSize();
+
+            mv.visitVarInsn(type.getOpcode(ISTORE), reg);
+            mv.visitVarInsn(type.getOpcode(ILOAD), reg);
+            commonRegisters.put(node, reg);
+        }
+    }
+
+    // Custom class loaded that we use to define and load the class
+    public static class MyClassLoader extends ClassLoader
+    {
+        public Class defineClass(String name, byte[] b)
+        {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    // Compiles a range of expressions for compileBulk, splitting it in half
+    // until it's small enough to compile on a single thread
+    private class BulkCompileTask extends RecursiveAction
+    {
+        private static final int LEAF_SIZE = 8;
+
+        private String prefix;
+        private List<String> expressions;
+        private VariableLayout layout;
+        private CompilationResult[] results;
+        private int from;
+        private int to;
+
+        public BulkCompileTask(String prefix,
+                               List<String> expressions,
+                               VariableLayout layout,
+                               CompilationResult[] results,
+                               int from,
+                               int to)
+        {
+            this.prefix = prefix;
+            this.expressions = expressions;
+            this.layout = layout;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > LEAF_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BulkCompileTask(prefix, expressions, layout, results, from, middle),
+                          new BulkCompileTask(prefix, expressions, layout, results, middle, to));
+                return;
+            }
+
+            for (int i = from; i < to; i++) {
+                String source = expressions.get(i);
+                try {
+                    CompiledExpression expr;
+                    if (layout == null) {
+                        expr = compile(prefix + i, source);
+                    } else {
+                        expr = compile(prefix + i, source, layout);
+                    }
+                    results[i] = new CompilationResult(source, expr);
+                }
+                catch (IOException | Parser.ParseException | CompilationException |
+                       RuntimeException e) {
+                    results[i] = new CompilationResult(source, e);
+                }
+            }
+        }
+    }
+
+    public static class CompilationException extends Exception
+    {
+        public CompilationException(String message)
+        {
+            super(message);
+        }
+    }
+
+    // The registered constants and functions. A registry is never modified
+    // once created: registering something replaces it with an updated copy.
+    // Each compilation reads the registry once and works from that snapshot,
+    // so compiling on several threads while registering is safe.
+    private static class Registry
+    {
+        final Map<String, Class<? extends Function>> functions;
+        final Map<String, Double> constants;
+        final Set<String> pureFunctions;
+
+        Registry(Map<String, Class<? extends Function>> functions,
+                 Map<String, Double> constants,
+                 Set<String> pureFunctions)
+        {
+            this.functions = Collections.unmodifiableMap(functions);
+            this.constants = Collections.unmodifiableMap(constants);
+            this.pureFunctions = Collections.unmodifiableSet(pureFunctions);
+        }
+    }
+
+    // Identifies the code generator. Bytecode generated by a different
+    // version may differ, so this has to be changed along with the code
+    // generation, to invalidate classes cached on disk by BytecodeCache.
+    public static final int VERSION = 4;
+
+    private volatile Registry registry;
+    private volatile ClassDefiner classDefiner;
+    private volatile boolean optimize;
+    private volatile boolean relaxedMath;
+    private AtomicLong removedNodes;
+    private List<CompilationListener> listeners;
+
+    public Compiler()
+    {
+        registry = new Registry(new HashMap<String, Class<? extends Function>>(),
+                                new HashMap<String, Double>(),
+                                new HashSet<String>());
+        optimize = true;
+        relaxedMath = false;
+        removedNodes = new AtomicLong();
+        listeners = new CopyOnWriteArrayList<>();
+        classDefiner = new ClassLoaderDefiner();
+    }
+
+    // Select how compiled classes are defined. Defaults to one class loader
+    // per expression.
+    public void setClassDefiner(ClassDefiner classDefiner)
+    {
+        this.classDefiner = classDefiner;
+    }
+
+    public ClassDefiner getClassDefiner()
+    {
+        return classDefiner;
+    }
+
+    // Report the statistics of every expression compiled from now on. This
+    // covers compile, compileAll, compileBuffers and compileBulk.
+    public void addCompilationListener(CompilationListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeCompilationListener(CompilationListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    private void fireCompiled(CompilationStatistics statistics)
+    {
+        for (CompilationListener listener : listeners) {
+            listener.compiled(statistics);
+        }
+    }
+
+    private void fireFailed(CompilationStatistics statistics, Exception error)
+    {
+        for (CompilationListener listener : listeners) {
+            listener.failed(statistics, error);
+        }
+    }
+
+    // Number of compiled classes which haven't been unloaded yet, across all
+    // compilers. Useful for keeping an eye on metaspace usage.
+    public static long getLiveClassCount()
+    {
+        return ClassTracker.getLiveCount();
+    }
+
+    // Total number of classes defined by all compilers
+    public static long getDefinedClassCount()
+    {
+        return ClassTracker.getDefinedCount();
+    }
+
+    public synchronized void registerConstant(String name, double value)
+    {
+        Map<String, Double> constants = new HashMap<>(registry.constants);
+        constants.put(name, value);
+
+        registry = new Registry(registry.functions, constants, registry.pureFunctions);
+    }
+
+    public void registerFunction(String name, Class<? extends Function> func)
+    {
+        registerFunction(name, func, false);
+    }
+
+    // Register a function. A pure function always returns the same result
+    // for the same argument and has no side effects, which allows the
+    // compiler to evaluate calls with constant arguments at compile time.
+    public void registerFunction(String name, Class<? extends Function> func, boolean pure)
+    {
+        // A function may overload call for different numbers of arguments,
+        // and for expressions compiled as floats or longs. Every overload
+        // takes and returns a single type, and there has to be at least one
+        // taking doubles.
+        Method[] methods = func.getMethods();
+        boolean found = false;
+        for (Method callMethod : methods) {
+            if (!"call".equals(callMethod.getName())) {
+                continue;
+            }
+
+            if ((callMethod.getModifiers() & Modifier.STATIC) == 0) {
+                throw new IllegalArgumentException("Call method must be static for " +
+                                                   "function " + name);
+            }
+            if ((callMethod.getModifiers() & Modifier.PUBLIC) == 0) {
+                throw new IllegalArgumentException("Call method must be public for " +
+                                                   "function " + name);
+            }
+
+            Class<?> returnType = callMethod.getReturnType();
+            NumericType type = NumericType.forClass(returnType);
+            if (type == null) {
+                throw new IllegalArgumentException("Call method must return double, " +
+                                                   "float or long for function " + name);
+            }
+            Class<?>[] params = callMethod.getParameterTypes();
+            for (Class<?> param : params) {
+                if (param != returnType) {
+                    throw new IllegalArgumentException("Call method must only take " +
+                                                       returnType + "s for function " +
+                                                       name);
+                }
+            }
+
+            if (type != NumericType.DOUBLE) {
+                continue;
+            }
+
+            // Make sure that intrinsics have a matching target. Overloads
+            // for other types are only forwarded when the target has one.
+            Intrinsic intrinsic = func.getAnnotation(Intrinsic.class);
+            if (intrinsic != null &&
+                findIntrinsicTarget(intrinsic, params.length, type) == null) {
+
+                throw new IllegalArgumentException("Intrinsic " + intrinsic.owner() +
+                                                   "." + intrinsic.name() +
+                                                   " not found for function " + name);
+            }
+
+            found = true;
+        }
+
+        if (!found) {
+            throw new IllegalArgumentException("No call method taking doubles found " +
+                                               "for function " + name);
+        }
+
+        synchronized (this) {
+            Map<String, Class<? extends Function>> functions =
+                new HashMap<>(registry.functions);
+            Set<String> pureFunctions = new HashSet<>(registry.pureFunctions);
+
+            functions.put(name, func);
+            if (pure) {
+                pureFunctions.add(name);
+            } else {
+                pureFunctions.remove(name);
+            }
+
+            registry = new Registry(functions, registry.constants, pureFunctions);
+        }
+    }
+
+    // Register the standard constants and functions
+    public void registerBuiltins()
+    {
+        registerConstant("PI", Math.PI);
+        registerConstant("E", Math.E);
+
+        registerFunction("sqrt", SqrtFunction.class, true);
+        registerFunction("sin", SinFunction.class, true);
+        registerFunction("cos", CosFunction.class, true);
+        registerFunction("tan", TanFunction.class, true);
+        registerFunction("asin", ArcSinFunction.class, true);
+        registerFunction("acos", ArcCosFunction.class, true);
+        registerFunction("atan", ArcTanFunction.class, true);
+        registerFunction("exp", ExpFunction.class, true);
+        registerFunction("log", LogFunction.class, true);
+        registerFunction("ln", LogFunction.class, true);
+        registerFunction("abs", AbsFunction.class, true);
+        registerFunction("min", MinFunction.class, true);
+        registerFunction("max", MaxFunction.class, true);
+        registerFunction("atan2", Atan2Function.class, true);
+        registerFunction("hypot", HypotFunction.class, true);
+        registerFunction("fma", FmaFunction.class, true);
+    }
+
+    // The constants registered so far. The map is a snapshot, and won't
+    // reflect later registrations.
+    public Map<String, Double> getConstants()
+    {
+        return registry.constants;
+    }
+
+    // The functions registered so far, as a snapshot
+    public Map<String, Class<? extends Function>> getFunctions()
+    {
+        return registry.functions;
+    }
+
+    public boolean isPureFunction(String name)
+    {
+        return registry.pureFunctions.contains(name);
+    }
+
+    public void setOptimizationEnabled(boolean optimize)
+    {
+        this.optimize = optimize;
+    }
+
+    public boolean isOptimizationEnabled()
+    {
+        return optimize;
+    }
+
+    // Allow optimizations which may give different results than Math.pow for
+    // some inputs. See PowerReduction for details.
+    public void setRelaxedMath(boolean relaxedMath)
+    {
+        this.relaxedMath = relaxedMath;
+    }
+
+    public boolean isRelaxedMath()
+    {
+        return relaxedMath;
+    }
+
+    // Total number of nodes removed by the optimizer
+    public long getRemovedNodeCount()
+    {
+        return removedNodes.get();
+    }
+
+    // Fold constants and simplify the tree. This is done automatically by
+    // compileToBytecode, unless optimization has been disabled.
+    public ASTNode optimize(ASTNode tree)
+    {
+        return optimize(tree, registry);
+    }
+
+    private ASTNode optimize(ASTNode tree, Registry registry)
+    {
+        Map<String, Class<? extends Function>> pure = new HashMap<>();
+        for (String name : registry.pureFunctions) {
+            pure.put(name, registry.functions.get(name));
+        }
+
+        Optimizer optimizer = new Optimizer(registry.constants, pure);
+        ASTNode optimized = optimizer.optimize(tree);
+        removedNodes.addAndGet(optimizer.getRemovedNodes());
+
+        return optimized;
+    }
+
+    // Determine the default variable layout of an expression: every variable
+    // which isn't a registered constant, in order of first appearance
+    public VariableLayout getVariableLayout(ASTNode tree)
+    {
+        FirstPassVisitor firstPass = new FirstPassVisitor();
+        firstPass.walk(tree);
+
+        Map<String, Double> constants = registry.constants;
+        List<String> names = new ArrayList<>();
+        for (String var : firstPass.getVariables()) {
+            if (!constants.containsKey(var)) {
+                names.add(var);
+            }
+        }
+
+        return new VariableLayout(names);
+    }
+
+    public byte[] compileToBytecode(String name, ASTNode tree)
+    throws CompilationException
+    {
+        return compileToBytecode(name, tree, getVariableLayout(tree));
+    }
+
+    public byte[] compileToBytecode(String name, ASTNode tree, VariableLayout layout)
+    throws CompilationException
+    {
+        return compileToBytecode(name, tree, layout, NumericType.DOUBLE);
+    }
+
+    // Compile an expression which is evaluated in the given type. The class
+    // implements CompiledExpression, CompiledFloatExpression or
+    // CompiledLongExpression, respectively.
+    public byte[] compileToBytecode(String name,
+                                    ASTNode tree,
+                                    VariableLayout layout,
+                                    NumericType type)
+    throws CompilationException
+    {
+        return compileToBytecode(name, tree, layout, type, new CompilationStatistics(name));
+    }
+
+    private byte[] compileToBytecode(String name,
+                                     ASTNode tree,
+                                     VariableLayout layout,
+                                     NumericType type,
+                                     CompilationStatistics statistics)
+    throws CompilationException
+    {
+        Registry registry = this.registry;
+        boolean optimize = this.optimize;
+
+        // The optimizer folds constants in double precision. For floats that
+        // only rounds the folded result once, but it doesn't agree with long
+        // arithmetic (7/2 would be 3.5), so long expressions aren't folded.
+        long start = System.nanoTime();
+        if (optimize && type != NumericType.LONG) {
+            tree = optimize(tree, registry);
+        }
+        long optimized = System.nanoTime();
+        statistics.optimizeTime = optimized - start;
+
+        // Find all variables used by the expression, as well as the max stack
+        // depth
+        FirstPassVisitor firstPass = new FirstPassVisitor();
+        firstPass.walk(tree);
+        statistics.nodeCount = firstPass.getNodeCount();
+        statistics.maxStackDepth = firstPass.getMaxStackDepth();
+
+        checkFunctions(registry, firstPass.getFunctions(), type);
+        if (type == NumericType.LONG) {
+            checkIntegers(registry, tree);
+        }
+        List<String> variables = resolveVariables(registry, firstPass.getVariables(), layout);
+        long checked = System.nanoTime();
+        statistics.firstPassTime = checked - optimized;
+
+        // Find subexpressions which can be computed once and then reused
+        Set<ASTNode> common = Collections.emptySet();
+        PowerReduction powerReduction = null;
+        if (optimize) {
+            CommonSubexpressionVisitor cse =
+                new CommonSubexpressionVisitor(registry.pureFunctions);
+            cse.walk(tree);
+            common = cse.getCommonSubexpressions();
+
+            powerReduction = new PowerReduction(relaxedMath, type);
+        }
+        long analyzed = System.nanoTime();
+        statistics.optimizeTime += analyzed - checked;
+
+        String className = "com/znaptag/expiler/" + name;
+
+        // Setup class header
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(V1_7, // java version
+                 ACC_PUBLIC, // flags, ACC_PUBLIC means public access
+                 className, // qualified name of new class
+                 null,
+                 "java/lang/Object", // parent class
+                 new String[] { type.getInterfaceName() } // implemented interfaces
+                 );
+
+        generateConstructor(cw);
+        statistics.computeSize =
+            generateCompute(cw, className, registry, tree, layout, variables, common,
+                            powerReduction, firstPass.getMaxStackDepth(), type);
+        statistics.batchSize =
+            generateComputeBatch(cw, className, registry, tree, layout, variables,
+                                 common, powerReduction, firstPass.getMaxStackDepth(),
+                                 type);
+        generateMapAdapter(cw, className, layout, variables, type);
+
+        // Finish class and retrieve byte code
+        cw.visitEnd();
+
+        byte[] bytecode;
+        try {
+            bytecode = cw.toByteArray();
+        }
+        catch (RuntimeException e) {
+            // asm refuses to generate methods larger than the 64 KB the
+            // class file format allows
+            throw new CompilationException("Expression is too large to compile: " +
+                                           e.getMessage());
+        }
+        statistics.generateTime = System.nanoTime() - analyzed;
+        statistics.bytecodeSize = bytecode.length;
+
+        return bytecode;
+    }
+
+    // Make sure that every function called is known, and takes the number of
+    // arguments it's called with
+    private static void checkFunctions(Registry registry,
+                                       Map<String, Set<Integer>> foundFunctions)
+    throws CompilationException
+    {
+        checkFunctions(registry, foundFunctions, NumericType.DOUBLE);
+    }
+
+    // Same, for arguments of the given type, which may also be handled by
+    // the target of an intrinsic
+    private static void checkFunctions(Registry registry,
+                                       Map<String, Set<Integer>> foundFunctions,
+                                       NumericType type)
+    throws CompilationException
+    {
+        for (Map.Entry<String, Set<Integer>> entry : foundFunctions.entrySet()) {
+            String functionName = entry.getKey();
+            Class<? extends Function> func = registry.functions.get(functionName);
+            if (func == null) {
+                throw new CompilationException("Function " + functionName +
+                                               " is not known.");
+            }
+
+            Intrinsic intrinsic = func.getAnnotation(Intrinsic.class);
+            for (int arity : entry.getValue()) {
+                if (findCallMethod(func, arity, type) != null ||
+                    (intrinsic != null && findIntrinsicTarget(intrinsic, arity, type) != null)) {
+
+                    continue;
+                }
+
+                if (type == NumericType.DOUBLE) {
+                    throw new CompilationException("Function " + functionName +
+                                                   " does not take " + arity +
+                                                   " arguments.");
+                }
+                throw new CompilationException("Function " + functionName +
+                                               " does not take " + arity + " " +
+                                               type + " arguments.");
+            }
+        }
+    }
+
+    // Long expressions can only contain integers, since there's no way to
+    // evaluate something like x * 0.5 in long arithmetic
+    private static void checkIntegers(Registry registry, ASTNode tree)
+    throws CompilationException
+    {
+        IntegerCheckVisitor check = new IntegerCheckVisitor(registry.constants);
+        check.walk(tree);
+
+        if (check.getInexact() != null) {
+            throw new CompilationException(check.getInexact() + " is not an integer.");
+        }
+    }
+
+    // Constants are inlined, so only the remaining variables need a slot
+    private static List<String> resolveVariables(Registry registry,
+                                                 Set<String> found,
+                                                 VariableLayout layout)
+    throws CompilationException
+    {
+        List<String> variables = new ArrayList<>();
+        for (String var : found) {
+            if (registry.constants.containsKey(var)) {
+                continue;
+            }
+            if (!layout.contains(var)) {
+                throw new CompilationException("Variable " + var +
+                                               " is not part of the layout.");
+            }
+            variables.add(var);
+        }
+
+        return variables;
+    }
+
+    private void generateConstructor(ClassWriter cw)
+    {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC,
+                                          "<init>", // java internal name of constructors
+                                          "()V", // return type is void, no parameters needed
+                                          null,
+                                          null);
+
+            // load "this" reference from register 0
+            mv.visitVarInsn(ALOAD, 0);
+            // invoke java.lang.Object constructor
+            mv.visitMethodInsn(INVOKESPECIAL,
+                               "java/lang/Object",
+                               "<init>",
+                               "()V",
+                               false);
+            // return void
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(2, 2);
+            mv.visitEnd();
+    }
+
+    // Generates compute(double[]), or its float or long equivalent, and
+    // returns the size of its code
+    private int generateCompute(ClassWriter cw,
+                                 String className,
+                                 Registry registry,
+                                 ASTNode tree,
+                                 VariableLayout layout,
+                                 List<String> variables,
+                                 Set<ASTNode> common,
+                                 PowerReduction powerReduction,
+                                 int maxStackDepth,
+                                 NumericType type)
+    {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC,
+                                          "compute", // implement the compute method
+                                          // e.g. ([D)D, accepting a double[] and returning a double
+                                          "(" + type.getArrayDescriptor() + ")" +
+                                          type.getDescriptor(),
+                                          null,
+                                          null);
+            mv.visitCode();
+
+            // Load all variables from the passed array into registers
+
+            // Used to keep track of the number of local variables used
+            int regCounter = 2;
+
+            // Lookup table to translate var names to register indices
+            Map<String, Integer> registers = new HashMap<>();
+            for (String var : variables) {
+                // Load the array passed to the function onto the stack
+                mv.visitVarInsn(ALOAD, 1);
+                // Push the slot assigned to the variable by the layout
+                pushInt(mv, layout.indexOf(var));
+                // Load the value stored at that slot
+                mv.visitInsn(type.getOpcode(IALOAD));
+                // Store it into a register
+                mv.visitVarInsn(type.getOpcode(ISTORE), regCounter);
+
+                registers.put(var, regCounter);
+
+                // doubles and longs occupy two registers
+                regCounter += type.getSize();
+            }
+
+            // Walk the AST to generate the code for the actual calculation
+            CodeGenerationVisitor codegen =
+                new CodeGenerationVisitor(mv, registers, registry.functions,
+                                          registry.constants,
+                                          common, powerReduction, regCounter, type);
+            codegen.setFrame(new Object[] { className, type.getArrayDescriptor() });
+            codegen.walk(tree);
+
+            // Return the result
+            mv.visitInsn(type.getOpcode(IRETURN));
+            Label end = new Label();
+            mv.visitLabel(end);
+            // Set stack parameters
+            mv.visitMaxs(2*maxStackDepth, codegen.getRegisterCount()+1);
+            mv.visitEnd();
+
+        return end.getOffset();
+    }
+
+    // Generates computeBatch(double[][] columns, double[] out, int from, int to)
+    // which evaluates the expression for every row in [from, to). Having the
+    // loop inside the generated class means there's a single call per batch
+    // rather than one per row, and the JIT gets to optimize the loop together
+    // with this specific expression. Returns the size of the code.
+    private int generateComputeBatch(ClassWriter cw,
+                                      String className,
+                                      Registry registry,
+                                      ASTNode tree,
+                                      VariableLayout layout,
+                                      List<String> variables,
+                                      Set<ASTNode> common,
+                                      PowerReduction powerReduction,
+                                      int maxStackDepth,
+                                      NumericType type)
+    {
+        String arrayDescriptor = type.getArrayDescriptor();
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC,
+                                          "computeBatch",
+                                          "([" + arrayDescriptor + arrayDescriptor + "II)V",
+                                          null,
+                                          null);
+            mv.visitCode();
+
+            // Registers 0-4 hold this, columns, out, from and to. The loop
+            // counter goes into register 5.
+            int counterReg = 5;
+            int regCounter = 6;
+
+            // Fetch the column of each variable once, ahead of the loop
+            Map<String, Integer> columnRegisters = new HashMap<>();
+            for (String var : variables) {
+                mv.visitVarInsn(ALOAD, 1);
+                pushInt(mv, layout.indexOf(var));
+                mv.visitInsn(AALOAD);
+                mv.visitVarInsn(ASTORE, regCounter);
+
+                columnRegisters.put(var, regCounter);
+                regCounter++;
+            }
+
+            // The stack map frame at the loop header, which is the same on
+            // entry and on the back edge
+            Object[] frameLocals = new Object[regCounter];
+            frameLocals[0] = className;
+            frameLocals[1] = "[" + arrayDescriptor;
+            frameLocals[2] = arrayDescriptor;
+            frameLocals[3] = INTEGER;
+            frameLocals[4] = INTEGER;
+            frameLocals[5] = INTEGER;
+            for (int i = 6; i < regCounter; i++) {
+                frameLocals[i] = arrayDescriptor;
+            }
+
+            // i = from
+            mv.visitVarInsn(ILOAD, 3);
+            mv.visitVarInsn(ISTORE, counterReg);
+
+            Label loopStart = new Label();
+            Label loopEnd = new Label();
+
+            // Exit the loop once i >= to
+            mv.visitLabel(loopStart);
+            mv.visitFrame(F_FULL, frameLocals.length, frameLocals, 0, new Object[0]);
+            mv.visitVarInsn(ILOAD, counterReg);
+            mv.visitVarInsn(ILOAD, 4);
+            mv.visitJumpInsn(IF_ICMPGE, loopEnd);
+
+            // Load the values of the current row into registers
+            Map<String, Integer> registers = new HashMap<>();
+            for (String var : variables) {
+                mv.visitVarInsn(ALOAD, columnRegisters.get(var));
+                mv.visitVarInsn(ILOAD, counterReg);
+                mv.visitInsn(type.getOpcode(IALOAD));
+                mv.visitVarInsn(type.getOpcode(ISTORE), regCounter);
+
+                registers.put(var, regCounter);
+                regCounter += type.getSize();
+            }
+
+            // Push the output array and index, so that the result can be
+            // stored straight away
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitVarInsn(ILOAD, counterReg);
+
+            CodeGenerationVisitor codegen =
+                new CodeGenerationVisitor(mv, registers, registry.functions,
+                                          registry.constants,
+                                          common, powerReduction, regCounter, type);
+            codegen.setFrame(frameLocals, arrayDescriptor, INTEGER);
+            codegen.walk(tree);
+
+            // out[i] = result
+            mv.visitInsn(type.getOpcode(IASTORE));
+
+            // i++ and jump back
+            mv.visitIincInsn(counterReg, 1);
+            mv.visitJumpInsn(GOTO, loopStart);
+
+            mv.visitLabel(loopEnd);
+            mv.visitFrame(F_FULL, frameLocals.length, frameLocals, 0, new Object[0]);
+            mv.visitInsn(RETURN);
+            Label end = new Label();
+            mv.visitLabel(end);
+
+            // The output array and index stay on the stack below the
+            // expression
+            mv.visitMaxs(2*maxStackDepth + 2, codegen.getRegisterCount());
+            mv.visitEnd();
+
+        return end.getOffset();
+    }
+
+    // Generates compute(Map), which copies the variables into an array and
+    // delegates to compute(double[]), or its float or long equivalent
+    private void generateMapAdapter(ClassWriter cw,
+                                    String className,
+                                    VariableLayout layout,
+                                    List<String> variables,
+                                    NumericType type)
+    {
+        String boxed = type.getBoxedName();
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC,
+                                          "compute",
+                                          // e.g. (Ljava/util/Map;)D, accepting a java.util.Map and returning a double
+                                          "(Ljava/util/Map;)" + type.getDescriptor(),
+                                          null,
+                                          null);
+            mv.visitCode();
+
+            // Push "this" for the delegating call at the end
+            mv.visitVarInsn(ALOAD, 0);
+
+            // Allocate the variable array
+            pushInt(mv, layout.size());
+            mv.visitIntInsn(NEWARRAY, type.getArrayType());
+
+            for (String var : variables) {
+                // Duplicate the array reference, since the store consumes it
+                mv.visitInsn(DUP);
+                pushInt(mv, layout.indexOf(var));
+                // Load the map passed to the function onto the stack
+                mv.visitVarInsn(ALOAD, 1);
+                // Put the name of the variable onto the stack, as a constant
+                mv.visitLdcInsn(var);
+                // Invoke the Map.get method to push the variable on stack
+                mv.visitMethodInsn(INVOKEINTERFACE,
+                                   "java/util/Map",
+                                   "get",
+                                   "(Ljava/lang/Object;)Ljava/lang/Object;",
+                                   true);
+                // Assert that we're dealing with the wrapper of the type
+                mv.visitTypeInsn(CHECKCAST, boxed);
+                // Perform unboxing
+                mv.visitMethodInsn(INVOKEVIRTUAL,
+                                   boxed,
+                                   type + "Value",
+                                   "()" + type.getDescriptor(),
+                                   false);
+                // Store it into the array
+                mv.visitInsn(type.getOpcode(IASTORE));
+            }
+
+            // Invoke compute on the array on ourselves
+            mv.visitMethodInsn(INVOKEVIRTUAL,
+                               className,
+                               "compute",
+                               "(" + type.getArrayDescriptor() + ")" + type.getDescriptor(),
+                               false);
+            mv.visitInsn(type.getOpcode(IRETURN));
+            // this, array, array, index and a double
+            mv.visitMaxs(6, 2);
+            mv.visitEnd();
+    }
+
+    // Determine the default variable layout of a set of expressions: every
+    // variable which isn't a registered constant, in order of first
+    // appearance across all of them
+    public VariableLayout getVariableLayout(Map<String, ASTNode> outputs)
+    {
+        Set<String> names = new LinkedHashSet<>();
+        for (ASTNode tree : outputs.values()) {
+            names.addAll(getVariableLayout(tree).getNames());
+        }
+
+        return new VariableLayout(names);
+    }
+
+    // Compile a set of named expressions into a single class extending
+    // CompiledExpressionSet. The outputs are stored in iteration order of the
+    // map, so pass a LinkedHashMap to control the slots.
+    public byte[] compileAllToBytecode(String name, Map<String, ASTNode> outputs,
+                                       VariableLayout layout)
+    throws CompilationException
+    {
+        return compileAllToBytecode(name, outputs, layout, new CompilationStatistics(name));
+    }
+
+    private byte[] compileAllToBytecode(String name,
+                                        Map<String, ASTNode> outputs,
+                                        VariableLayout layout,
+                                        CompilationStatistics statistics)
+    throws CompilationException
+    {
+        Registry registry = this.registry;
+        boolean optimize = this.optimize;
+
+        long start = System.nanoTime();
+        List<ASTNode> trees = new ArrayList<>();
+        for (ASTNode tree : outputs.values()) {
+            trees.add(optimize ? optimize(tree, registry) : tree);
+        }
+        long optimized = System.nanoTime();
+        statistics.optimizeTime = optimized - start;
+
+        // Walk each tree with a fresh visitor, since the stack is empty at the
+        // start of every output
+        Set<String> foundVariables = new LinkedHashSet<>();
+        Map<String, Set<Integer>> foundFunctions = new HashMap<>();
+        int maxStackDepth = 2;
+        for (ASTNode tree : trees) {
+            FirstPassVisitor firstPass = new FirstPassVisitor();
+            firstPass.walk(tree);
+
+            foundVariables.addAll(firstPass.getVariables());
+            for (Map.Entry<String, Set<Integer>> entry : firstPass.getFunctions().entrySet()) {
+                Set<Integer> arities = foundFunctions.get(entry.getKey());
+                if (arities == null) {
+                    arities = new HashSet<>();
+                    foundFunctions.put(entry.getKey(), arities);
+                }
+                arities.addAll(entry.getValue());
+            }
+            maxStackDepth = Math.max(maxStackDepth, firstPass.getMaxStackDepth());
+            statistics.nodeCount += firstPass.getNodeCount();
+        }
+        statistics.maxStackDepth = maxStackDepth;
+
+        checkFunctions(registry, foundFunctions);
+        List<String> variables = resolveVariables(registry, foundVariables, layout);
+        long checked = System.nanoTime();
+        statistics.firstPassTime = checked - optimized;
+
+        // A single visitor sees all trees in the order they're generated, so
+        // subexpressions are shared between outputs as well as within them
+        Set<ASTNode> common = Collections.emptySet();
+        PowerReduction powerReduction = null;
+        if (optimize) {
+            CommonSubexpressionVisitor cse =
+                new CommonSubexpressionVisitor(registry.pureFunctions);
+            for (ASTNode tree : trees) {
+                cse.walk(tree);
+            }
+            common = cse.getCommonSubexpressions();
+
+            powerReduction = new PowerReduction(relaxedMath);
+        }
+        long analyzed = System.nanoTime();
+        statistics.optimizeTime += analyzed - checked;
+
+        String className = "com/znaptag/expiler/" + name;
+        String superName = "com/znaptag/expiler/CompiledExpressionSet";
+        String constructorDesc = "(Lcom/znaptag/expiler/VariableLayout;" +
+                                 "Lcom/znaptag/expiler/VariableLayout;)V";
+
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(V1_7,
+                 ACC_PUBLIC,
+                 className,
+                 null,
+                 superName,
+                 null);
+
+        // The constructor just passes the layouts on to the super class
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC,
+                                          "<init>",
+                                          constructorDesc,
+                                          null,
+                                          null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitMethodInsn(INVOKESPECIAL,
+                               superName,
+                               "<init>",
+                               constructorDesc,
+                               false);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(3, 3);
+            mv.visitEnd();
+
+        // compute(double[] variables, double[] out)
+        mv = cw.visitMethod(ACC_PUBLIC,
+                            "compute",
+                            "([D[D)V",
+                            null,
+                            null);
+            mv.visitCode();
+
+            // Registers 0-2 hold this, variables and out
+            int regCounter = 3;
+
+            // Load every variable used by any of the outputs exactly once
+            Map<String, Integer> registers = new HashMap<>();
+            for (String var : variables) {
+                mv.visitVarInsn(ALOAD, 1);
+                pushInt(mv, layout.indexOf(var));
+                mv.visitInsn(DALOAD);
+                mv.visitVarInsn(DSTORE, regCounter);
+
+                registers.put(var, regCounter);
+                regCounter += 2;
+            }
+
+            CodeGenerationVisitor codegen =
+                new CodeGenerationVisitor(mv, registers, registry.functions,
+                                          registry.constants,
+                                          common, powerReduction, regCounter);
+
+            // out[slot] = result, for each output in turn
+            Object[] frameLocals = { className, "[D", "[D" };
+            for (int slot = 0; slot < trees.size(); slot++) {
+                mv.visitVarInsn(ALOAD, 2);
+                pushInt(mv, slot);
+                codegen.setFrame(frameLocals, "[D", INTEGER);
+                codegen.walk(trees.get(slot));
+                mv.visitInsn(DASTORE);
+            }
+
+            mv.visitInsn(RETURN);
+            Label end = new Label();
+            mv.visitLabel(end);
+            statistics.computeSize = end.getOffset();
+            // The output array and index stay on the stack below each
+            // expression
+            mv.visitMaxs(2*maxStackDepth + 2, codegen.getRegisterCount());
+            mv.visitEnd();
+
+        cw.visitEnd();
+
+        byte[] bytecode;
+        try {
+            bytecode = cw.toByteArray();
+        }
+        catch (RuntimeException e) {
+            throw new CompilationException("Expressions are too large to compile: " +
+                                           e.getMessage());
+        }
+        statistics.generateTime = System.nanoTime() - analyzed;
+        statistics.bytecodeSize = bytecode.length;
+
+        return bytecode;
+    }
+
+    // Compile an expression into a class extending CompiledBufferExpression,
+    // which reads its variables from ByteBuffers instead of arrays
+    public byte[] compileBuffersToBytecode(String name, ASTNode tree, VariableLayout layout)
+    throws CompilationException
+    {
+        return compileBuffersToBytecode(name, tree, layout, new CompilationStatistics(name));
+    }
+
+    private byte[] compileBuffersToBytecode(String name,
+                                            ASTNode tree,
+                                            VariableLayout layout,
+                                            CompilationStatistics statistics)
+    throws CompilationException
+    {
+        Registry registry = this.registry;
+        boolean optimize = this.optimize;
+
+        long start = System.nanoTime();
+        if (optimize) {
+            tree = optimize(tree, registry);
+        }
+        long optimized = System.nanoTime();
+        statistics.optimizeTime = optimized - start;
+
+        FirstPassVisitor firstPass = new FirstPassVisitor();
+        firstPass.walk(tree);
+        statistics.nodeCount = firstPass.getNodeCount();
+        statistics.maxStackDepth = firstPass.getMaxStackDepth();
+
+        checkFunctions(registry, firstPass.getFunctions());
+        List<String> variables = resolveVariables(registry, firstPass.getVariables(), layout);
+        long checked = System.nanoTime();
+        statistics.firstPassTime = checked - optimized;
+
+        Set<ASTNode> common = Collections.emptySet();
+        PowerReduction powerReduction = null;
+        if (optimize) {
+            CommonSubexpressionVisitor cse =
+                new CommonSubexpressionVisitor(registry.pureFunctions);
+            cse.walk(tree);
+            common = cse.getCommonSubexpressions();
+
+            powerReduction = new PowerReduction(relaxedMath);
+        }
+        long analyzed = System.nanoTime();
+        statistics.optimizeTime += analyzed - checked;
+
+        String className = "com/znaptag/expiler/" + name;
+        String superName = "com/znaptag/expiler/CompiledBufferExpression";
+        String columnClass = "com/znaptag/expiler/BufferColumn";
+        String bufferClass = "java/nio/ByteBuffer";
+
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(V1_7,
+                 ACC_PUBLIC,
+                 className,
+                 null,
+                 superName,
+                 null);
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC,
+                                          "<init>",
+                                          "(Lcom/znaptag/expiler/VariableLayout;)V",
+                                          null,
+                                          null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKESPECIAL,
+                               superName,
+                               "<init>",
+                               "(Lcom/znaptag/expiler/VariableLayout;)V",
+                               false);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(2, 2);
+            mv.visitEnd();
+
+        // compute(BufferColumn[] columns, BufferColumn out, int from, int to)
+        mv = cw.visitMethod(ACC_PUBLIC,
+                            "compute",
+                            "([L" + columnClass + ";L" + columnClass + ";II)V",
+                            null,
+                            null);
+            mv.visitCode();
+
+            // Registers 0-4 hold this, columns, out, from and to, and 5 the
+            // loop counter. Every column, including the output, then gets
+            // three registers: the buffer, the byte position of the current
+            // row and the stride.
+            int counterReg = 5;
+            int regCounter = 6;
+
+            Map<String, Integer> columnRegisters = new HashMap<>();
+            for (String var : variables) {
+                mv.visitVarInsn(ALOAD, 1);
+                pushInt(mv, layout.indexOf(var));
+                mv.visitInsn(AALOAD);
+                generateColumnSetup(mv, columnClass, regCounter);
+
+                columnRegisters.put(var, regCounter);
+                regCounter += 3;
+            }
+
+            int outReg = regCounter;
+            mv.visitVarInsn(ALOAD, 2);
+            generateColumnSetup(mv, columnClass, outReg);
+            regCounter += 3;
+
+            Object[] frameLocals = new Object[regCounter];
+            frameLocals[0] = className;
+            frameLocals[1] = "[L" + columnClass + ";";
+            frameLocals[2] = columnClass;
+            frameLocals[3] = INTEGER;
+            frameLocals[4] = INTEGER;
+            frameLocals[5] = INTEGER;
+            for (int i = 6; i < regCounter; i += 3) {
+                frameLocals[i] = bufferClass;
+                frameLocals[i + 1] = INTEGER;
+                frameLocals[i + 2] = INTEGER;
+            }
+
+            // i = from
+            mv.visitVarInsn(ILOAD, 3);
+            mv.visitVarInsn(ISTORE, counterReg);
+
+            Label loopStart = new Label();
+            Label loopEnd = new Label();
+
+            mv.visitLabel(loopStart);
+            mv.visitFrame(F_FULL, frameLocals.length, frameLocals, 0, new Object[0]);
+            mv.visitVarInsn(ILOAD, counterReg);
+            mv.visitVarInsn(ILOAD, 4);
+            mv.visitJumpInsn(IF_ICMPGE, loopEnd);
+
+            // Read the values of the current row into registers
+            Map<String, Integer> registers = new HashMap<>();
+            for (String var : variables) {
+                int columnReg = columnRegisters.get(var);
+                mv.visitVarInsn(ALOAD, columnReg);
+                mv.visitVarInsn(ILOAD, columnReg + 1);
+                mv.visitMethodInsn(INVOKEVIRTUAL, bufferClass, "getDouble", "(I)D", false);
+                mv.visitVarInsn(DSTORE, regCounter);
+
+                registers.put(var, regCounter);
+                regCounter += 2;
+            }
+
+            // out.putDouble(position, result)
+            mv.visitVarInsn(ALOAD, outReg);
+            mv.visitVarInsn(ILOAD, outReg + 1);
+
+            CodeGenerationVisitor codegen =
+                new CodeGenerationVisitor(mv, registers, registry.functions,
+                                          registry.constants,
+                                          common, powerReduction, regCounter);
+            codegen.setFrame(frameLocals, bufferClass, INTEGER);
+            codegen.walk(tree);
+
+            mv.visitMethodInsn(INVOKEVIRTUAL, bufferClass, "putDouble",
+                               "(ID)Ljava/nio/ByteBuffer;", false);
+            mv.visitInsn(POP);
+
+            // Advance every position by its stride, and i++
+            for (int reg = 6; reg < frameLocals.length; reg += 3) {
+                mv.visitVarInsn(ILOAD, reg + 1);
+                mv.visitVarInsn(ILOAD, reg + 2);
+                mv.visitInsn(IADD);
+                mv.visitVarInsn(ISTORE, reg + 1);
+            }
+            mv.visitIincInsn(counterReg, 1);
+            mv.visitJumpInsn(GOTO, loopStart);
+
+            mv.visitLabel(loopEnd);
+            mv.visitFrame(F_FULL, frameLocals.length, frameLocals, 0, new Object[0]);
+            mv.visitInsn(RETURN);
+            Label end = new Label();
+            mv.visitLabel(end);
+            statistics.batchSize = end.getOffset();
+
+            // The output buffer and position stay on the stack below the
+            // expression, and the setup needs three slots
+            mv.visitMaxs(Math.max(2*firstPass.getMaxStackDepth() + 2, 3),
+                         codegen.getRegisterCount());
+            mv.visitEnd();
+
+        cw.visitEnd();
+
+        byte[] bytecode;
+        try {
+            bytecode = cw.toByteArray();
+        }
+        catch (RuntimeException e) {
+            throw new CompilationException("Expression is too large to compile: " +
+                                           e.getMessage());
+        }
+        statistics.generateTime = System.nanoTime() - analyzed;
+        statistics.bytecodeSize = bytecode.length;
+
+        return bytecode;
+    }
+
+    // Store the buffer and stride of the column on the stack into registers
+    // reg and reg + 2, and its byte position of row "from" into reg + 1
+    private static void generateColumnSetup(MethodVisitor mv, String columnClass, int reg)
+    {
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKEVIRTUAL, columnClass, "getBuffer",
+                           "()Ljava/nio/ByteBuffer;", false);
+        mv.visitVarInsn(ASTORE, reg);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKEVIRTUAL, columnClass, "getStride", "()I", false);
+        mv.visitVarInsn(ISTORE, reg + 2);
+
+        // offset + from * stride
+        mv.visitMethodInsn(INVOKEVIRTUAL, columnClass, "getOffset", "()I", false);
+        mv.visitVarInsn(ILOAD, 3);
+        mv.visitVarInsn(ILOAD, reg + 2);
+        mv.visitInsn(IMUL);
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ISTORE, reg + 1);
+    }
+
+    // Find the call method of a function taking the given number of doubles,
+    // or null if there is none
+    static Method findCallMethod(Class<? extends Function> func, int arity)
+    {
+        return findCallMethod(func, arity, NumericType.DOUBLE);
+    }
+
+    // Find the call method of a function taking the given number of values
+    // of a type, or null if there is none
+    static Method findCallMethod(Class<? extends Function> func, int arity, NumericType type)
+    {
+        Class<?>[] params = new Class<?>[arity];
+        Arrays.fill(params, type.getPrimitiveClass());
+
+        try {
+            return func.getMethod("call", params);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // Find the static method an intrinsic forwards calls with the given
+    // number of values of a type to, or null if its owner has no such
+    // overload
+    static Method findIntrinsicTarget(Intrinsic intrinsic, int arity, NumericType type)
+    {
+        Class<?>[] params = new Class<?>[arity];
+        Arrays.fill(params, type.getPrimitiveClass());
+
+        try {
+            Class<?> owner = Class.forName(intrinsic.owner().replace('/', '.'));
+            Method target = owner.getMethod(intrinsic.name(), params);
+            if ((target.getModifiers() & Modifier.STATIC) == 0 ||
+                target.getReturnType() != type.getPrimitiveClass()) {
+
+                return null;
+            }
+            return target;
+        }
+        catch (ClassNotFoundException | NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // Method descriptor of a call taking the given number of doubles
+    static String callDescriptor(int arity)
+    {
+        return callDescriptor(arity, NumericType.DOUBLE);
+    }
+
+    // Method descriptor of a call taking and returning values of a type
+    static String callDescriptor(int arity, NumericType type)
+    {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < arity; i++) {
+            descriptor.append(type.getDescriptor());
+        }
+        descriptor.append(')').append(type.getDescriptor());
+
+        return descriptor.toString();
+    }
+
+    // Push an int constant using the shortest available instruction
+    static void pushInt(MethodVisitor mv, int value)
+    {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    // Compile and save generated class to disk
+    public void compileAndSave(String name, ASTNode tree)
+    throws IOException, CompilationException
+    {
+        byte[] bytecode = compileToBytecode(name, tree);
+
+        FileOutputStream out = new FileOutputStream(name + ".class");
+        out.write(bytecode, 0, bytecode.length);
+        out.close();
+    }
 
     // Compile and load new class directly into memory
     public CompiledExpression compile(String name, ASTNode tree)
     throws CompilationException
     {
-        byte[] bytecode = compileToBytecode(name, tree);
+        return compile(name, tree, getVariableLayout(tree));
+    }
+
+    // Compile against a caller supplied layout, so that compute(double[]) can
+    // be fed arrays in the caller's own variable order
+    public CompiledExpression compile(String name, ASTNode tree, VariableLayout layout)
+    throws CompilationException
+    {
+        return compile(name, tree, layout, new CompilationStatistics(name));
+    }
+
+    // Parse and compile an expression, with the default layout
+    public CompiledExpression compile(String name, String source)
+    throws IOException, Parser.ParseException, CompilationException
+    {
+        return compile(name, source, null);
+    }
+
+    // Parse and compile an expression. Unlike parsing separately, this
+    // includes lexing and parsing in the statistics.
+    public CompiledExpression compile(String name, String source, VariableLayout layout)
+    throws IOException, Parser.ParseException, CompilationException
+    {
+        CompilationStatistics statistics = new CompilationStatistics(name);
+
+        ASTNode tree;
+        try {
+            // Scan all tokens before parsing, so that the two can be timed
+            // separately
+            long start = System.nanoTime();
+            Lexer lexer = new Lexer(source);
+            statistics.tokenCount = lexer.readAll();
+            long lexed = System.nanoTime();
+            statistics.lexTime = lexed - start;
+
+            tree = new Parser(lexer).parse();
+            statistics.parseTime = System.nanoTime() - lexed;
+        }
+        catch (IOException | Parser.ParseException e) {
+            fireFailed(statistics, e);
+            throw e;
+        }
+
+        return compile(name, tree, layout == null ? getVariableLayout(tree) : layout,
+                       statistics);
+    }
+
+    private CompiledExpression compile(String name,
+                                       ASTNode tree,
+                                       VariableLayout layout,
+                                       CompilationStatistics statistics)
+    throws CompilationException
+    {
+        return compile(name, tree, layout, NumericType.DOUBLE, CompiledExpression.class,
+                       statistics);
+    }
+
+    // Compile an expression which is evaluated in single precision
+    public CompiledFloatExpression compileFloat(String name, ASTNode tree)
+    throws CompilationException
+    {
+        return compileFloat(name, tree, getVariableLayout(tree));
+    }
+
+    public CompiledFloatExpression compileFloat(String name, ASTNode tree, VariableLayout layout)
+    throws CompilationException
+    {
+        return compile(name, tree, layout, NumericType.FLOAT, CompiledFloatExpression.class,
+                       new CompilationStatistics(name));
+    }
+
+    // Compile an expression which is evaluated with long arithmetic. Every
+    // number and constant in it has to be an integer, and functions need
+    // call overloads taking longs, which of the builtins only abs, min and
+    // max have.
+    public CompiledLongExpression compileLong(String name, ASTNode tree)
+    throws CompilationException
+    {
+        return compileLong(name, tree, getVariableLayout(tree));
+    }
+
+    public CompiledLongExpression compileLong(String name, ASTNode tree, VariableLayout layout)
+    throws CompilationException
+    {
+        return compile(name, tree, layout, NumericType.LONG, CompiledLongExpression.class,
+                       new CompilationStatistics(name));
+    }
+
+    private <T> T compile(String name,
+                          ASTNode tree,
+                          VariableLayout layout,
+                          NumericType type,
+                          Class<T> expressionClass,
+                          CompilationStatistics statistics)
+    throws CompilationException
+    {
+        try {
+            byte[] bytecode = compileToBytecode(name, tree, layout, type, statistics);
+            T expr = load(name, bytecode, expressionClass, statistics);
+            fireCompiled(statistics);
+
+            return expr;
+        }
+        catch (CompilationException e) {
+            fireFailed(statistics, e);
+            throw e;
+        }
+    }
+
+    // Define a class previously generated by compileToBytecode, and return
+    // an instance of it
+    public CompiledExpression load(String name, byte[] bytecode)
+    {
+        return load(name, bytecode, CompiledExpression.class, new CompilationStatistics(name));
+    }
+
+    // Same for classes compiled for another type, whose interface has to be
+    // given, e.g. CompiledFloatExpression.class
+    public <T> T load(String name, byte[] bytecode, Class<T> expressionClass)
+    {
+        return load(name, bytecode, expressionClass, new CompilationStatistics(name));
+    }
+
+    private <T> T load(String name,
+                       byte[] bytecode,
+                       Class<T> expressionClass,
+                       CompilationStatistics statistics)
+    {
+        long start = System.nanoTime();
 
         // Load and register class
-        MyClassLoader classLoader = new MyClassLoader();
-        Class c = classLoader.defineClass("com.znaptag.expiler." + name, bytecode);
+        Class<?> c = classDefiner.define("com.znaptag.expiler." + name, bytecode);
+        ClassTracker.track(c);
+        long defined = System.nanoTime();
+        statistics.defineTime = defined - start;
+
+        // Create an instance and return it. This is where the class is
+        // verified and initialized.
+        try {
+            T expr = expressionClass.cast(c.getConstructor().newInstance());
+            statistics.linkTime = System.nanoTime() - defined;
+
+            return expr;
+        }
+        catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Compile a set of named expressions into one class, using the default
+    // layout of all variables they contain
+    public CompiledExpressionSet compileAll(String name, Map<String, ASTNode> outputs)
+    throws CompilationException
+    {
+        return compileAll(name, outputs, getVariableLayout(outputs));
+    }
+
+    public CompiledExpressionSet compileAll(String name,
+                                            Map<String, ASTNode> outputs,
+                                            VariableLayout layout)
+    throws CompilationException
+    {
+        CompilationStatistics statistics = new CompilationStatistics(name);
+
+        byte[] bytecode;
+        try {
+            bytecode = compileAllToBytecode(name, outputs, layout, statistics);
+        }
+        catch (CompilationException e) {
+            fireFailed(statistics, e);
+            throw e;
+        }
+
+        long start = System.nanoTime();
+        Class<?> c = classDefiner.define("com.znaptag.expiler." + name, bytecode);
+        ClassTracker.track(c);
+        long defined = System.nanoTime();
+        statistics.defineTime = defined - start;
 
-        // Create an instance and return it
+        VariableLayout outputLayout = new VariableLayout(outputs.keySet());
+        CompiledExpressionSet set;
         try {
-            return (CompiledExpression)c.newInstance();
+            set = (CompiledExpressionSet)c.getConstructor(VariableLayout.class,
+                                                          VariableLayout.class)
+                                          .newInstance(layout, outputLayout);
         }
-        catch (InstantiationException e) {
+        catch (ReflectiveOperationException e) {
             throw new RuntimeException(e);
         }
-        catch (IllegalAccessException e) {
+        statistics.linkTime = System.nanoTime() - defined;
+
+        fireCompiled(statistics);
+        return set;
+    }
+
+    // Compile an expression to be evaluated over BufferColumns, using its
+    // default layout
+    public CompiledBufferExpression compileBuffers(String name, ASTNode tree)
+    throws CompilationException
+    {
+        return compileBuffers(name, tree, getVariableLayout(tree));
+    }
+
+    public CompiledBufferExpression compileBuffers(String name,
+                                                   ASTNode tree,
+                                                   VariableLayout layout)
+    throws CompilationException
+    {
+        CompilationStatistics statistics = new CompilationStatistics(name);
+
+        byte[] bytecode;
+        try {
+            bytecode = compileBuffersToBytecode(name, tree, layout, statistics);
+        }
+        catch (CompilationException e) {
+            fireFailed(statistics, e);
+            throw e;
+        }
+
+        long start = System.nanoTime();
+        Class<?> c = classDefiner.define("com.znaptag.expiler." + name, bytecode);
+        ClassTracker.track(c);
+        long defined = System.nanoTime();
+        statistics.defineTime = defined - start;
+
+        CompiledBufferExpression expr;
+        try {
+            expr = (CompiledBufferExpression)c.getConstructor(VariableLayout.class)
+                                              .newInstance(layout);
+        }
+        catch (ReflectiveOperationException e) {
             throw new RuntimeException(e);
         }
+        statistics.linkTime = System.nanoTime() - defined;
+
+        fireCompiled(statistics);
+        return expr;
+    }
+
+    // Parse and compile a batch of expressions in parallel on the common
+    // fork-join pool
+    public List<CompilationResult> compileBulk(String prefix, List<String> expressions)
+    {
+        return compileBulk(prefix, expressions, null, ForkJoinPool.commonPool());
+    }
+
+    // Parse and compile a batch of expressions in parallel. Expression i is
+    // compiled into a class named prefix + i, against the given layout, or
+    // its default layout if that's null. A failure only affects the
+    // expression it occurred in, so the results hold either the compiled
+    // expression or the error for each one, in the order of the input.
+    public List<CompilationResult> compileBulk(String prefix,
+                                               List<String> expressions,
+                                               VariableLayout layout,
+                                               ForkJoinPool pool)
+    {
+        CompilationResult[] results = new CompilationResult[expressions.size()];
+        pool.invoke(new BulkCompileTask(prefix, expressions, layout, results,
+                                        0, results.length));
+
+        return Arrays.asList(results);
     }
 
     // Simple test case
@@ -427,40 +2708,22 @@ public class Compiler
         // Setup the compiler and register all constants and functions
         Compiler compiler = new Compiler();
 
-        compiler.registerConstant("PI", Math.PI);
-        compiler.registerConstant("E", Math.E);
-
-        compiler.registerFunction("sqrt", SqrtFunction.class);
-        compiler.registerFunction("sin", SinFunction.class);
-        compiler.registerFunction("cos", CosFunction.class);
-        compiler.registerFunction("tan", TanFunction.class);
-        compiler.registerFunction("asin", ArcSinFunction.class);
-        compiler.registerFunction("acos", ArcCosFunction.class);
-        compiler.registerFunction("atan", ArcTanFunction.class);
-        compiler.registerFunction("exp", ExpFunction.class);
-        compiler.registerFunction("log", LogFunction.class);
-        compiler.registerFunction("ln", LogFunction.class);
+        compiler.registerBuiltins();
 
-        // Compile to bytecode
-        CompiledExpression expr = compiler.compile("TestExpression", tree);
+        // Compile to bytecode, with the variables bound to fixed array slots
+        VariableLayout layout = new VariableLayout("x", "y", "z");
+        CompiledExpression expr = compiler.compile("TestExpression", tree, layout);
 
         // Set up variables for execution
-        Map<String, Double> vars = new HashMap<>();
-        vars.put("y", 5.0);
-        vars.put("z", 3.0);
-        vars.put("x", 2.0);
-
-        // Execute freshly compiled code
-        long s = System.nanoTime();
-        double res = 0.0, res2 = 0.0;
-        int count = 100000000;
-        for (int i = 0; i < count; i++) {
-            res = expr.compute(vars);
-            res2 += res;
-        }
-        long s2 = (System.nanoTime() - s)/count;
-        System.out.println("res: " + res);
-        System.out.println("res2: " + res2);
-        System.out.println("time: " + s2 + "ns");
+        Map<String, Double> varMap = new HashMap<>();
+        varMap.put("y", 5.0);
+        varMap.put("z", 3.0);
+        varMap.put("x", 2.0);
+
+        // Execute freshly compiled code. See the benchmarks in bench/ for
+        // performance numbers.
+        double[] vars = layout.toArray(varMap);
+        System.out.println("map: " + expr.compute(varMap));
+        System.out.println("res: " + expr.compute(vars));
     }
 }
@@ -0,0 +1,227 @@
+package com.znaptag.expiler;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.znaptag.expiler.ast.*;
+
+// Cache of compiled expressions which sits in front of a Compiler. Entries are
+// keyed on the AST itself, so structurally equal expressions share a single
+// class, while expressions which merely compute the same thing, like x + y
+// and y + x, don't. The cache is bounded and
+// evicts the least recently used entry once full. Since every expression is
+// defined by its own class loader, and the cache holds the only reference to
+// it, an evicted class becomes eligible for unloading as soon as callers
+// drop their references to it.
+public class ExpressionCache
+{
+    // Identifies a cached class by the tree and layout it was compiled from,
+    // along with everything else the generated code depends on. The
+    // registry maps are compared by identity, since registering anything
+    // replaces them. The tree's structural hash is cached, and trees parsed
+    // with the same InterningNodeFactory are equal by identity, so neither
+    // hashing nor a hit depends on the size of the expression.
+    private static class Key
+    {
+        private final ASTNode tree;
+        private final VariableLayout layout;
+        private final Map<String, Double> constants;
+        private final Map<String, Class<? extends Function>> functions;
+        private final boolean optimize;
+        private final boolean relaxedMath;
+        private final int hash;
+
+        public Key(ASTNode tree, VariableLayout layout, Compiler compiler)
+        {
+            this.tree = tree;
+            this.layout = layout;
+            this.constants = compiler.getConstants();
+            this.functions = compiler.getFunctions();
+            this.optimize = compiler.isOptimizationEnabled();
+            this.relaxedMath = compiler.isRelaxedMath();
+            this.hash = 31 * tree.hashCode() + layout.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key)other;
+            return hash == key.hash &&
+                   constants == key.constants &&
+                   functions == key.functions &&
+                   optimize == key.optimize &&
+                   relaxedMath == key.relaxedMath &&
+                   layout.equals(key.layout) &&
+                   tree.equals(key.tree);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    private Compiler compiler;
+    private int maxSize;
+    private Map<Key, CompiledExpression> entries;
+    // Parses the expressions passed as strings, so that repeated ones share
+    // a tree
+    private NodeFactory nodes;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private int classCounter = 0;
+
+    public ExpressionCache(Compiler compiler, int maxSize)
+    {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+
+        this.compiler = compiler;
+        this.maxSize = maxSize;
+        this.nodes = new InterningNodeFactory();
+
+        // An access ordered LinkedHashMap keeps the least recently used entry
+        // first, which is the one we evict
+        this.entries = new LinkedHashMap<Key, CompiledExpression>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CompiledExpression> eldest)
+            {
+                if (size() > ExpressionCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    // Lex, parse and compile an expression, or return a cached instance
+    public CompiledExpression compile(String expression)
+    throws IOException, Parser.ParseException, Compiler.CompilationException
+    {
+        Parser parser = new Parser(new Lexer(expression), nodes);
+        return compile(parser.parse());
+    }
+
+    public CompiledExpression compile(ASTNode tree)
+    throws Compiler.CompilationException
+    {
+        return compile(tree, compiler.getVariableLayout(tree));
+    }
+
+    public CompiledExpression compile(ASTNode tree, VariableLayout layout)
+    throws Compiler.CompilationException
+    {
+        Key key = new Key(tree, layout, compiler);
+
+        String name;
+        synchronized (this) {
+            CompiledExpression expr = entries.get(key);
+            if (expr != null) {
+                hits++;
+                return expr;
+            }
+
+            misses++;
+            name = "CachedExpression" + (classCounter++);
+        }
+
+        // Compile without holding the lock. If another thread beats us to it,
+        // we'll just use their instance instead.
+        CompiledExpression expr = compiler.compile(name, tree, layout);
+
+        synchronized (this) {
+            CompiledExpression existing = entries.get(key);
+            if (existing != null) {
+                return existing;
+            }
+
+            entries.put(key, expr);
+        }
+
+        return expr;
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    // Basic test method: Compile expressions through a single cache and
+    // check that each one evaluates like a class compiled directly
+    public static void main(String[] args)
+    throws Exception
+    {
+        String[] expressions = {
+            "x < y", "x > y", "x >= y", "x <= y", "x == y", "x != y",
+            "x && y", "x || y", "x ^ y", "x > 1 ? x : y", "x > 1 ? y : x",
+            "if(x < y, x*y, x - y)", "x < y && y < 4 || x == 2",
+            "x < y", "x ^ y", "x > 1 ? x : y",
+            "let a = x*y; b = a + 1; a*b", "let a = x + y; b = a + 1; a*b",
+            "let E = x*2; E + 1", "E*2 + 1", "let PI = y; x*PI", "x*PI",
+            "let a = x*y; b = a + 1; a*b"
+        };
+        double[][] points = { { 2, 3 }, { 3, 2 }, { 2, 2 }, { 0, 5 }, { Double.NaN, 1 } };
+
+        Compiler compiler = new Compiler();
+        compiler.registerBuiltins();
+        ExpressionCache cache = new ExpressionCache(compiler, 100);
+        VariableLayout layout = new VariableLayout("x", "y");
+
+        boolean ok = true;
+        for (String expression : expressions) {
+            ASTNode tree = new Parser(new Lexer(expression)).parse();
+            CompiledExpression cached = cache.compile(tree, layout);
+            CompiledExpression direct = compiler.compile("Direct", tree, layout);
+
+            for (double[] point : points) {
+                double expected = direct.compute(point);
+                double actual = cached.compute(point);
+                if (Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual)) {
+                    System.out.println(expression + " at " + Arrays.toString(point) +
+                                       ": " + actual + " instead of " + expected);
+                    ok = false;
+                }
+            }
+        }
+
+        System.out.println((ok ? "ok" : "FAILED") + ", " + cache.getHits() + " hits, " +
+                           cache.getMisses() + " misses");
+    }
+}
@@ -0,0 +1,1155 @@
+package com.znaptag.expiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import static org.objectweb.asm.Opcodes.*;
+
+import com.znaptag.expiler.ast.*;
+
+// Compiles expressions into classes which compute the value together with
+// the gradient, using reverse mode automatic differentiation. The generated
+// method first evaluates every distinct subexpression once and keeps it in a
+// register (the forward sweep), then walks the same subexpressions in
+// reverse, accumulating the derivative of the result with respect to each
+// of them (the backward sweep). The derivative rules read the values from
+// the forward sweep rather than evaluating anything again, so the whole
+// gradient costs a small constant factor of a single evaluation, no matter
+// how many variables there are.
+//
+// All built-in functions have derivative rules. Other functions need a
+// derivative registered for every argument that depends on a variable.
+//
+// Comparisons, && and || have a derivative of zero, and a conditional passes
+// the derivative on to the branch it selects. Since the sweeps are straight
+// line code, both branches are evaluated, along with the right operands of
+// && and ||, so impure functions in them are called every time. Whatever the
+// unselected branch computes, including NaN, doesn't leak into the gradient.
+//
+// The value of a let binding is a single entry, which every reference to the
+// binding uses, so its derivative is accumulated from all of them.
+public class GradientCompiler
+{
+    // A distinct subexpression, in the order of evaluation
+    private static class Entry
+    {
+        ASTNode node;
+        Entry[] children;
+        // inlined numbers and constants have no register
+        boolean constant;
+        double value;
+        // whether any variable occurs in it, so that it has a derivative
+        boolean active;
+        // whether it may be shared by structurally equal subexpressions
+        boolean pure;
+        // whether it's part of a branch of a conditional, whose derivative
+        // is zero when the branch isn't selected
+        boolean guarded;
+        int valueRegister = -1;
+        int adjointRegister = -1;
+
+        Entry(ASTNode node, Entry[] children)
+        {
+            this.node = node;
+            this.children = children;
+        }
+    }
+
+    // Flattens the tree into entries, with every child before its parent.
+    // Structurally equal subtrees without impure functions map to the same
+    // entry.
+    private static class TapeVisitor extends PostOrderVisitor
+    {
+        private Map<String, Double> constants;
+        private Map<String, Class<? extends Function>> functions;
+        private Map<String, Boolean> pureFunctions;
+        private Map<ASTNode, Entry> shared;
+        private List<Entry> entries;
+        private List<Entry> stack;
+        private Map<String, Entry> variables;
+        // the entries of the let bindings in scope
+        private Map<String, Entry> bindings;
+        private int maxArgumentCount;
+
+        public TapeVisitor(Map<String, Double> constants,
+                           Map<String, Class<? extends Function>> functions,
+                           Map<String, Boolean> pureFunctions)
+        {
+            this.constants = constants;
+            this.functions = functions;
+            this.pureFunctions = pureFunctions;
+            this.shared = new HashMap<>();
+            this.entries = new ArrayList<>();
+            this.stack = new ArrayList<>();
+            this.variables = new HashMap<>();
+            this.bindings = new HashMap<>();
+        }
+
+        public List<Entry> getEntries()
+        {
+            return entries;
+        }
+
+        public Entry getRoot()
+        {
+            return stack.get(0);
+        }
+
+        // The entries of the variables, by name
+        public Map<String, Entry> getVariables()
+        {
+            return variables;
+        }
+
+        public int getMaxArgumentCount()
+        {
+            return maxArgumentCount;
+        }
+
+        @Override
+        protected boolean enter(ASTNode node)
+        {
+            Entry entry = shared.get(node);
+            if (entry == null) {
+                return true;
+            }
+
+            stack.add(entry);
+            return false;
+        }
+
+        private Entry add(ASTNode node, boolean pure)
+        {
+            Entry[] children = new Entry[node.getChildCount()];
+            for (int i = children.length - 1; i >= 0; i--) {
+                children[i] = stack.remove(stack.size() - 1);
+            }
+
+            Entry entry = new Entry(node, children);
+            entry.pure = pure;
+            for (Entry child : children) {
+                entry.pure &= child.pure;
+                entry.active |= child.active;
+            }
+
+            entries.add(entry);
+            stack.add(entry);
+            if (entry.pure) {
+                shared.put(node, entry);
+            }
+
+            return entry;
+        }
+
+        @Override
+        public void visit(NumberNode node)
+        {
+            Entry entry = add(node, true);
+            entry.constant = true;
+            entry.value = node.getNumber();
+        }
+
+        @Override
+        public void visit(VariableNode node)
+        {
+            Entry binding = bindings.get(node.getName());
+            if (binding != null) {
+                stack.add(binding);
+                return;
+            }
+
+            Entry entry = add(node, true);
+
+            Double constant = constants.get(node.getName());
+            if (constant != null) {
+                entry.constant = true;
+                entry.value = constant;
+            } else {
+                entry.active = true;
+                variables.put(node.getName(), entry);
+            }
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            Boolean pure = pureFunctions.get(node.getName());
+            add(node, pure != null && pure);
+            maxArgumentCount = Math.max(node.getArgumentCount(), maxArgumentCount);
+        }
+
+        @Override
+        public void visit(AddNode node)
+        {
+            add(node, true);
+        }
+
+        @Override
+        public void visit(SubNode node)
+        {
+            add(node, true);
+        }
+
+        @Override
+        public void visit(MulNode node)
+        {
+            add(node, true);
+        }
+
+        @Override
+        public void visit(DivNode node)
+        {
+            add(node, true);
+        }
+
+        @Override
+        public void visit(ExpNode node)
+        {
+            add(node, true);
+        }
+
+        // The results of comparisons and logical operators are constant
+        // almost everywhere, so they don't pass on any derivative
+        @Override
+        public void visit(ComparisonNode node)
+        {
+            add(node, true).active = false;
+        }
+
+        @Override
+        public void visit(AndNode node)
+        {
+            add(node, true).active = false;
+        }
+
+        @Override
+        public void visit(OrNode node)
+        {
+            add(node, true).active = false;
+        }
+
+        @Override
+        public void visit(ConditionalNode node)
+        {
+            add(node, true);
+        }
+
+        // The value of the previous binding is on the stack, and is only
+        // reached through its name from now on
+        @Override
+        protected boolean enterChild(ASTNode parent, int index)
+        {
+            if (index > 0 && parent instanceof LetNode) {
+                bindings.put(((LetNode)parent).getName(index - 1),
+                             stack.remove(stack.size() - 1));
+            }
+            return true;
+        }
+
+        // A let has no entry of its own, it stands for the entry of its body
+        @Override
+        public void visit(LetNode node)
+        {
+            bindings.keySet().removeAll(node.getNames());
+        }
+    }
+
+    // Base class of the sweeps, which generate code for one entry at a time
+    private static abstract class SweepVisitor implements ASTVisitor
+    {
+        protected MethodVisitor mv;
+        protected Entry entry;
+
+        public SweepVisitor(MethodVisitor mv)
+        {
+            this.mv = mv;
+        }
+
+        // Push the value of an entry computed by the forward sweep
+        protected void load(Entry entry)
+        {
+            if (entry.constant) {
+                mv.visitLdcInsn(entry.value);
+            } else {
+                mv.visitVarInsn(DLOAD, entry.valueRegister);
+            }
+        }
+
+        protected void load(int child)
+        {
+            load(entry.children[child]);
+        }
+
+        protected void math(String name, int arity)
+        {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", name,
+                               Compiler.callDescriptor(arity), false);
+        }
+
+        protected static boolean isConstant(Entry entry, double value)
+        {
+            return entry.constant && entry.value == value;
+        }
+
+        // Push the int 1 if the value of a child is non-zero, and 0 otherwise
+        protected void loadTruth(int child)
+        {
+            load(child);
+            NumericType.DOUBLE.truth(mv);
+        }
+
+        // Push all ones if the condition of a conditional entry is true, and
+        // all zeroes otherwise, or the other way around
+        protected void loadConditionMask(boolean whenTrue)
+        {
+            loadTruth(0);
+            if (!whenTrue) {
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(IXOR);
+            }
+            NumericType.DOUBLE.mask(mv);
+        }
+
+        // There are no entries for lets
+        @Override
+        public void visit(LetNode node)
+        {
+        }
+    }
+
+    // Evaluates an entry from the values of its children, and stores it in
+    // its register
+    private static class ForwardVisitor extends SweepVisitor
+    {
+        private Map<String, Class<? extends Function>> functions;
+        private VariableLayout layout;
+
+        public ForwardVisitor(MethodVisitor mv,
+                              Map<String, Class<? extends Function>> functions,
+                              VariableLayout layout)
+        {
+            super(mv);
+            this.functions = functions;
+            this.layout = layout;
+        }
+
+        public void generate(Entry entry)
+        {
+            this.entry = entry;
+            entry.node.visit(this);
+            mv.visitVarInsn(DSTORE, entry.valueRegister);
+        }
+
+        @Override
+        public void visit(NumberNode node)
+        {
+            // Numbers are inlined
+        }
+
+        @Override
+        public void visit(VariableNode node)
+        {
+            // variables is the first argument, stored in register 1
+            mv.visitVarInsn(ALOAD, 1);
+            Compiler.pushInt(mv, layout.indexOf(node.getName()));
+            mv.visitInsn(DALOAD);
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            for (int i = 0; i < entry.children.length; i++) {
+                load(i);
+            }
+
+            Class<? extends Function> func = functions.get(node.getName());
+            Intrinsic intrinsic = func.getAnnotation(Intrinsic.class);
+            if (intrinsic != null) {
+                mv.visitMethodInsn(INVOKESTATIC, intrinsic.owner(), intrinsic.name(),
+                                   Compiler.callDescriptor(node.getArgumentCount()), false);
+            } else {
+                call(mv, func, node.getArgumentCount());
+            }
+        }
+
+        @Override
+        public void visit(AddNode node)
+        {
+            load(0);
+            load(1);
+            mv.visitInsn(DADD);
+        }
+
+        @Override
+        public void visit(SubNode node)
+        {
+            load(0);
+            load(1);
+            mv.visitInsn(DSUB);
+        }
+
+        @Override
+        public void visit(MulNode node)
+        {
+            load(0);
+            load(1);
+            mv.visitInsn(DMUL);
+        }
+
+        @Override
+        public void visit(DivNode node)
+        {
+            load(0);
+            load(1);
+            mv.visitInsn(DDIV);
+        }
+
+        @Override
+        public void visit(ExpNode node)
+        {
+            load(0);
+            if (isConstant(entry.children[1], 2.0)) {
+                mv.visitInsn(DUP2);
+                mv.visitInsn(DMUL);
+            } else {
+                load(1);
+                math("pow", 2);
+            }
+        }
+
+        @Override
+        public void visit(ComparisonNode node)
+        {
+            load(0);
+            load(1);
+            NumericType.DOUBLE.compare(mv, node.getOperator());
+            mv.visitInsn(I2D);
+        }
+
+        @Override
+        public void visit(AndNode node)
+        {
+            loadTruth(0);
+            loadTruth(1);
+            mv.visitInsn(IAND);
+            mv.visitInsn(I2D);
+        }
+
+        @Override
+        public void visit(OrNode node)
+        {
+            loadTruth(0);
+            loadTruth(1);
+            mv.visitInsn(IOR);
+            mv.visitInsn(I2D);
+        }
+
+        // Select between the bit patterns of the branches:
+        // b ^ ((a ^ b) & mask)
+        @Override
+        public void visit(ConditionalNode node)
+        {
+            NumericType type = NumericType.DOUBLE;
+            load(2);
+            type.toBits(mv);
+            load(1);
+            type.toBits(mv);
+            load(2);
+            type.toBits(mv);
+            mv.visitInsn(LXOR);
+            loadConditionMask(true);
+            mv.visitInsn(LAND);
+            mv.visitInsn(LXOR);
+            type.fromBits(mv);
+        }
+    }
+
+    // Pushes the contribution of an entry to the derivative of one of its
+    // children: the derivative of the result with respect to the entry,
+    // times the partial derivative of the entry with respect to the child
+    private static class BackwardVisitor extends SweepVisitor
+    {
+        private Map<String, Class<? extends Function>> functions;
+        private Map<String, Class<? extends Function>> derivatives;
+        private int child;
+
+        public BackwardVisitor(MethodVisitor mv,
+                               Map<String, Class<? extends Function>> functions,
+                               Map<String, Class<? extends Function>> derivatives)
+        {
+            super(mv);
+            this.functions = functions;
+            this.derivatives = derivatives;
+        }
+
+        public void generate(Entry entry, int child)
+        {
+            this.entry = entry;
+            this.child = child;
+            entry.node.visit(this);
+        }
+
+        private void loadAdjoint()
+        {
+            mv.visitVarInsn(DLOAD, entry.adjointRegister);
+        }
+
+        @Override
+        public void visit(NumberNode node)
+        {
+        }
+
+        @Override
+        public void visit(VariableNode node)
+        {
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            Class<? extends Function> derivative = derivatives.get(derivativeKey(node.getName(),
+                                                                                 child));
+            if (derivative != null) {
+                loadAdjoint();
+                for (int i = 0; i < entry.children.length; i++) {
+                    load(i);
+                }
+                call(mv, derivative, node.getArgumentCount());
+                mv.visitInsn(DMUL);
+                return;
+            }
+
+            // Only reached for built-ins, the rest was checked up front
+            String name = functions.get(node.getName()).getAnnotation(Intrinsic.class).name();
+            switch (name) {
+                case "sin":
+                    loadAdjoint();
+                    load(0);
+                    math("cos", 1);
+                    mv.visitInsn(DMUL);
+                    break;
+                case "cos":
+                    loadAdjoint();
+                    load(0);
+                    math("sin", 1);
+                    mv.visitInsn(DMUL);
+                    mv.visitInsn(DNEG);
+                    break;
+                case "tan":
+                    // 1 + tan^2, reusing the value
+                    loadAdjoint();
+                    mv.visitInsn(DCONST_1);
+                    load(entry);
+                    load(entry);
+                    mv.visitInsn(DMUL);
+                    mv.visitInsn(DADD);
+                    mv.visitInsn(DMUL);
+                    break;
+                case "asin":
+                case "acos":
+                    // 1 / sqrt(1 - x^2), negated for acos
+                    loadAdjoint();
+                    mv.visitInsn(DCONST_1);
+                    load(0);
+                    load(0);
+                    mv.visitInsn(DMUL);
+                    mv.visitInsn(DSUB);
+                    math("sqrt", 1);
+                    mv.visitInsn(DDIV);
+                    if (name.equals("acos")) {
+                        mv.visitInsn(DNEG);
+                    }
+                    break;
+                case "atan":
+                    loadAdjoint();
+                    mv.visitInsn(DCONST_1);
+                    load(0);
+                    load(0);
+                    mv.visitInsn(DMUL);
+                    mv.visitInsn(DADD);
+                    mv.visitInsn(DDIV);
+                    break;
+                case "exp":
+                    loadAdjoint();
+                    load(entry);
+                    mv.visitInsn(DMUL);
+                    break;
+                case "log":
+                    loadAdjoint();
+                    load(0);
+                    mv.visitInsn(DDIV);
+                    break;
+                case "sqrt":
+                    // 1 / (2 sqrt(x)), reusing the value
+                    loadAdjoint();
+                    mv.visitLdcInsn(2.0);
+                    load(entry);
+                    mv.visitInsn(DMUL);
+                    mv.visitInsn(DDIV);
+                    break;
+                case "abs":
+                    loadAdjoint();
+                    load(0);
+                    math("signum", 1);
+                    mv.visitInsn(DMUL);
+                    break;
+                case "min":
+                case "max":
+                    // 1 for the selected argument and 0 for the other, or
+                    // 1/2 each on a tie: (signum(other - this) + 1) / 2 for
+                    // min, and the same with the difference negated for max
+                    loadAdjoint();
+                    load(1 - child);
+                    load(child);
+                    mv.visitInsn(DSUB);
+                    if (name.equals("max")) {
+                        mv.visitInsn(DNEG);
+                    }
+                    math("signum", 1);
+                    mv.visitInsn(DCONST_1);
+                    mv.visitInsn(DADD);
+                    mv.visitInsn(DMUL);
+                    mv.visitLdcInsn(0.5);
+                    mv.visitInsn(DMUL);
+                    break;
+                case "atan2":
+                    // atan2(y, x): x / (x^2 + y^2) for y, -y / (x^2 + y^2)
+                    // for x
+                    loadAdjoint();
+                    load(1 - child);
+                    mv.visitInsn(DMUL);
+                    load(0);
+                    load(0);
+                    mv.visitInsn(DMUL);
+                    load(1);
+                    load(1);
+                    mv.visitInsn(DMUL);
+                    mv.visitInsn(DADD);
+                    mv.visitInsn(DDIV);
+                    if (child == 1) {
+                        mv.visitInsn(DNEG);
+                    }
+                    break;
+                case "hypot":
+                    loadAdjoint();
+                    load(child);
+                    mv.visitInsn(DMUL);
+                    load(entry);
+                    mv.visitInsn(DDIV);
+                    break;
+                case "fma":
+                    loadAdjoint();
+                    if (child < 2) {
+                        load(1 - child);
+                        mv.visitInsn(DMUL);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("No derivative of " + name);
+            }
+        }
+
+        @Override
+        public void visit(AddNode node)
+        {
+            loadAdjoint();
+        }
+
+        @Override
+        public void visit(SubNode node)
+        {
+            loadAdjoint();
+            if (child == 1) {
+                mv.visitInsn(DNEG);
+            }
+        }
+
+        @Override
+        public void visit(MulNode node)
+        {
+            loadAdjoint();
+            load(1 - child);
+            mv.visitInsn(DMUL);
+        }
+
+        @Override
+        public void visit(DivNode node)
+        {
+            loadAdjoint();
+            if (child == 0) {
+                load(1);
+                mv.visitInsn(DDIV);
+            } else {
+                // -(a / b) / b, reusing the quotient
+                load(entry);
+                mv.visitInsn(DMUL);
+                load(1);
+                mv.visitInsn(DDIV);
+                mv.visitInsn(DNEG);
+            }
+        }
+
+        @Override
+        public void visit(ExpNode node)
+        {
+            Entry base = entry.children[0];
+            Entry exponent = entry.children[1];
+
+            loadAdjoint();
+            if (child == 0) {
+                // b * a^(b - 1)
+                load(exponent);
+                mv.visitInsn(DMUL);
+                load(base);
+                if (!isConstant(exponent, 2.0)) {
+                    if (exponent.constant) {
+                        mv.visitLdcInsn(exponent.value - 1.0);
+                    } else {
+                        load(exponent);
+                        mv.visitInsn(DCONST_1);
+                        mv.visitInsn(DSUB);
+                    }
+                    math("pow", 2);
+                }
+                mv.visitInsn(DMUL);
+            } else {
+                // a^b * ln(a), reusing the power
+                load(entry);
+                mv.visitInsn(DMUL);
+                load(base);
+                math("log", 1);
+                mv.visitInsn(DMUL);
+            }
+        }
+
+        // Comparisons and logical operators are never active
+        @Override
+        public void visit(ComparisonNode node)
+        {
+        }
+
+        @Override
+        public void visit(AndNode node)
+        {
+        }
+
+        @Override
+        public void visit(OrNode node)
+        {
+        }
+
+        // The selected branch gets the whole derivative, and the other one
+        // and the condition none. The derivative is masked rather than
+        // multiplied by 0 or 1, so that it stays 0 even if it's infinite.
+        @Override
+        public void visit(ConditionalNode node)
+        {
+            if (child == 0) {
+                mv.visitInsn(DCONST_0);
+                return;
+            }
+
+            loadAdjoint();
+            NumericType.DOUBLE.toBits(mv);
+            loadConditionMask(child == 1);
+            mv.visitInsn(LAND);
+            NumericType.DOUBLE.fromBits(mv);
+        }
+
+        // Replace the contribution on top of the stack with 0 if the
+        // derivative of the entry is 0, which is the case in a branch that
+        // isn't selected. Otherwise an infinite or NaN partial derivative,
+        // such as that of sqrt(x) for x < 0, would turn the gradient into
+        // NaN.
+        public void guard(Entry entry)
+        {
+            NumericType type = NumericType.DOUBLE;
+            type.toBits(mv);
+            mv.visitVarInsn(DLOAD, entry.adjointRegister);
+            type.truth(mv);
+            type.mask(mv);
+            mv.visitInsn(LAND);
+            type.fromBits(mv);
+        }
+    }
+
+    private Compiler compiler;
+
+    // Registered derivatives, keyed by function name and argument. Replaced
+    // as a whole on registration, like the compiler's registry.
+    private volatile Map<String, Class<? extends Function>> derivatives;
+
+    public GradientCompiler(Compiler compiler)
+    {
+        this.compiler = compiler;
+        this.derivatives = Collections.emptyMap();
+    }
+
+    private static String derivativeKey(String function, int argument)
+    {
+        return function + "/" + argument;
+    }
+
+    // Register the partial derivative of a function with respect to one of
+    // its arguments. The derivative's call methods take the same arguments
+    // as the function itself. A registered derivative takes precedence over
+    // the built-in rules.
+    public synchronized void registerDerivative(String function,
+                                                int argument,
+                                                Class<? extends Function> derivative)
+    {
+        if (argument < 0) {
+            throw new IllegalArgumentException("Argument index must not be negative");
+        }
+
+        Map<String, Class<? extends Function>> updated = new HashMap<>(derivatives);
+        updated.put(derivativeKey(function, argument), derivative);
+        derivatives = Collections.unmodifiableMap(updated);
+    }
+
+    // Whether the derivative of a call to the function with respect to the
+    // given argument is known
+    private boolean hasDerivative(Map<String, Class<? extends Function>> derivatives,
+                                  Class<? extends Function> func,
+                                  FunctionNode node,
+                                  int argument)
+    {
+        Class<? extends Function> derivative =
+            derivatives.get(derivativeKey(node.getName(), argument));
+        if (derivative != null) {
+            return Compiler.findCallMethod(derivative, node.getArgumentCount()) != null;
+        }
+
+        Intrinsic intrinsic = func.getAnnotation(Intrinsic.class);
+        if (intrinsic == null || !intrinsic.owner().equals("java/lang/Math")) {
+            return false;
+        }
+
+        switch (intrinsic.name() + "/" + node.getArgumentCount()) {
+            case "sin/1": case "cos/1": case "tan/1":
+            case "asin/1": case "acos/1": case "atan/1":
+            case "exp/1": case "log/1": case "sqrt/1": case "abs/1":
+            case "min/2": case "max/2": case "atan2/2": case "hypot/2":
+            case "fma/3":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void call(MethodVisitor mv, Class<? extends Function> func, int arity)
+    {
+        mv.visitMethodInsn(INVOKESTATIC,
+                           func.getCanonicalName().replaceAll("\\.", "/"),
+                           "call",
+                           Compiler.callDescriptor(arity),
+                           false);
+    }
+
+    public byte[] compileToBytecode(String name, ASTNode tree, VariableLayout layout)
+    throws Compiler.CompilationException
+    {
+        // Work from a single snapshot of everything registered
+        Map<String, Class<? extends Function>> functions = compiler.getFunctions();
+        Map<String, Double> constants = compiler.getConstants();
+        Map<String, Class<? extends Function>> derivatives = this.derivatives;
+
+        Map<String, Boolean> pureFunctions = new HashMap<>();
+        for (String function : functions.keySet()) {
+            pureFunctions.put(function, compiler.isPureFunction(function));
+        }
+
+        if (compiler.isOptimizationEnabled()) {
+            tree = compiler.optimize(tree);
+        }
+
+        TapeVisitor tape = new TapeVisitor(constants, functions, pureFunctions);
+        tape.walk(tree);
+        List<Entry> entries = tape.getEntries();
+        Entry root = tape.getRoot();
+
+        for (String var : tape.getVariables().keySet()) {
+            if (!layout.contains(var)) {
+                throw new Compiler.CompilationException("Variable " + var +
+                                                        " is not part of the layout.");
+            }
+        }
+
+        // Registers 0-2 hold this, variables and gradient. Every computed
+        // entry gets a register for its value, and every active entry one
+        // for its derivative.
+        int nextRegister = 3;
+        for (Entry entry : entries) {
+            if (entry.node instanceof FunctionNode) {
+                FunctionNode node = (FunctionNode)entry.node;
+                Class<? extends Function> func = functions.get(node.getName());
+                if (func == null) {
+                    throw new Compiler.CompilationException("Function " + node.getName() +
+                                                            " is not known.");
+                }
+                if (Compiler.findCallMethod(func, node.getArgumentCount()) == null) {
+                    throw new Compiler.CompilationException("Function " + node.getName() +
+                                                            " does not take " +
+                                                            node.getArgumentCount() +
+                                                            " arguments.");
+                }
+
+                for (int i = 0; i < entry.children.length; i++) {
+                    if (entry.children[i].active &&
+                        !hasDerivative(derivatives, func, node, i)) {
+
+                        throw new Compiler.CompilationException("No derivative of function " +
+                                                                node.getName() +
+                                                                " with respect to argument " +
+                                                                i + ".");
+                    }
+                }
+            }
+
+            if (!entry.constant) {
+                entry.valueRegister = nextRegister;
+                nextRegister += 2;
+            }
+            if (entry.active) {
+                entry.adjointRegister = nextRegister;
+                nextRegister += 2;
+            }
+        }
+
+        if (nextRegister > 0xffff) {
+            throw new Compiler.CompilationException("Expression has too many distinct " +
+                                                    "subexpressions to differentiate.");
+        }
+
+        String className = "com/znaptag/expiler/" + name;
+
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(V1_7,
+                 ACC_PUBLIC,
+                 className,
+                 null,
+                 "com/znaptag/expiler/CompiledGradient",
+                 null);
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>",
+                                          "(Lcom/znaptag/expiler/VariableLayout;)V",
+                                          null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKESPECIAL, "com/znaptag/expiler/CompiledGradient", "<init>",
+                               "(Lcom/znaptag/expiler/VariableLayout;)V", false);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(2, 2);
+            mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "compute", "([D[D)D", null, null);
+            mv.visitCode();
+
+            // Forward sweep
+            ForwardVisitor forward = new ForwardVisitor(mv, functions, layout);
+            for (Entry entry : entries) {
+                if (!entry.constant) {
+                    forward.generate(entry);
+                }
+            }
+
+            // Backward sweep. Every parent comes after its children, so by
+            // the time an entry is reached in reverse, all of its parents
+            // have added their contributions to its derivative. The first
+            // contribution is stored directly, the rest are added to it.
+            boolean[] initialized = new boolean[nextRegister];
+            if (root.active) {
+                mv.visitInsn(DCONST_1);
+                mv.visitVarInsn(DSTORE, root.adjointRegister);
+                initialized[root.adjointRegister] = true;
+            }
+
+            // Everything in a branch of a conditional is guarded. Parents
+            // come after their children, so the flag reaches every entry
+            // below a branch.
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                Entry entry = entries.get(i);
+                for (int c = 0; c < entry.children.length; c++) {
+                    if (entry.guarded ||
+                        (c > 0 && entry.node instanceof ConditionalNode)) {
+
+                        entry.children[c].guarded = true;
+                    }
+                }
+            }
+
+            BackwardVisitor backward = new BackwardVisitor(mv, functions, derivatives);
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                Entry entry = entries.get(i);
+                if (!entry.active || !initialized[entry.adjointRegister]) {
+                    continue;
+                }
+
+                for (int c = 0; c < entry.children.length; c++) {
+                    Entry child = entry.children[c];
+                    if (!child.active) {
+                        continue;
+                    }
+
+                    backward.generate(entry, c);
+                    if (entry.guarded) {
+                        backward.guard(entry);
+                    }
+                    if (initialized[child.adjointRegister]) {
+                        mv.visitVarInsn(DLOAD, child.adjointRegister);
+                        mv.visitInsn(DADD);
+                    }
+                    mv.visitVarInsn(DSTORE, child.adjointRegister);
+                    initialized[child.adjointRegister] = true;
+                }
+            }
+
+            // Store the derivative of every variable in the layout
+            for (int i = 0; i < layout.size(); i++) {
+                mv.visitVarInsn(ALOAD, 2);
+                Compiler.pushInt(mv, i);
+
+                Entry var = tape.getVariables().get(layout.getName(i));
+                if (var != null && initialized[var.adjointRegister]) {
+                    mv.visitVarInsn(DLOAD, var.adjointRegister);
+                } else {
+                    mv.visitInsn(DCONST_0);
+                }
+                mv.visitInsn(DASTORE);
+            }
+
+            backward.load(root);
+            mv.visitInsn(DRETURN);
+
+            // The backward rules need up to four doubles on the stack, and
+            // a call to a derivative the adjoint and all arguments
+            int maxStack = Math.max(8, 2 + 2 * tape.getMaxArgumentCount());
+            mv.visitMaxs(maxStack, nextRegister);
+            mv.visitEnd();
+
+        cw.visitEnd();
+
+        try {
+            return cw.toByteArray();
+        }
+        catch (RuntimeException e) {
+            // The sweeps take several times the code of a plain evaluation,
+            // so this limit is reached much sooner than by Compiler
+            throw new Compiler.CompilationException("Expression is too large to differentiate: " +
+                                                    e.getMessage());
+        }
+    }
+
+    public CompiledGradient compile(String name, ASTNode tree)
+    throws Compiler.CompilationException
+    {
+        return compile(name, tree, compiler.getVariableLayout(tree));
+    }
+
+    // Compile the tree into a class computing the value and the derivative
+    // with respect to every variable in the layout
+    public CompiledGradient compile(String name, ASTNode tree, VariableLayout layout)
+    throws Compiler.CompilationException
+    {
+        byte[] bytecode = compileToBytecode(name, tree, layout);
+
+        Class<?> c = compiler.getClassDefiner().define("com.znaptag.expiler." + name, bytecode);
+        ClassTracker.track(c);
+
+        try {
+            return (CompiledGradient)c.getConstructor(VariableLayout.class).newInstance(layout);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Basic test method: compare the gradient against central differences,
+    // and time it against the 2N + 1 evaluations the differences take
+    public static void main(String[] args)
+    throws Exception
+    {
+        String[] expressions = args.length > 0 ? args : new String[] {
+            "x*y + z",
+            "(x - 1)*(y + 2)/(z*z + 1)",
+            "sin(x)*cos(y) + tan(z)",
+            "exp(0 - x*x/2)/sqrt(2*PI) + log(y)",
+            "x^y + x^3 + 2^z",
+            "max(x, y) - min(y, z) + fma(x, y, z) + abs(x - z)",
+            "hypot(x, y) + atan2(y, x) + asin(z/3) + acos(x/3) + atan(y)",
+            "sin(x*y)*sin(x*y) + sin(x*y)/z",
+            "x > 1 ? sqrt(x - 1)*y : z*z",
+            "(x < y && z > 0 ? log(x) : x*y) + (y > 2 || x < 0)"
+        };
+
+        Compiler compiler = new Compiler();
+        compiler.registerBuiltins();
+        GradientCompiler gradientCompiler = new GradientCompiler(compiler);
+        VariableLayout layout = new VariableLayout("x", "y", "z");
+
+        Random random = new Random(4711);
+        double[] vars = new double[3];
+        double[] shifted = new double[3];
+        double[] gradient = new double[3];
+        double h = 1e-6;
+        double total = 0.0;
+
+        for (int i = 0; i < expressions.length; i++) {
+            ASTNode tree = new Parser(new Lexer(expressions[i])).parse();
+            CompiledExpression scalar = compiler.compile("GradientValue" + i, tree, layout);
+            CompiledGradient grad = gradientCompiler.compile("Gradient" + i, tree, layout);
+
+            // Largest error relative to the central differences
+            double maxError = 0.0;
+            for (int sample = 0; sample < 100; sample++) {
+                for (int v = 0; v < 3; v++) {
+                    vars[v] = 0.5 + 1.5 * random.nextDouble();
+                }
+                double value = grad.compute(vars, gradient);
+                maxError = Math.max(maxError, Math.abs(value - scalar.compute(vars)));
+
+                for (int v = 0; v < 3; v++) {
+                    System.arraycopy(vars, 0, shifted, 0, 3);
+                    shifted[v] = vars[v] + h;
+                    double up = scalar.compute(shifted);
+                    shifted[v] = vars[v] - h;
+                    double down = scalar.compute(shifted);
+
+                    double estimate = (up - down) / (2 * h);
+                    maxError = Math.max(maxError, Math.abs(estimate - gradient[v]) /
+                                                  Math.max(1.0, Math.abs(gradient[v])));
+                }
+            }
+
+            int count = 1000000;
+            double sum = 0.0;
+            long start = System.nanoTime();
+            for (int n = 0; n < count; n++) {
+                vars[0] = n * 1e-6 + 0.5;
+                sum += grad.compute(vars, gradient);
+            }
+            long gradientTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int n = 0; n < count; n++) {
+                vars[0] = n * 1e-6 + 0.5;
+                sum += scalar.compute(vars);
+            }
+            long scalarTime = System.nanoTime() - start;
+
+            System.out.printf("%-60s error %.1e, gradient %.1f evaluations%n",
+                              expressions[i], maxError,
+                              (double)gradientTime / scalarTime);
+            total += sum;
+        }
+
+        System.out.println("sum: " + total);
+    }
+}
@@ -0,0 +1,43 @@
+package com.znaptag.expiler;
+
+import java.lang.invoke.MethodHandles;
+
+// Defines classes as hidden classes (Java 15+) in this package. Hidden classes
+// don't need a class loader of their own, can't clash by name, and are
+// unloaded individually as soon as they become unreachable.
+public class HiddenClassDefiner implements ClassDefiner
+{
+    private MethodHandles.Lookup lookup;
+
+    public HiddenClassDefiner()
+    {
+        // The generated classes live in com.znaptag.expiler, which is the
+        // package the lookup has to belong to
+        this.lookup = MethodHandles.lookup();
+    }
+
+    // Check whether the running JVM supports hidden classes
+    public static boolean isSupported()
+    {
+        try {
+            Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            return true;
+        }
+        catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Class<?> define(String name, byte[] bytecode)
+    {
+        try {
+            // No ClassOption.STRONG, so the class loader only keeps a weak
+            // reference to the class
+            return lookup.defineHiddenClass(bytecode, true).lookupClass();
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.znaptag.expiler;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.znaptag.expiler.ast.*;
+
+// Evaluates an expression by walking the AST, without generating any
+// bytecode. This is much slower than a compiled expression, but there's no
+// compilation cost up front, which makes it useful as a baseline when
+// measuring the compiler.
+public class Interpreter implements CompiledExpression
+{
+    // Evaluates the tree for a single set of variables, keeping intermediate
+    // results on a stack of its own
+    private class EvaluationVisitor extends PostOrderVisitor
+    {
+        private double[] variables;
+        private double[] stack;
+        private int top;
+        // whether the second operand of each conditional, && and || in
+        // progress is evaluated, or the first branch of a conditional
+        private Deque<Boolean> taken;
+        // the values of the let bindings in scope
+        private Map<String, Double> bindings;
+
+        public EvaluationVisitor(double[] variables)
+        {
+            this.variables = variables;
+            this.stack = new double[16];
+            this.top = 0;
+            this.taken = new ArrayDeque<>();
+            this.bindings = new HashMap<>();
+        }
+
+        public double getResult()
+        {
+            return stack[0];
+        }
+
+        private void push(double value)
+        {
+            if (top == stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            stack[top++] = value;
+        }
+
+        @Override
+        public void visit(NumberNode node)
+        {
+            push(node.getNumber());
+        }
+
+        @Override
+        public void visit(VariableNode node)
+        {
+            Double binding = bindings.get(node.getName());
+            Double constant = constants.get(node.getName());
+            if (binding != null) {
+                push(binding);
+            } else if (constant != null) {
+                push(constant);
+            } else {
+                push(variables[layout.indexOf(node.getName())]);
+            }
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            int argc = node.getArgumentCount();
+            Object[] args = new Object[argc];
+            for (int i = 0; i < argc; i++) {
+                args[i] = stack[top - argc + i];
+            }
+            top -= argc;
+
+            Method call = callMethods.get(node.getName() + "/" + argc);
+            try {
+                push((Double)call.invoke(null, args));
+            }
+            catch (IllegalAccessException | InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void visit(AddNode node)
+        {
+            top--;
+            stack[top - 1] = stack[top - 1] + stack[top];
+        }
+
+        @Override
+        public void visit(SubNode node)
+        {
+            top--;
+            stack[top - 1] = stack[top - 1] - stack[top];
+        }
+
+        @Override
+        public void visit(MulNode node)
+        {
+            top--;
+            stack[top - 1] = stack[top - 1] * stack[top];
+        }
+
+        @Override
+        public void visit(DivNode node)
+        {
+            top--;
+            stack[top - 1] = stack[top - 1] / stack[top];
+        }
+
+        @Override
+        public void visit(ExpNode node)
+        {
+            top--;
+            stack[top - 1] = Math.pow(stack[top - 1], stack[top]);
+        }
+
+        @Override
+        public void visit(ComparisonNode node)
+        {
+            top--;
+            stack[top - 1] = node.getOperator().apply(stack[top - 1], stack[top]) ? 1.0 : 0.0;
+        }
+
+        // Only one branch of a conditional is evaluated, and the right
+        // operand of && and || only if the left one doesn't decide the result
+        @Override
+        protected boolean enterChild(ASTNode parent, int index)
+        {
+            if (parent instanceof LetNode) {
+                if (index > 0) {
+                    bindings.put(((LetNode)parent).getName(index - 1), stack[--top]);
+                }
+            }
+            else if (parent instanceof ConditionalNode) {
+                if (index == 1) {
+                    taken.push(stack[--top] != 0.0);
+                    return taken.peek();
+                }
+                if (index == 2) {
+                    return !taken.peek();
+                }
+            }
+            else if (index == 1 && (parent instanceof AndNode || parent instanceof OrNode)) {
+                boolean left = stack[top - 1] != 0.0;
+                if (left == (parent instanceof AndNode)) {
+                    top--;
+                    taken.push(true);
+                    return true;
+                }
+
+                stack[top - 1] = left ? 1.0 : 0.0;
+                taken.push(false);
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public void visit(AndNode node)
+        {
+            logical();
+        }
+
+        @Override
+        public void visit(OrNode node)
+        {
+            logical();
+        }
+
+        // If the right operand was evaluated, it decides the result
+        private void logical()
+        {
+            if (taken.pop()) {
+                stack[top - 1] = stack[top - 1] != 0.0 ? 1.0 : 0.0;
+            }
+        }
+
+        @Override
+        public void visit(ConditionalNode node)
+        {
+            taken.pop();
+        }
+
+        // The body is on the stack
+        @Override
+        public void visit(LetNode node)
+        {
+            bindings.keySet().removeAll(node.getNames());
+        }
+    }
+
+    // Checks that every function and variable can be resolved, and looks up
+    // the call methods ahead of evaluation
+    private class ResolvingVisitor extends PostOrderVisitor
+    {
+        private Map<String, Class<? extends Function>> functions;
+        private String error;
+        private Set<String> bindings = new HashSet<>();
+
+        public ResolvingVisitor(Map<String, Class<? extends Function>> functions)
+        {
+            this.functions = functions;
+        }
+
+        public String getError()
+        {
+            return error;
+        }
+
+        @Override
+        public void visit(VariableNode node)
+        {
+            if (!bindings.contains(node.getName()) &&
+                !constants.containsKey(node.getName()) &&
+                !layout.contains(node.getName())) {
+
+                error = "Variable " + node.getName() + " is not part of the layout.";
+            }
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            Class<? extends Function> func = functions.get(node.getName());
+            if (func == null) {
+                error = "Function " + node.getName() + " is not known.";
+                return;
+            }
+
+            int argc = node.getArgumentCount();
+            Class<?>[] params = new Class<?>[argc];
+            Arrays.fill(params, double.class);
+            try {
+                callMethods.put(node.getName() + "/" + argc, func.getMethod("call", params));
+            }
+            catch (NoSuchMethodException e) {
+                error = "Function " + node.getName() + " does not take " + argc +
+                        " arguments.";
+            }
+        }
+
+        @Override
+        protected boolean enterChild(ASTNode parent, int index)
+        {
+            if (index > 0 && parent instanceof LetNode) {
+                bindings.add(((LetNode)parent).getName(index - 1));
+            }
+            return true;
+        }
+
+        @Override
+        public void visit(LetNode node)
+        {
+            bindings.removeAll(node.getNames());
+        }
+    }
+
+    private ASTNode tree;
+    private VariableLayout layout;
+    private Map<String, Double> constants;
+    // call methods by name and number of arguments, such as "min/2"
+    private Map<String, Method> callMethods;
+
+    // Interpret a tree using the constants and functions registered with a
+    // compiler. Function calls go through reflection.
+    public Interpreter(Compiler compiler, ASTNode tree, VariableLayout layout)
+    throws Compiler.CompilationException
+    {
+        this.tree = tree;
+        this.layout = layout;
+        this.constants = new HashMap<>(compiler.getConstants());
+        this.callMethods = new HashMap<>();
+
+        ResolvingVisitor resolver = new ResolvingVisitor(compiler.getFunctions());
+        resolver.walk(tree);
+        if (resolver.getError() != null) {
+            throw new Compiler.CompilationException(resolver.getError());
+        }
+    }
+
+    public Interpreter(Compiler compiler, ASTNode tree)
+    throws Compiler.CompilationException
+    {
+        this(compiler, tree, compiler.getVariableLayout(tree));
+    }
+
+    public VariableLayout getVariableLayout()
+    {
+        return layout;
+    }
+
+    @Override
+    public double compute(double[] variables)
+    {
+        EvaluationVisitor evaluator = new EvaluationVisitor(variables);
+        evaluator.walk(tree);
+
+        return evaluator.getResult();
+    }
+
+    @Override
+    public double compute(Map<String, Double> variables)
+    {
+        return compute(layout.toArray(variables));
+    }
+
+    @Override
+    public void computeBatch(double[][] columns, double[] out, int from, int to)
+    {
+        double[] row = new double[layout.size()];
+        for (int i = from; i < to; i++) {
+            for (int slot = 0; slot < row.length; slot++) {
+                if (columns[slot] != null) {
+                    row[slot] = columns[slot][i];
+                }
+            }
+
+            out[i] = compute(row);
+        }
+    }
+}
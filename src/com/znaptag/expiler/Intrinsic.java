@@ -0,0 +1,22 @@
+package com.znaptag.expiler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Marks a function whose call methods do nothing but forward to a static
+// method with the same parameters, typically one in java.lang.Math. The
+// compiler calls the target directly rather than going through the wrapper,
+// which lets the JIT recognize it as an intrinsic. Expressions compiled as
+// floats or longs call the target if it has an overload for that type, and
+// the function's own call overload otherwise.
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Intrinsic
+{
+    // Internal name of the class declaring the target method
+    String owner() default "java/lang/Math";
+
+    String name();
+}
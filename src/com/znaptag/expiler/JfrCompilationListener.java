@@ -0,0 +1,208 @@
+package com.znaptag.expiler;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+// Records the statistics of every compilation as JDK Flight Recorder events
+// (Java 11+), so that they show up next to GC, class loading and JIT
+// activity in a recording:
+//
+//     compiler.addCompilationListener(new JfrCompilationListener());
+//
+// The events are disabled unless a recording enables them, e.g. with
+// -XX:StartFlightRecording or the default settings, in which case the
+// listener costs little more than a check. Each event is committed once the
+// expression has been loaded, with the duration of every stage as a field.
+public class JfrCompilationListener implements CompilationListener
+{
+    @Name("com.znaptag.expiler.Compilation")
+    @Label("Expression Compilation")
+    @Category("Expiler")
+    @Description("An expression compiled to bytecode")
+    @StackTrace(false)
+    static class CompilationEvent extends Event
+    {
+        @Label("Class")
+        String name;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Nodes")
+        int nodes;
+
+        @Label("Max Stack Depth")
+        int maxStackDepth;
+
+        @Label("Class Size")
+        @DataAmount
+        int bytecodeSize;
+
+        @Label("Compute Size")
+        @DataAmount
+        int computeSize;
+
+        @Label("Batch Size")
+        @DataAmount
+        int batchSize;
+
+        @Label("Inlinable")
+        @Description("Compute fits within FreqInlineSize")
+        boolean inlinable;
+
+        @Label("Huge Method")
+        @Description("A method exceeds HugeMethodLimit and won't be JIT compiled")
+        boolean hugeMethod;
+
+        @Label("Lex Time")
+        @Timespan
+        long lexTime;
+
+        @Label("Parse Time")
+        @Timespan
+        long parseTime;
+
+        @Label("Optimize Time")
+        @Timespan
+        long optimizeTime;
+
+        @Label("First Pass Time")
+        @Timespan
+        long firstPassTime;
+
+        @Label("Generate Time")
+        @Timespan
+        long generateTime;
+
+        @Label("Define Time")
+        @Timespan
+        long defineTime;
+
+        @Label("Link Time")
+        @Timespan
+        long linkTime;
+
+        @Label("Total Time")
+        @Timespan
+        long totalTime;
+    }
+
+    @Name("com.znaptag.expiler.CompilationFailure")
+    @Label("Expression Compilation Failure")
+    @Category("Expiler")
+    @StackTrace(false)
+    static class CompilationFailureEvent extends Event
+    {
+        @Label("Class")
+        String name;
+
+        @Label("Message")
+        String message;
+    }
+
+    // Check whether the running JVM has Flight Recorder
+    public static boolean isSupported()
+    {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void compiled(CompilationStatistics statistics)
+    {
+        CompilationEvent event = new CompilationEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+
+        event.name = statistics.getName();
+        event.tokens = statistics.getTokenCount();
+        event.nodes = statistics.getNodeCount();
+        event.maxStackDepth = statistics.getMaxStackDepth();
+        event.bytecodeSize = statistics.getBytecodeSize();
+        event.computeSize = statistics.getComputeSize();
+        event.batchSize = statistics.getBatchSize();
+        event.inlinable = statistics.isInlinable();
+        event.hugeMethod = statistics.isHugeMethod();
+        event.lexTime = statistics.getLexTime();
+        event.parseTime = statistics.getParseTime();
+        event.optimizeTime = statistics.getOptimizeTime();
+        event.firstPassTime = statistics.getFirstPassTime();
+        event.generateTime = statistics.getGenerateTime();
+        event.defineTime = statistics.getDefineTime();
+        event.linkTime = statistics.getLinkTime();
+        event.totalTime = statistics.getTotalTime();
+        event.commit();
+    }
+
+    @Override
+    public void failed(CompilationStatistics statistics, Exception error)
+    {
+        CompilationFailureEvent event = new CompilationFailureEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+
+        event.name = statistics.getName();
+        event.message = error.getMessage();
+        event.commit();
+    }
+
+    // Basic test method: compile a few expressions during a recording, and
+    // print the events read back from it
+    public static void main(String[] args)
+    throws Exception
+    {
+        String[] expressions = args.length > 0 ? args : new String[] {
+            "x*y + z",
+            "sin(x)*cos(y) + sin(x)*cos(y)",
+            "unknown(x)",
+            "x +"
+        };
+
+        Compiler compiler = new Compiler();
+        compiler.registerBuiltins();
+        compiler.addCompilationListener(new JfrCompilationListener());
+
+        Path file = Files.createTempFile("expiler", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(CompilationEvent.class);
+            recording.enable(CompilationFailureEvent.class);
+            recording.start();
+
+            for (int i = 0; i < expressions.length; i++) {
+                try {
+                    compiler.compile("JfrExpression" + i, expressions[i]);
+                }
+                catch (Exception e) {
+                    System.out.println(expressions[i] + ": " + e.getMessage());
+                }
+            }
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            System.out.println(event);
+        }
+        Files.delete(file);
+    }
+}
@@ -3,111 +3,242 @@ package com.znaptag.expiler;
 import java.util.Iterator;
 import java.util.Deque;
 import java.util.ArrayDeque;
-import java.util.List;
-import java.util.ArrayList;
 import java.io.Reader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
-// Regex based lexer which accepts an InputStream or an Reader and outputs
-// a stream of Tokens
+// Hand written lexer which accepts a CharSequence, an InputStream or a Reader
+// and outputs a stream of Tokens. Input is scanned in a single pass over a
+// char buffer, which is refilled from the reader as needed, so each
+// character is only looked at once.
 public class Lexer
 {
+    private static final int BUFFER_SIZE = 8192;
+
+    // Source of additional input, or null if everything is in the buffer
     private Reader reader;
 
-    // Accumulated token data
-    private StringBuilder current;
+    // Input buffer. The valid range is [0, limit), pos is the next char to
+    // be scanned and mark is the start of the token currently being
+    // scanned.
+    private char[] buf;
+    private int pos;
+    private int limit;
+    private int mark;
+
+    // Offset of buf[0] in the input, used for error messages
+    private long offset;
 
     // Pending tokens
     private Deque<Token> tokens;
 
     public Lexer(InputStream stream)
     {
-        this.reader = new InputStreamReader(stream);
-        this.current = new StringBuilder();
-        this.tokens = new ArrayDeque<>();
+        this(new InputStreamReader(stream));
     }
 
     public Lexer(Reader reader)
     {
         this.reader = reader;
-        this.current = new StringBuilder();
+        this.buf = new char[BUFFER_SIZE];
+        this.pos = 0;
+        this.limit = 0;
+        this.mark = 0;
+        this.offset = 0;
+        this.tokens = new ArrayDeque<>();
+    }
+
+    // Scan an expression which is already in memory
+    public Lexer(CharSequence input)
+    {
+        this.reader = null;
+        this.buf = new char[input.length()];
+        if (input instanceof String) {
+            ((String)input).getChars(0, buf.length, buf, 0);
+        } else {
+            for (int i = 0; i < buf.length; i++) {
+                buf[i] = input.charAt(i);
+            }
+        }
+        this.pos = 0;
+        this.limit = buf.length;
+        this.mark = 0;
+        this.offset = 0;
         this.tokens = new ArrayDeque<>();
     }
 
-    // Find tokens within the stream
-    private void consume()
+    // Read more input into the buffer. Everything before mark is discarded,
+    // and the buffer is grown if a single token fills all of it. Returns
+    // false at the end of the input.
+    private boolean fill()
     throws IOException
     {
-        Token.Type activeTokenType = null;
-        String activeTokenString = null;
-        boolean endOfStream = false;
+        if (reader == null) {
+            return false;
+        }
 
-        // Loop until we have a fully accumulated token, or we reach the end of
-        // the stream
-        while (true) {
+        if (mark > 0) {
+            System.arraycopy(buf, mark, buf, 0, limit - mark);
+            offset += mark;
+            pos -= mark;
+            limit -= mark;
+            mark = 0;
+        }
 
-            // If there's nothing in the buffer, there's no need to try to
-            // match anything
-            if (current.length() != 0) {
-
-                // Loop over all known tokens, and apply their matching regex
-                Token.Type matchingTokenType = null;
-                for (Token.Type type : Token.Type.values()) {
-                    Pattern p = type.getPattern();
-                    Matcher m = p.matcher(current.toString());
-                    if (m.matches()) {
-                        matchingTokenType = type;
-                        activeTokenString = m.group(0);
-                    }
-                }
+        if (limit == buf.length) {
+            char[] newBuf = new char[2 * buf.length];
+            System.arraycopy(buf, 0, newBuf, 0, limit);
+            buf = newBuf;
+        }
 
-                // If there's no currently matching token type, but there was
-                // one during the previous iteration, exit the loop.
-                if ((matchingTokenType == null &&
-                     activeTokenType != null) ||
-                    endOfStream) {
+        int count = reader.read(buf, limit, buf.length - limit);
+        if (count == -1) {
+            return false;
+        }
 
-                    break;
-                }
+        limit += count;
+        return true;
+    }
 
-                activeTokenType = matchingTokenType;
-            }
+    // The char at the current position, or -1 at the end of the input
+    private int current()
+    throws IOException
+    {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
 
-            // Retrieve a byte from the reader and append to buffer. Spin
-            // around.
-            int res = reader.read();
-            if (res == -1) {
-                endOfStream = true;
-                if (current.length() == 0) {
-                    break;
-                } else {
-                    continue;
-                }
+        return buf[pos];
+    }
+
+    private static boolean isDigit(int c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(int c)
+    {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    // Skip the current char if it's the given one
+    private boolean consumeIf(char c)
+    throws IOException
+    {
+        if (current() != c) {
+            return false;
+        }
+
+        pos++;
+        return true;
+    }
+
+    // Skip the first char of a two char operator, and require the second
+    private void expectPair(char second)
+    throws IOException
+    {
+        char first = buf[pos];
+        pos++;
+        if (!consumeIf(second)) {
+            throw new IOException("Expected '" + first + second +
+                                  "' at offset " + (offset + mark));
+        }
+    }
+
+    // Scan a single token and add it to the deque. Returns false at the end
+    // of the input.
+    private boolean consume()
+    throws IOException
+    {
+        // Skip whitespace
+        int c;
+        while (true) {
+            mark = pos;
+            c = current();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
             }
-            current.appendCodePoint(res);
+            pos++;
         }
 
-        if (activeTokenType == null) {
-            return;
+        if (c == -1) {
+            return false;
         }
 
-        //System.out.println("got " + activeTokenType + ": " + activeTokenString);
-        current.delete(0, activeTokenString.length());
+        Token.Type type;
+        switch (c) {
+            case '+': type = Token.Type.ADD; pos++; break;
+            case '-': type = Token.Type.SUB; pos++; break;
+            case '*': type = Token.Type.MUL; pos++; break;
+            case '/': type = Token.Type.DIV; pos++; break;
+            case '^': type = Token.Type.EXP; pos++; break;
+            case '(': type = Token.Type.LPAREN; pos++; break;
+            case ')': type = Token.Type.RPAREN; pos++; break;
+            case ',': type = Token.Type.COMMA; pos++; break;
+            case '?': type = Token.Type.QUESTION; pos++; break;
+            case ':': type = Token.Type.COLON; pos++; break;
+            case ';': type = Token.Type.SEMICOLON; pos++; break;
+            case '<':
+                pos++;
+                type = consumeIf('=') ? Token.Type.LESSEQUAL : Token.Type.LESS;
+                break;
+            case '>':
+                pos++;
+                type = consumeIf('=') ? Token.Type.GREATEREQUAL : Token.Type.GREATER;
+                break;
+            case '=':
+                pos++;
+                type = consumeIf('=') ? Token.Type.EQUAL : Token.Type.ASSIGN;
+                break;
+            // The remaining operators are two characters long, and the first
+            // one isn't a token on its own
+            case '!': type = Token.Type.NOTEQUAL; expectPair('='); break;
+            case '&': type = Token.Type.AND; expectPair('&'); break;
+            case '|': type = Token.Type.OR; expectPair('|'); break;
+            default:
+                if (isDigit(c)) {
+                    // [0-9]+ optionally followed by a decimal point and
+                    // [0-9]*
+                    type = Token.Type.NUMBER;
+                    do {
+                        pos++;
+                    } while (isDigit(current()));
 
-        // If there's a whitespace token, call ourselves recursively until we
-        // get something else. Typically, this shouldn't require more than
-        // a single call, ever.
-        if (activeTokenType == Token.Type.WHITESPACE) {
-            consume();
+                    if (current() == '.') {
+                        type = Token.Type.DECIMALNUMBER;
+                        do {
+                            pos++;
+                        } while (isDigit(current()));
+                    }
+                }
+                else if (isLetter(c)) {
+                    // [A-Za-z]+[A-Za-z0-9_]*
+                    type = Token.Type.IDENT;
+                    do {
+                        pos++;
+                        c = current();
+                    } while (isLetter(c) || isDigit(c) || c == '_');
+                }
+                else {
+                    throw new IOException("Unexpected character '" + (char)c +
+                                          "' at offset " + (offset + pos));
+                }
         }
-        // If not whitespace, add the new token to the deque
-        else {
-            tokens.addLast(new Token(activeTokenType, activeTokenString));
+
+        tokens.addLast(new Token(type, new String(buf, mark, pos - mark)));
+        return true;
+    }
+
+    // Scan the rest of the input up front, so that next and peek only take
+    // tokens from the deque. Returns the number of tokens in it.
+    public int readAll()
+    throws IOException
+    {
+        while (consume()) {
         }
+
+        return tokens.size();
     }
 
     // Retrieve the next token and remove it. Returns null if nothing is
@@ -115,42 +246,32 @@ public class Lexer
     public Token next()
     throws IOException
     {
-        if (tokens.size() == 0) {
-            consume();
-            if (tokens.size() == 0) {
-                return null;
-            }
+        if (tokens.isEmpty() && !consume()) {
+            return null;
         }
 
         return tokens.removeFirst();
     }
 
     // "Look ahead" n tokens without removing anything. This is required by the
-    // recursive descent parser. Returns null if nothing is available.
+    // parser. Returns null if nothing is available.
     public Token peek(int n)
     throws IOException
     {
-        // Make sure the deque contains enough tokens
-        if (tokens.size() <= n) {
-            for (int i = 0; i <= n; i++) {
-                consume();
+        // Only scan as many tokens as are missing
+        while (tokens.size() <= n) {
+            if (!consume()) {
+                return null;
             }
         }
 
         // Step forward through the deque until we found the token we want
         Iterator<Token> it = tokens.iterator();
-        int i = 0;
-        while (it.hasNext()) {
-            Token t = it.next();
-            if (i < n) {
-                i++;
-                continue;
-            }
-
-            return t;
+        for (int i = 0; i < n; i++) {
+            it.next();
         }
 
-        return null;
+        return it.next();
     }
 
     // Basic test method: Read from stdin and print the identified tokens
@@ -165,11 +286,6 @@ public class Lexer
             }
 
             System.out.println("got " + t.getType() + ": " + t.getRepr());
-
-            //Token t2 = lexer.peek(2);
-            //if (t2 != null) {
-            //    System.out.println("lookahead(2) " + t2.getType() + ": " + t2.getRepr());
-            //}
         }
     }
 }
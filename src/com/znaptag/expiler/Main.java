@@ -1,40 +1,603 @@
 package com.znaptag.expiler;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.io.StringReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import com.znaptag.expiler.ast.*;
-import com.znaptag.expiler.function.*;
 
+// Command line evaluator, which streams rows from a CSV or binary file (or
+// stdin) through a compiled expression and writes one result per row:
+//
+//     java com.znaptag.expiler.Main [options] expression [input [output]]
+//
+// CSV input starts with a header line naming the columns, and every
+// variable of the expression is bound to the column of the same name.
+// Binary input is a sequence of records of doubles, one per name given with
+// --columns. Rows are read in blocks straight into double[] columns and
+// evaluated with computeBatch, so nothing is allocated per row.
 public class Main
 {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Powers of ten which are exact as doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+    }
+
+    public static class FormatException extends IOException
+    {
+        public FormatException(String message)
+        {
+            super(message);
+        }
+    }
+
+    // Reads blocks of rows into columns
+    private static interface RowReader
+    {
+        // The names of the columns, in the order they're stored
+        public List<String> getColumnNames();
+
+        // Fill rows [0, n) of the columns marked as used, where n is at most
+        // max, and return n. Zero means the input is exhausted.
+        public int read(double[][] columns, boolean[] used, int max)
+        throws IOException;
+    }
+
+    // Writes blocks of results
+    private static interface ResultWriter
+    {
+        public void write(double[] results, int count)
+        throws IOException;
+
+        public void flush()
+        throws IOException;
+    }
+
+    // Comma separated values, with a header line. Fields are parsed straight
+    // from the byte buffer, and fields of unused columns are skipped without
+    // parsing them.
+    private static class CsvReader implements RowReader
+    {
+        private ReadableByteChannel channel;
+        private byte delimiter;
+        private ByteBuffer buffer;
+        private boolean eof;
+        private long line;
+        private List<String> names;
+
+        public CsvReader(ReadableByteChannel channel, byte delimiter)
+        throws IOException
+        {
+            this.channel = channel;
+            this.delimiter = delimiter;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.buffer.flip();
+            this.line = 0;
+            this.names = readHeader();
+        }
+
+        @Override
+        public List<String> getColumnNames()
+        {
+            return names;
+        }
+
+        // Make sure the buffer holds a complete line, reading more input if
+        // necessary. Returns the index of the end of the line, which is the
+        // limit if the last line lacks a line break, or -1 at the end of the
+        // input.
+        private int nextLine()
+        throws IOException
+        {
+            int searchFrom = buffer.position();
+            while (true) {
+                byte[] array = buffer.array();
+                for (int i = searchFrom; i < buffer.limit(); i++) {
+                    if (array[i] == '\n') {
+                        return i;
+                    }
+                }
+
+                if (eof) {
+                    return buffer.hasRemaining() ? buffer.limit() : -1;
+                }
+
+                // Move the partial line to the front, growing the buffer if
+                // it's a single line longer than the buffer
+                searchFrom = buffer.remaining();
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity());
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+
+                if (channel.read(buffer) == -1) {
+                    eof = true;
+                }
+                buffer.flip();
+            }
+        }
+
+        // The end of a line, excluding a trailing carriage return
+        private int trimLineEnd(int start, int end)
+        {
+            if (end > start && buffer.array()[end - 1] == '\r') {
+                return end - 1;
+            }
+
+            return end;
+        }
+
+        private List<String> readHeader()
+        throws IOException
+        {
+            int end = nextLine();
+            if (end == -1) {
+                throw new FormatException("Missing header line");
+            }
+            line++;
+
+            int start = buffer.position();
+            String header = new String(buffer.array(), start, trimLineEnd(start, end) - start,
+                                       StandardCharsets.UTF_8);
+            buffer.position(Math.min(end + 1, buffer.limit()));
+
+            List<String> names = new ArrayList<>();
+            for (String name : header.split(String.valueOf((char)delimiter), -1)) {
+                names.add(name.trim());
+            }
+
+            return names;
+        }
+
+        @Override
+        public int read(double[][] columns, boolean[] used, int max)
+        throws IOException
+        {
+            int rows = 0;
+            while (rows < max) {
+                int end = nextLine();
+                if (end == -1) {
+                    break;
+                }
+                line++;
+
+                byte[] array = buffer.array();
+                int pos = buffer.position();
+                int lineEnd = trimLineEnd(pos, end);
+                buffer.position(Math.min(end + 1, buffer.limit()));
+
+                if (pos == lineEnd) {
+                    // Skip empty lines
+                    continue;
+                }
+
+                for (int column = 0; column < names.size(); column++) {
+                    if (pos > lineEnd) {
+                        throw new FormatException("Line " + line + " has only " + column +
+                                                  " fields");
+                    }
+
+                    int fieldEnd = pos;
+                    while (fieldEnd < lineEnd && array[fieldEnd] != delimiter) {
+                        fieldEnd++;
+                    }
+
+                    if (used[column]) {
+                        try {
+                            columns[column][rows] = parseDouble(array, pos, fieldEnd);
+                        }
+                        catch (NumberFormatException e) {
+                            throw new FormatException("Invalid number in line " + line +
+                                                      ", column " + names.get(column));
+                        }
+                    }
+
+                    // Step over the delimiter
+                    pos = fieldEnd + 1;
+                }
+
+                rows++;
+            }
+
+            return rows;
+        }
+    }
+
+    // Records of doubles, one per column, in the given byte order
+    private static class BinaryReader implements RowReader
+    {
+        private ReadableByteChannel channel;
+        private List<String> names;
+        private ByteBuffer buffer;
+        private boolean eof;
+
+        public BinaryReader(ReadableByteChannel channel, List<String> names, ByteOrder order)
+        {
+            this.channel = channel;
+            this.names = names;
+            // A whole number of records, and at least one
+            int recordSize = 8 * names.size();
+            this.buffer = ByteBuffer.allocateDirect(Math.max(recordSize,
+                                                             BUFFER_SIZE - BUFFER_SIZE % recordSize))
+                                    .order(order);
+            this.buffer.flip();
+        }
+
+        @Override
+        public List<String> getColumnNames()
+        {
+            return names;
+        }
+
+        @Override
+        public int read(double[][] columns, boolean[] used, int max)
+        throws IOException
+        {
+            int recordSize = 8 * names.size();
+            int rows = 0;
+            while (rows < max) {
+                if (buffer.remaining() < recordSize) {
+                    if (eof) {
+                        if (buffer.hasRemaining()) {
+                            throw new FormatException("Input ends within a record");
+                        }
+                        break;
+                    }
+
+                    buffer.compact();
+                    while (buffer.hasRemaining() && !eof) {
+                        if (channel.read(buffer) == -1) {
+                            eof = true;
+                        }
+                    }
+                    buffer.flip();
+                    continue;
+                }
+
+                int pos = buffer.position();
+                for (int column = 0; column < columns.length; column++) {
+                    if (used[column]) {
+                        columns[column][rows] = buffer.getDouble(pos + 8 * column);
+                    }
+                }
+                buffer.position(pos + recordSize);
+                rows++;
+            }
+
+            return rows;
+        }
+    }
+
+    // One number per line. StringBuilder.append(double) formats without an
+    // intermediate String, and the characters are copied into a byte buffer
+    // which is written to the channel when full.
+    private static class TextWriter implements ResultWriter
+    {
+        private WritableByteChannel channel;
+        private ByteBuffer buffer;
+        private StringBuilder text;
+
+        public TextWriter(WritableByteChannel channel)
+        {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.text = new StringBuilder(32);
+        }
+
+        @Override
+        public void write(double[] results, int count)
+        throws IOException
+        {
+            for (int i = 0; i < count; i++) {
+                text.setLength(0);
+                text.append(results[i]).append('\n');
+
+                if (buffer.remaining() < text.length()) {
+                    flush();
+                }
+                for (int c = 0; c < text.length(); c++) {
+                    buffer.put((byte)text.charAt(c));
+                }
+            }
+        }
+
+        @Override
+        public void flush()
+        throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    // Raw doubles in the given byte order
+    private static class BinaryWriter implements ResultWriter
+    {
+        private WritableByteChannel channel;
+        private ByteBuffer buffer;
+
+        public BinaryWriter(WritableByteChannel channel, ByteOrder order)
+        {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(order);
+        }
+
+        @Override
+        public void write(double[] results, int count)
+        throws IOException
+        {
+            for (int i = 0; i < count; i++) {
+                if (buffer.remaining() < 8) {
+                    flush();
+                }
+                buffer.putDouble(results[i]);
+            }
+        }
+
+        @Override
+        public void flush()
+        throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    // Parse a decimal number from ASCII bytes in [start, end), ignoring
+    // surrounding spaces. Numbers of up to 18 significant digits with a
+    // small exponent are converted exactly with a single multiplication or
+    // division, as both operands are exact doubles. Everything else goes
+    // through Double.parseDouble, which is rarely needed for real data.
+    static double parseDouble(byte[] bytes, int start, int end)
+    {
+        while (start < end && bytes[start] == ' ') {
+            start++;
+        }
+        while (end > start && bytes[end - 1] == ' ') {
+            end--;
+        }
+
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+            negative = bytes[pos] == '-';
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenPoint = false;
+        for (; pos < end; pos++) {
+            byte b = bytes[pos];
+            if (b >= '0' && b <= '9') {
+                mantissa = 10 * mantissa + (b - '0');
+                digits++;
+                if (seenPoint) {
+                    scale--;
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+
+        if (pos < end && (bytes[pos] == 'e' || bytes[pos] == 'E') && digits > 0) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+                negativeExponent = bytes[pos] == '-';
+                pos++;
+            }
+
+            int exponent = 0;
+            int exponentStart = pos;
+            for (; pos < end && bytes[pos] >= '0' && bytes[pos] <= '9'; pos++) {
+                exponent = Math.min(10 * exponent + (bytes[pos] - '0'), 100000);
+            }
+            if (pos == exponentStart) {
+                return parseSlow(bytes, start, end);
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+
+        if (pos != end || digits == 0 || digits > 18 || mantissa > (1L << 53) ||
+            scale < -22 || scale > 22) {
+
+            return parseSlow(bytes, start, end);
+        }
+
+        double value = mantissa;
+        if (scale >= 0) {
+            value *= POWERS_OF_TEN[scale];
+        } else {
+            value /= POWERS_OF_TEN[-scale];
+        }
+
+        return negative ? -value : value;
+    }
+
+    private static double parseSlow(byte[] bytes, int start, int end)
+    {
+        return Double.parseDouble(new String(bytes, start, end - start,
+                                             StandardCharsets.ISO_8859_1));
+    }
+
+    private static void usage()
+    {
+        System.err.println("usage: Main [options] expression [input [output]]");
+        System.err.println();
+        System.err.println("Evaluates the expression for every row of the input, which");
+        System.err.println("defaults to stdin, and writes one result per row to the");
+        System.err.println("output, which defaults to stdout. A file name of - also");
+        System.err.println("selects stdin or stdout.");
+        System.err.println();
+        System.err.println("  --format csv|binary  input format, default csv");
+        System.err.println("  --delimiter c        CSV field delimiter, default ,");
+        System.err.println("  --columns a,b,...    column names of binary records");
+        System.err.println("  --order little|big   byte order of binary input and output,");
+        System.err.println("                       default little");
+        System.err.println("  --output text|binary output format, default text");
+        System.err.println("  --block n            rows per block, default " + DEFAULT_BLOCK_SIZE);
+        System.exit(2);
+    }
+
     public static void main(String[] args)
     throws Exception
     {
-        Parser parser = new Parser(new Lexer(System.in));
-        ASTNode tree = parser.parse();
+        String format = "csv";
+        String outputFormat = "text";
+        byte delimiter = ',';
+        List<String> binaryColumns = null;
+        ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        List<String> positional = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
+            }
+            if (i + 1 == args.length) {
+                usage();
+            }
+
+            String value = args[++i];
+            switch (arg) {
+                case "--format": format = value; break;
+                case "--output": outputFormat = value; break;
+                case "--delimiter": delimiter = (byte)value.charAt(0); break;
+                case "--columns": binaryColumns = Arrays.asList(value.split(",")); break;
+                case "--order":
+                    order = value.equals("big") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                    break;
+                case "--block": blockSize = Integer.parseInt(value); break;
+                default: usage();
+            }
+        }
+
+        if (positional.isEmpty() || positional.size() > 3 || blockSize < 1 ||
+            (format.equals("binary") && (binaryColumns == null || binaryColumns.contains("")))) {
+            usage();
+        }
+
+        String inputName = positional.size() > 1 ? positional.get(1) : "-";
+        String outputName = positional.size() > 2 ? positional.get(2) : "-";
+
+        ReadableByteChannel in;
+        if (inputName.equals("-")) {
+            in = Channels.newChannel(System.in);
+        } else {
+            in = FileChannel.open(Paths.get(inputName), StandardOpenOption.READ);
+        }
+
+        WritableByteChannel out;
+        if (outputName.equals("-")) {
+            out = new FileOutputStream(FileDescriptor.out).getChannel();
+        } else {
+            out = FileChannel.open(Paths.get(outputName),
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        try {
+            RowReader reader;
+            if (format.equals("binary")) {
+                reader = new BinaryReader(in, binaryColumns, order);
+            } else {
+                reader = new CsvReader(in, delimiter);
+            }
+
+            ResultWriter writer;
+            if (outputFormat.equals("binary")) {
+                writer = new BinaryWriter(out, order);
+            } else {
+                writer = new TextWriter(out);
+            }
+
+            Compiler compiler = new Compiler();
+            compiler.registerBuiltins();
 
-        Compiler compiler = new Compiler();
+            // The layout only holds the variables the expression uses, so the
+            // other columns may have any name, or none. Each slot shares its
+            // array with the input column of the same name, which is the only
+            // one the reader fills in.
+            ASTNode tree = new Parser(new Lexer(positional.get(0))).parse();
+            VariableLayout layout = compiler.getVariableLayout(tree);
+            CompiledExpression expr = compiler.compile("MainExpression", tree, layout);
 
-        compiler.registerConstant("PI", Math.PI);
-        compiler.registerConstant("E", Math.E);
+            List<String> names = reader.getColumnNames();
+            double[][] input = new double[names.size()][];
+            boolean[] used = new boolean[names.size()];
+            double[][] columns = new double[layout.size()][];
+            for (int slot = 0; slot < layout.size(); slot++) {
+                String var = layout.getName(slot);
+                int column = names.indexOf(var);
+                if (column == -1) {
+                    throw new FormatException("There is no column " + var);
+                }
+                if (names.lastIndexOf(var) != column) {
+                    throw new FormatException("Column " + var + " occurs more than once");
+                }
 
-        compiler.registerFunction("sqrt", SqrtFunction.class);
-        compiler.registerFunction("sin", SinFunction.class);
-        compiler.registerFunction("cos", CosFunction.class);
-        compiler.registerFunction("tan", TanFunction.class);
-        compiler.registerFunction("asin", ArcSinFunction.class);
-        compiler.registerFunction("acos", ArcCosFunction.class);
-        compiler.registerFunction("atan", ArcTanFunction.class);
-        compiler.registerFunction("exp", ExpFunction.class);
-        compiler.registerFunction("log", LogFunction.class);
-        compiler.registerFunction("ln", LogFunction.class);
+                columns[slot] = new double[blockSize];
+                input[column] = columns[slot];
+                used[column] = true;
+            }
+            double[] results = new double[blockSize];
 
-        CompiledExpression expr = compiler.compile("TestExpression", tree);
+            long start = System.nanoTime();
+            long rows = 0;
+            int count;
+            while ((count = reader.read(input, used, blockSize)) > 0) {
+                expr.computeBatch(columns, results, 0, count);
+                writer.write(results, count);
+                rows += count;
+            }
+            writer.flush();
+            double seconds = (System.nanoTime() - start) / 1e9;
 
-        Map<String, Double> vars = new HashMap<>();
-        double res = expr.compute(vars);
-        System.out.println("res: " + res);
+            System.err.printf("%d rows in %.3f s, %.0f rows/s%n", rows, seconds, rows / seconds);
+        }
+        catch (Compiler.CompilationException | Parser.ParseException | FormatException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        finally {
+            in.close();
+            out.close();
+        }
     }
 }
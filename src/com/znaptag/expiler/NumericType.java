@@ -0,0 +1,323 @@
+package com.znaptag.expiler;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import static org.objectweb.asm.Opcodes.*;
+
+import com.znaptag.expiler.ast.ComparisonNode;
+
+// The primitive type an expression is evaluated in. Doubles are the
+// default; floats halve the memory traffic of batch evaluation, and longs
+// give exact integer arithmetic, which wraps around on overflow and
+// truncates divisions like Java does.
+//
+// The code generator is written in terms of the int opcodes (IADD, ILOAD,
+// IALOAD, ...), which getOpcode translates into the variant for the type,
+// the way asm's Type does.
+public enum NumericType
+{
+    DOUBLE(Type.DOUBLE_TYPE, double.class, "java/lang/Double", T_DOUBLE,
+           "com/znaptag/expiler/CompiledExpression"),
+    FLOAT(Type.FLOAT_TYPE, float.class, "java/lang/Float", T_FLOAT,
+          "com/znaptag/expiler/CompiledFloatExpression"),
+    LONG(Type.LONG_TYPE, long.class, "java/lang/Long", T_LONG,
+         "com/znaptag/expiler/CompiledLongExpression");
+
+    private Type type;
+    private Class<?> primitiveClass;
+    private String boxedName;
+    private int arrayType;
+    private String interfaceName;
+
+    private NumericType(Type type,
+                        Class<?> primitiveClass,
+                        String boxedName,
+                        int arrayType,
+                        String interfaceName)
+    {
+        this.type = type;
+        this.primitiveClass = primitiveClass;
+        this.boxedName = boxedName;
+        this.arrayType = arrayType;
+        this.interfaceName = interfaceName;
+    }
+
+    // The type whose values are instances of the given primitive class, or
+    // null if there is none
+    public static NumericType forClass(Class<?> c)
+    {
+        for (NumericType type : values()) {
+            if (type.primitiveClass == c) {
+                return type;
+            }
+        }
+
+        return null;
+    }
+
+    public Class<?> getPrimitiveClass()
+    {
+        return primitiveClass;
+    }
+
+    // Translate an int opcode into the one for this type, e.g. IADD into
+    // FADD for floats
+    public int getOpcode(int opcode)
+    {
+        return type.getOpcode(opcode);
+    }
+
+    // Number of registers and stack slots a value takes
+    public int getSize()
+    {
+        return type.getSize();
+    }
+
+    public String getDescriptor()
+    {
+        return type.getDescriptor();
+    }
+
+    public String getArrayDescriptor()
+    {
+        return "[" + type.getDescriptor();
+    }
+
+    // Internal name of the wrapper class, and the operand of NEWARRAY
+    String getBoxedName()
+    {
+        return boxedName;
+    }
+
+    int getArrayType()
+    {
+        return arrayType;
+    }
+
+    // Internal name of the interface implemented by compiled expressions
+    String getInterfaceName()
+    {
+        return interfaceName;
+    }
+
+    // Push a constant, converted the way a Java cast would
+    public void push(MethodVisitor mv, double value)
+    {
+        switch (this) {
+            case FLOAT:
+                mv.visitLdcInsn((float)value);
+                break;
+            case LONG:
+                mv.visitLdcInsn((long)value);
+                break;
+            default:
+                mv.visitLdcInsn(value);
+                break;
+        }
+    }
+
+    public void dup(MethodVisitor mv)
+    {
+        mv.visitInsn(getSize() == 2 ? DUP2 : DUP);
+    }
+
+    public void pop(MethodVisitor mv)
+    {
+        mv.visitInsn(getSize() == 2 ? POP2 : POP);
+    }
+
+    // Whether the value converts to this type without rounding
+    public boolean isExact(double value)
+    {
+        switch (this) {
+            case FLOAT:
+                return (float)value == value || Double.isNaN(value);
+            case LONG:
+                return value == Math.rint(value) && value >= -0x1p63 && value < 0x1p63;
+            default:
+                return true;
+        }
+    }
+
+    // The type of a value in a stack map frame
+    Object getFrameType()
+    {
+        switch (this) {
+            case FLOAT:
+                return Opcodes.FLOAT;
+            case LONG:
+                return Opcodes.LONG;
+            default:
+                return Opcodes.DOUBLE;
+        }
+    }
+
+    // Compare the two values on top of the stack, leaving 1 if the
+    // comparison holds and 0 otherwise as an int. There are no branches:
+    // xCMPG and xCMPL give -1, 0 or 1 (with NaN as 1 or -1, respectively),
+    // which is turned into the result with a shift or a mask.
+    void compare(MethodVisitor mv, ComparisonNode.Operator operator)
+    {
+        // x < y and x <= y have to be false for NaN, so NaN has to look like
+        // x > y, and the other way around for x > y and x >= y
+        boolean nanGreater = operator == ComparisonNode.Operator.LESS ||
+                             operator == ComparisonNode.Operator.LESS_EQUAL;
+        switch (this) {
+            case FLOAT:
+                mv.visitInsn(nanGreater ? FCMPG : FCMPL);
+                break;
+            case LONG:
+                mv.visitInsn(LCMP);
+                break;
+            default:
+                mv.visitInsn(nanGreater ? DCMPG : DCMPL);
+                break;
+        }
+
+        switch (operator) {
+            case LESS:
+                // -1 >>> 31 is 1, 0 and 1 give 0
+                break;
+            case LESS_EQUAL:
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(ISUB);
+                break;
+            case GREATER:
+                mv.visitInsn(INEG);
+                break;
+            case GREATER_EQUAL:
+                mv.visitInsn(ICONST_M1);
+                mv.visitInsn(IXOR);
+                break;
+            case EQUAL:
+                // Only 0 has the lowest bit clear
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(IAND);
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(IXOR);
+                return;
+            case NOT_EQUAL:
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(IAND);
+                return;
+        }
+        mv.visitIntInsn(BIPUSH, 31);
+        mv.visitInsn(IUSHR);
+    }
+
+    // Replace the value on top of the stack with the int 1 if it's non-zero
+    // or NaN, and 0 otherwise
+    void truth(MethodVisitor mv)
+    {
+        push(mv, 0.0);
+        switch (this) {
+            case FLOAT:
+                mv.visitInsn(FCMPL);
+                break;
+            case LONG:
+                mv.visitInsn(LCMP);
+                break;
+            default:
+                mv.visitInsn(DCMPL);
+                break;
+        }
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IAND);
+    }
+
+    // Convert the int on top of the stack to this type
+    void fromInt(MethodVisitor mv)
+    {
+        mv.visitInsn(this == FLOAT ? I2F : this == LONG ? I2L : I2D);
+    }
+
+    // Convert a value on top of the stack which is known to be an integer
+    // to an int
+    void toInt(MethodVisitor mv)
+    {
+        mv.visitInsn(this == FLOAT ? F2I : this == LONG ? L2I : D2I);
+    }
+
+    // Selects are done on the bit patterns of the values, which are ints for
+    // floats and longs otherwise. These translate the int opcodes for the
+    // bit patterns, like getOpcode does for values.
+    int getBitsOpcode(int opcode)
+    {
+        return (this == FLOAT ? Type.INT_TYPE : Type.LONG_TYPE).getOpcode(opcode);
+    }
+
+    Object getBitsFrameType()
+    {
+        return this == FLOAT ? Opcodes.INTEGER : Opcodes.LONG;
+    }
+
+    // Turn the int 0 or 1 on top of the stack into a bit pattern of all
+    // zeroes or all ones
+    void mask(MethodVisitor mv)
+    {
+        if (this == FLOAT) {
+            mv.visitInsn(INEG);
+        } else {
+            mv.visitInsn(I2L);
+            mv.visitInsn(LNEG);
+        }
+    }
+
+    // Convert the value on top of the stack to its bit pattern, and back
+    void toBits(MethodVisitor mv)
+    {
+        if (this == FLOAT) {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I",
+                               false);
+        } else if (this == DOUBLE) {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J",
+                               false);
+        }
+    }
+
+    void fromBits(MethodVisitor mv)
+    {
+        if (this == FLOAT) {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "intBitsToFloat", "(I)F",
+                               false);
+        } else if (this == DOUBLE) {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "longBitsToDouble", "(J)D",
+                               false);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return primitiveClass.getName();
+    }
+
+    // Integer exponentiation for expressions compiled as longs, which wraps
+    // around on overflow. Negative exponents give the truncated quotient
+    // 1 / base^-exponent, so they're zero unless base is 1 or -1, and throw
+    // an ArithmeticException for a base of 0, just like 1/0.
+    public static long pow(long base, long exponent)
+    {
+        if (exponent < 0) {
+            if (base == 0) {
+                throw new ArithmeticException("/ by zero");
+            }
+            if (base == 1 || base == -1) {
+                return (exponent & 1) == 0 ? 1 : base;
+            }
+            return 0;
+        }
+
+        long result = 1;
+        while (exponent != 0) {
+            if ((exponent & 1) != 0) {
+                result *= base;
+            }
+            base *= base;
+            exponent >>= 1;
+        }
+
+        return result;
+    }
+}
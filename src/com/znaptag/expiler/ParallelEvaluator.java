@@ -0,0 +1,184 @@
+package com.znaptag.expiler;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.znaptag.expiler.ast.ASTNode;
+
+// Evaluates an expression over a large range of rows on several threads. The
+// range is cut into chunks, which are handed to a fork-join pool, and each
+// chunk is evaluated by a single call to computeBatch on the compiled class.
+// Every chunk writes to its own region of the output array, so no
+// synchronization is needed beyond joining the tasks, and the only
+// allocations are the tasks themselves, one per chunk rather than per row.
+public class ParallelEvaluator
+{
+    // Large enough that the cost of a task is negligible, while still
+    // giving each thread several chunks to balance the load
+    public static final int DEFAULT_CHUNK_SIZE = 16384;
+
+    // Evaluates a range of whole chunks, splitting it in half until only a
+    // single chunk is left
+    private class ChunkTask extends RecursiveAction
+    {
+        private double[][] columns;
+        private double[] out;
+        private int from;
+        private int to;
+
+        public ChunkTask(double[][] columns, double[] out, int from, int to)
+        {
+            this.columns = columns;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= chunkSize) {
+                expression.computeBatch(columns, out, from, to);
+                return;
+            }
+
+            // Split on a chunk boundary, so that every task but the last
+            // evaluates exactly chunkSize rows
+            int chunks = (to - from + chunkSize - 1) / chunkSize;
+            int middle = from + (chunks / 2) * chunkSize;
+            invokeAll(new ChunkTask(columns, out, from, middle),
+                      new ChunkTask(columns, out, middle, to));
+        }
+    }
+
+    private CompiledExpression expression;
+    private ForkJoinPool pool;
+    private int chunkSize;
+
+    public ParallelEvaluator(CompiledExpression expression)
+    {
+        this(expression, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    // Chunks aren't aligned to cache lines, so threads working on
+    // neighbouring chunks may both write to the one line at their boundary.
+    // That's one line in thousands of rows, which doesn't matter.
+    public ParallelEvaluator(CompiledExpression expression, ForkJoinPool pool, int chunkSize)
+    {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+
+        this.expression = expression;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    public ForkJoinPool getPool()
+    {
+        return pool;
+    }
+
+    // Evaluate every row in [from, to) and store the results in out, like
+    // CompiledExpression.computeBatch. Returns once all rows are done.
+    public void computeBatch(double[][] columns, double[] out, int from, int to)
+    {
+        if (from < 0 || to > out.length || from > to) {
+            throw new IndexOutOfBoundsException("Invalid range [" + from + ", " + to + ")");
+        }
+
+        if (to - from <= chunkSize) {
+            // Not worth handing off to the pool
+            expression.computeBatch(columns, out, from, to);
+            return;
+        }
+
+        pool.invoke(new ChunkTask(columns, out, from, to));
+    }
+
+    // Total number of bytes allocated by all threads so far, or -1 if the JVM
+    // can't tell
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+
+        return total;
+    }
+
+    // Basic test method: evaluate an expression over a large number of rows
+    // with an increasing number of threads, and report the time and the
+    // memory allocated per row
+    public static void main(String[] args)
+    throws Exception
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 24;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        Compiler compiler = new Compiler();
+        compiler.registerBuiltins();
+
+        ASTNode tree = new Parser(new Lexer("sin(x)*y + sqrt(x*x + y*y) - z/3")).parse();
+        VariableLayout layout = new VariableLayout("x", "y", "z");
+        CompiledExpression expr = compiler.compile("ParallelExpression", tree, layout);
+
+        Random random = new Random(4711);
+        double[][] columns = new double[3][rows];
+        for (double[] column : columns) {
+            for (int i = 0; i < rows; i++) {
+                column[i] = random.nextDouble();
+            }
+        }
+        double[] out = new double[rows];
+
+        System.out.println("threads  ms/batch  speedup  bytes/row");
+        double baseline = 0.0;
+        // Powers of two, and all processors even if their number isn't one
+        for (int threads = 1; threads <= maxThreads;
+             threads = threads < maxThreads ? Math.min(2 * threads, maxThreads) : threads + 1) {
+
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            ParallelEvaluator evaluator = new ParallelEvaluator(expr, pool, DEFAULT_CHUNK_SIZE);
+
+            // Warm up, then time a few rounds
+            for (int round = 0; round < 5; round++) {
+                evaluator.computeBatch(columns, out, 0, rows);
+            }
+
+            int rounds = 10;
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                evaluator.computeBatch(columns, out, 0, rows);
+            }
+            double ms = (System.nanoTime() - start) / 1e6 / rounds;
+            allocated = allocatedBytes() - allocated;
+
+            if (threads == 1) {
+                baseline = ms;
+            }
+            System.out.printf("%7d  %8.2f  %7.2f  %9.4f%n",
+                              threads, ms, baseline / ms,
+                              (double)allocated / rounds / rows);
+
+            pool.shutdown();
+        }
+    }
+}
@@ -1,11 +1,31 @@
 package com.znaptag.expiler;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import com.znaptag.expiler.ast.*;
 
-// This is a recursive descent parser, which makes do with a single token
-// lookahead. Consumes tokens from the Lexer and returns a fully formed AST.
+// This is an operator precedence (shunting-yard) parser, which makes do with
+// two tokens of lookahead. Consumes tokens from the Lexer and returns a fully
+// formed AST. Operands and pending operators are kept on explicit stacks
+// rather than the Java stack, so arbitrarily long and deeply nested
+// expressions can be parsed in linear time. +, -, * and / are left
+// associative, so a-b-c is parsed as (a-b)-c, while ^ is right associative.
+//
+// Comparisons bind looser than arithmetic, followed by && and then ||, and
+// the conditional c ? a : b binds loosest of all. Conditionals nest to the
+// right, so a ? b : c ? d : e is a ? b : (c ? d : e). if(c, a, b) is another
+// way of writing c ? a : b.
+//
+// An expression may start with let bindings, as in
+// let d = b^2 - 4*a*c; r = sqrt(d); (r - b)/(2*a). Each name can be used in
+// the values after it and in the final expression. A name can only be bound
+// once, and not after it has been used as a variable in an earlier value.
 public class Parser
 {
     public static class ParseException extends Exception
@@ -16,121 +36,349 @@ public class Parser
         }
     }
 
+    // The name which is parsed as a conditional rather than a function call
+    private static final String CONDITIONAL = "if";
+    // The name which starts the bindings when followed by another name
+    private static final String LET = "let";
+
     private Lexer lexer;
 
+    // Constructs the nodes, and possibly shares them with other trees
+    private NodeFactory nodes;
+
+    // Operands which haven't been consumed by an operator yet
+    private Deque<ASTNode> operands;
+
+    // Pending binary operators, as well as opening parentheses. An IDENT token
+    // on this stack marks the opening parenthesis of a function call. A
+    // QUESTION token marks a conditional whose : hasn't been seen yet, and is
+    // replaced by the COLON token once it has.
+    private Deque<Token> operators;
+
+    // Number of arguments seen so far, for each function call in progress
+    private Deque<Integer> argumentCounts;
+
+    // Variables used in the values of the bindings so far, or null outside
+    // of them, which can't be bound anymore
+    private Set<String> usedVariables;
+
     public Parser(Lexer lexer)
+    {
+        this(lexer, new NodeFactory());
+    }
+
+    // Parse with the given factory. Passing the same InterningNodeFactory to
+    // the parsers of many expressions stores every repeated subtree once.
+    public Parser(Lexer lexer, NodeFactory nodes)
     {
         this.lexer = lexer;
+        this.nodes = nodes;
+        this.operands = new ArrayDeque<>();
+        this.operators = new ArrayDeque<>();
+        this.argumentCounts = new ArrayDeque<>();
     }
 
-    // Parse parenthesized expressions as well as numbers and variables
-    private ASTNode parseAtoms()
-    throws IOException, ParseException
+    private static int precedence(Token.Type type)
     {
-        Token t = lexer.next();
-        Token t2 = lexer.peek(0);
-        if (t.getType() == Token.Type.LPAREN) {
-            ASTNode expr = parseAddSub();
-            lexer.next();
-            return expr;
+        switch (type) {
+            case QUESTION:
+            case COLON:
+                return 1;
+            case OR:
+                return 2;
+            case AND:
+                return 3;
+            case LESS:
+            case LESSEQUAL:
+            case GREATER:
+            case GREATEREQUAL:
+            case EQUAL:
+            case NOTEQUAL:
+                return 4;
+            case ADD:
+            case SUB:
+                return 5;
+            case MUL:
+            case DIV:
+                return 6;
+            case EXP:
+                return 7;
+            default:
+                return -1;
         }
-        else if (t.getType() == Token.Type.NUMBER ||
-                 t.getType() == Token.Type.DECIMALNUMBER) {
+    }
 
-            return new NumberNode(Double.parseDouble(t.getRepr()));
-        }
-        else if (t.getType() == Token.Type.IDENT &&
-                 t2 != null && t2.getType() == Token.Type.LPAREN) {
+    private static boolean isBinaryOperator(Token.Type type)
+    {
+        return precedence(type) > 1;
+    }
 
-            lexer.next();
-            ASTNode expr = parseAddSub();
-            lexer.next();
+    // Whether an operator on the stack can be reduced, which is every binary
+    // operator and every conditional which has seen its :
+    private static boolean isReducible(Token.Type type)
+    {
+        return isBinaryOperator(type) || type == Token.Type.COLON;
+    }
 
-            return new FunctionNode(t.getRepr(), expr);
-        }
-        else if (t.getType() == Token.Type.IDENT) {
-            return new VariableNode(t.getRepr());
+    // Pop an operator and its operands, and push the resulting node
+    private void reduce()
+    {
+        Token op = operators.pop();
+        ASTNode right = operands.pop();
+        ASTNode left = operands.pop();
+
+        ComparisonNode.Operator comparison = comparisonOperator(op.getType());
+        if (comparison != null) {
+            operands.push(nodes.comparison(comparison, left, right));
+            return;
         }
 
-        throw new ParseException("Unexpected token");
+        switch (op.getType()) {
+            case ADD: operands.push(nodes.add(left, right)); break;
+            case SUB: operands.push(nodes.sub(left, right)); break;
+            case MUL: operands.push(nodes.mul(left, right)); break;
+            case DIV: operands.push(nodes.div(left, right)); break;
+            case EXP: operands.push(nodes.exp(left, right)); break;
+            case AND: operands.push(nodes.and(left, right)); break;
+            case OR: operands.push(nodes.or(left, right)); break;
+            case COLON: operands.push(nodes.conditional(operands.pop(), left, right)); break;
+            default: throw new IllegalStateException("Not an operator: " + op.getType());
+        }
     }
 
-    // Parse exponentiations
-    private ASTNode parseExp()
-    throws IOException, ParseException
+    private static ComparisonNode.Operator comparisonOperator(Token.Type type)
     {
-        ASTNode left = parseAtoms();
-
-        Token t = lexer.peek(0);
-        if (t != null &&
-            t.getType() == Token.Type.EXP) {
+        switch (type) {
+            case LESS: return ComparisonNode.Operator.LESS;
+            case LESSEQUAL: return ComparisonNode.Operator.LESS_EQUAL;
+            case GREATER: return ComparisonNode.Operator.GREATER;
+            case GREATEREQUAL: return ComparisonNode.Operator.GREATER_EQUAL;
+            case EQUAL: return ComparisonNode.Operator.EQUAL;
+            case NOTEQUAL: return ComparisonNode.Operator.NOT_EQUAL;
+            default: return null;
+        }
+    }
 
-            lexer.next();
+    // Reduce all operators up to the innermost opening parenthesis
+    private void reduceParenthesis()
+    throws ParseException
+    {
+        while (!operators.isEmpty() &&
+               isReducible(operators.peek().getType())) {
+            reduce();
+        }
 
-            ASTNode right = parseExp();
-            return new ExpNode(left, right);
+        if (!operators.isEmpty() && operators.peek().getType() == Token.Type.QUESTION) {
+            throw new ParseException("Missing : after ?");
         }
+    }
 
-        return left;
+    private static boolean isType(Token t, Token.Type type)
+    {
+        return t != null && t.getType() == type;
     }
 
-    // Parse multiplication and divison
-    private ASTNode parseMulDiv()
+    public ASTNode parse()
     throws IOException, ParseException
     {
-        ASTNode left = parseExp();
-
-        Token t = lexer.peek(0);
-        if (t != null &&
-            t.getType() == Token.Type.MUL) {
+        operands.clear();
+        operators.clear();
+        argumentCounts.clear();
+        usedVariables = null;
 
-            lexer.next();
+        Token first = lexer.peek(0);
+        if (!isType(first, Token.Type.IDENT) || !first.getRepr().equals(LET) ||
+            !isType(lexer.peek(1), Token.Type.IDENT)) {
 
-            ASTNode right = parseMulDiv();
-            return new MulNode(left, right);
+            return parseExpression(false);
         }
-        else if (t != null &&
-                t.getType() == Token.Type.DIV) {
-            lexer.next();
 
-            ASTNode right = parseMulDiv();
-            return new DivNode(left, right);
-        }
+        lexer.next();
+        usedVariables = new HashSet<>();
+        List<String> names = new ArrayList<>();
+        List<ASTNode> values = new ArrayList<>();
+        do {
+            String name = lexer.next().getRepr();
+            if (!isType(lexer.next(), Token.Type.ASSIGN)) {
+                throw new ParseException("Expected = after " + name);
+            }
+            if (names.contains(name)) {
+                throw new ParseException(name + " is bound twice");
+            }
+            if (usedVariables.contains(name)) {
+                throw new ParseException(name + " is used before it is bound");
+            }
+
+            values.add(parseExpression(true));
+            names.add(name);
+        } while (isType(lexer.peek(0), Token.Type.IDENT) &&
+                 isType(lexer.peek(1), Token.Type.ASSIGN));
 
-        return left;
+        usedVariables = null;
+        return nodes.let(names, values, parseExpression(false));
     }
 
-    // Parse addition and subtraction
-    private ASTNode parseAddSub()
+    // Parse up to the end of the input, or for the value of a binding, up to
+    // and including the ;
+    private ASTNode parseExpression(boolean binding)
     throws IOException, ParseException
     {
-        ASTNode left = parseMulDiv();
+        // Alternate between expecting an operand and expecting an operator
+        boolean expectOperand = true;
+        while (true) {
+            Token t = lexer.next();
 
-        Token t = lexer.peek(0);
-        if (t != null &&
-            t.getType() == Token.Type.ADD) {
+            if (expectOperand) {
+                if (t == null) {
+                    throw new ParseException("Unexpected end of expression");
+                }
 
-            lexer.next();
+                Token.Type type = t.getType();
+                if (type == Token.Type.LPAREN) {
+                    operators.push(t);
+                }
+                else if (type == Token.Type.NUMBER ||
+                         type == Token.Type.DECIMALNUMBER) {
 
-            ASTNode right = parseAddSub();
-            return new AddNode(left, right);
-        }
-        else if (t != null &&
-                 t.getType() == Token.Type.SUB) {
+                    operands.push(nodes.number(Double.parseDouble(t.getRepr())));
+                    expectOperand = false;
+                }
+                else if (type == Token.Type.IDENT) {
+                    Token t2 = lexer.peek(0);
+                    Token t3 = lexer.peek(1);
+                    if (t2 != null && t2.getType() == Token.Type.LPAREN &&
+                        t3 != null && t3.getType() == Token.Type.RPAREN) {
+
+                        // Function call without arguments
+                        lexer.next();
+                        lexer.next();
+                        if (t.getRepr().equals(CONDITIONAL)) {
+                            throw new ParseException("if takes 3 arguments");
+                        }
+                        operands.push(nodes.function(t.getRepr()));
+                        expectOperand = false;
+                    }
+                    else if (t2 != null && t2.getType() == Token.Type.LPAREN) {
+                        // Function call: the name stands in for the
+                        // parenthesis until the arguments are complete
+                        lexer.next();
+                        operators.push(t);
+                        argumentCounts.push(1);
+                    } else {
+                        if (usedVariables != null) {
+                            usedVariables.add(t.getRepr());
+                        }
+                        operands.push(nodes.variable(t.getRepr()));
+                        expectOperand = false;
+                    }
+                }
+                else {
+                    throw new ParseException("Unexpected token " + t.getRepr());
+                }
+            }
+            else {
+                if (t == null) {
+                    if (binding) {
+                        throw new ParseException("Missing ; after binding");
+                    }
+                    break;
+                }
+                if (binding && t.getType() == Token.Type.SEMICOLON) {
+                    break;
+                }
+
+                Token.Type type = t.getType();
+                if (isBinaryOperator(type)) {
+                    // Reduce operators which bind tighter, or as tight for
+                    // left associative operators
+                    int prec = precedence(type);
+                    while (!operators.isEmpty()) {
+                        int topPrec = precedence(operators.peek().getType());
+                        if (topPrec > prec ||
+                            (topPrec == prec && type != Token.Type.EXP)) {
+
+                            reduce();
+                        } else {
+                            break;
+                        }
+                    }
 
-            lexer.next();
+                    operators.push(t);
+                    expectOperand = true;
+                }
+                else if (type == Token.Type.QUESTION) {
+                    // Conditionals are right associative, so only binary
+                    // operators are reduced
+                    while (!operators.isEmpty() &&
+                           isBinaryOperator(operators.peek().getType())) {
+                        reduce();
+                    }
 
-            ASTNode right = parseAddSub();
-            return new SubNode(left, right);
+                    operators.push(t);
+                    expectOperand = true;
+                }
+                else if (type == Token.Type.COLON) {
+                    // Complete the true branch of the innermost conditional
+                    while (!operators.isEmpty() &&
+                           isReducible(operators.peek().getType())) {
+                        reduce();
+                    }
+                    if (operators.isEmpty() ||
+                        operators.peek().getType() != Token.Type.QUESTION) {
+
+                        throw new ParseException("Unexpected : without ?");
+                    }
+
+                    operators.pop();
+                    operators.push(t);
+                    expectOperand = true;
+                }
+                else if (type == Token.Type.RPAREN) {
+                    reduceParenthesis();
+                    if (operators.isEmpty()) {
+                        throw new ParseException("Unbalanced closing parenthesis");
+                    }
+
+                    Token open = operators.pop();
+                    if (open.getType() == Token.Type.IDENT) {
+                        ASTNode[] args = new ASTNode[argumentCounts.pop()];
+                        for (int i = args.length - 1; i >= 0; i--) {
+                            args[i] = operands.pop();
+                        }
+
+                        if (!open.getRepr().equals(CONDITIONAL)) {
+                            operands.push(nodes.function(open.getRepr(), args));
+                        } else if (args.length == 3) {
+                            operands.push(nodes.conditional(args[0], args[1], args[2]));
+                        } else {
+                            throw new ParseException("if takes 3 arguments");
+                        }
+                    }
+                }
+                else if (type == Token.Type.COMMA) {
+                    // Complete the current argument of the innermost call
+                    reduceParenthesis();
+                    if (operators.isEmpty() ||
+                        operators.peek().getType() != Token.Type.IDENT) {
+
+                        throw new ParseException("Unexpected , outside of function call");
+                    }
+
+                    argumentCounts.push(argumentCounts.pop() + 1);
+                    expectOperand = true;
+                }
+                else {
+                    throw new ParseException("Unexpected token " + t.getRepr());
+                }
+            }
         }
 
-        return left;
-    }
+        reduceParenthesis();
+        if (!operators.isEmpty()) {
+            throw new ParseException("Missing closing parenthesis");
+        }
 
-    public ASTNode parse()
-    throws IOException, ParseException
-    {
-        return parseAddSub();
+        return operands.pop();
     }
 
     // Basic test method: Parse and output a string representation of the AST
@@ -0,0 +1,505 @@
+package com.znaptag.expiler;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.znaptag.expiler.ast.*;
+
+// Evaluates an expression from a flat postfix program rather than from the
+// tree. Building the program is a single walk over the tree, which is much
+// cheaper than generating and defining a class, and evaluating it is a tight
+// loop over an int array. Functions are called through method handles, so
+// arguments aren't boxed. The only allocation is the value stack, once per
+// call to compute, or once per computeBatch for all of its rows. Used as the
+// first tier by TieredCompiler.
+public class PostfixInterpreter implements CompiledExpression
+{
+    // Instructions. LOAD, CONST and CALL are followed by an operand: the
+    // variable slot, the index in the constant pool, and the index of the
+    // call, respectively. COMPARE is followed by the ordinal of the
+    // comparison operator, the jumps by the position to jump to, GET by a
+    // position on the stack and SLIDE by a count.
+    private static final int LOAD = 0;
+    private static final int CONST = 1;
+    private static final int CALL = 2;
+    private static final int ADD = 3;
+    private static final int SUB = 4;
+    private static final int MUL = 5;
+    private static final int DIV = 6;
+    private static final int POW = 7;
+    private static final int COMPARE = 8;
+    // Replace the value on top with 1 if it's non-zero, and 0 otherwise
+    private static final int TRUTH = 9;
+    // Pop the value on top, and jump if it's zero
+    private static final int JUMP_IF_FALSE = 10;
+    private static final int JUMP = 11;
+    // The left operand of && or ||, which leaves the result and jumps past
+    // the right operand if it decides it, and is popped otherwise
+    private static final int AND = 12;
+    private static final int OR = 13;
+    // The values of let bindings stay on the stack below the body. GET
+    // pushes a copy of one of them, and SLIDE removes the given number of
+    // values from below the one on top.
+    private static final int GET = 14;
+    private static final int SLIDE = 15;
+
+    // Functions with up to this many arguments are called without an array
+    private static final int MAX_DIRECT_ARGUMENTS = 3;
+
+    private static final ComparisonNode.Operator[] OPERATORS =
+        ComparisonNode.Operator.values();
+
+    // Visitor which emits the instructions for each node after its children
+    private class ProgramBuilder extends PostOrderVisitor
+    {
+        private Map<String, Class<? extends Function>> functions;
+        private int[] code;
+        private int length;
+        private List<Double> pool;
+        private Map<Double, Integer> poolIndices;
+        private List<MethodHandle> calls;
+        private List<Integer> arities;
+        private int depth;
+        private int maxDepth;
+        // positions of jump operands which are patched once the target is
+        // known
+        private Deque<Integer> jumps;
+        // stack positions of the let bindings in scope
+        private Map<String, Integer> bindings;
+
+        public ProgramBuilder(Map<String, Class<? extends Function>> functions)
+        {
+            this.functions = functions;
+            this.code = new int[32];
+            this.length = 0;
+            this.pool = new ArrayList<>();
+            this.poolIndices = new HashMap<>();
+            this.calls = new ArrayList<>();
+            this.arities = new ArrayList<>();
+            this.jumps = new ArrayDeque<>();
+            this.bindings = new HashMap<>();
+        }
+
+        private void emit(int insn)
+        {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, 2 * code.length);
+            }
+            code[length++] = insn;
+        }
+
+        // Track the stack depth after an instruction which changes it by delta
+        private void adjust(int delta)
+        {
+            depth += delta;
+            maxDepth = Math.max(depth, maxDepth);
+        }
+
+        private void emitConstant(double value)
+        {
+            Integer index = poolIndices.get(value);
+            if (index == null) {
+                index = pool.size();
+                pool.add(value);
+                poolIndices.put(value, index);
+            }
+
+            emit(CONST);
+            emit(index);
+            adjust(1);
+        }
+
+        @Override
+        public void visit(NumberNode node)
+        {
+            emitConstant(node.getNumber());
+        }
+
+        @Override
+        public void visit(VariableNode node)
+        {
+            Integer binding = bindings.get(node.getName());
+            if (binding != null) {
+                emit(GET);
+                emit(binding);
+                adjust(1);
+                return;
+            }
+
+            Double constant = constants.get(node.getName());
+            if (constant != null) {
+                emitConstant(constant);
+                return;
+            }
+
+            int slot = layout.indexOf(node.getName());
+            if (slot == -1) {
+                error = "Variable " + node.getName() + " is not part of the layout.";
+                return;
+            }
+
+            emit(LOAD);
+            emit(slot);
+            adjust(1);
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            int argc = node.getArgumentCount();
+
+            Class<? extends Function> func = functions.get(node.getName());
+            if (func == null) {
+                error = "Function " + node.getName() + " is not known.";
+                return;
+            }
+
+            Class<?>[] params = new Class<?>[argc];
+            Arrays.fill(params, double.class);
+            MethodHandle handle;
+            try {
+                handle = MethodHandles.publicLookup()
+                    .findStatic(func, "call", MethodType.methodType(double.class, params));
+            }
+            catch (NoSuchMethodException | IllegalAccessException e) {
+                error = "Function " + node.getName() + " does not take " + argc +
+                        " arguments.";
+                return;
+            }
+
+            // Any further arguments are copied into an array
+            if (argc > MAX_DIRECT_ARGUMENTS) {
+                handle = handle.asSpreader(double[].class, argc);
+            }
+            calls.add(handle);
+            arities.add(argc);
+
+            emit(CALL);
+            emit(calls.size() - 1);
+            adjust(1 - argc);
+        }
+
+        @Override
+        public void visit(AddNode node)
+        {
+            emit(ADD);
+            adjust(-1);
+        }
+
+        @Override
+        public void visit(SubNode node)
+        {
+            emit(SUB);
+            adjust(-1);
+        }
+
+        @Override
+        public void visit(MulNode node)
+        {
+            emit(MUL);
+            adjust(-1);
+        }
+
+        @Override
+        public void visit(DivNode node)
+        {
+            emit(DIV);
+            adjust(-1);
+        }
+
+        @Override
+        public void visit(ExpNode node)
+        {
+            emit(POW);
+            adjust(-1);
+        }
+
+        @Override
+        public void visit(ComparisonNode node)
+        {
+            emit(COMPARE);
+            emit(node.getOperator().ordinal());
+            adjust(-1);
+        }
+
+        // Emit a jump whose target is patched later
+        private void emitJump(int insn)
+        {
+            emit(insn);
+            emit(-1);
+            jumps.push(length - 1);
+        }
+
+        // Make the most recent unpatched jump go to the next instruction
+        private void patchJump()
+        {
+            code[jumps.pop()] = length;
+        }
+
+        @Override
+        protected boolean enterChild(ASTNode parent, int index)
+        {
+            if (parent instanceof LetNode) {
+                if (index > 0) {
+                    bindings.put(((LetNode)parent).getName(index - 1), depth - 1);
+                }
+            }
+            else if (parent instanceof ConditionalNode) {
+                if (index == 1) {
+                    emitJump(JUMP_IF_FALSE);
+                    adjust(-1);
+                }
+                else if (index == 2) {
+                    // Skip the else branch, which starts without the value
+                    // of the first one on the stack
+                    int jumpIfFalse = jumps.pop();
+                    emitJump(JUMP);
+                    code[jumpIfFalse] = length;
+                    adjust(-1);
+                }
+            }
+            else if (index == 1 && parent instanceof AndNode) {
+                emitJump(AND);
+                adjust(-1);
+            }
+            else if (index == 1 && parent instanceof OrNode) {
+                emitJump(OR);
+                adjust(-1);
+            }
+
+            return true;
+        }
+
+        @Override
+        public void visit(AndNode node)
+        {
+            emit(TRUTH);
+            patchJump();
+        }
+
+        @Override
+        public void visit(OrNode node)
+        {
+            emit(TRUTH);
+            patchJump();
+        }
+
+        @Override
+        public void visit(ConditionalNode node)
+        {
+            patchJump();
+        }
+
+        @Override
+        public void visit(LetNode node)
+        {
+            emit(SLIDE);
+            emit(node.getBindingCount());
+            adjust(-node.getBindingCount());
+            bindings.keySet().removeAll(node.getNames());
+        }
+    }
+
+    private VariableLayout layout;
+    private Map<String, Double> constants;
+    private String error;
+
+    private int[] code;
+    private double[] pool;
+    private MethodHandle[] calls;
+    private int[] arities;
+    private int maxStackDepth;
+
+    // Translate a tree using the constants and functions registered with a
+    // compiler. Function calls go through reflection.
+    public PostfixInterpreter(Compiler compiler, ASTNode tree, VariableLayout layout)
+    throws Compiler.CompilationException
+    {
+        this.layout = layout;
+        this.constants = compiler.getConstants();
+
+        ProgramBuilder builder = new ProgramBuilder(compiler.getFunctions());
+        builder.walk(tree);
+        if (error != null) {
+            throw new Compiler.CompilationException(error);
+        }
+
+        this.code = Arrays.copyOf(builder.code, builder.length);
+        this.pool = new double[builder.pool.size()];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = builder.pool.get(i);
+        }
+        this.calls = builder.calls.toArray(new MethodHandle[builder.calls.size()]);
+        this.arities = new int[builder.arities.size()];
+        for (int i = 0; i < arities.length; i++) {
+            arities[i] = builder.arities.get(i);
+        }
+        // Calls without arguments still push a result
+        this.maxStackDepth = Math.max(builder.maxDepth, 1);
+    }
+
+    public PostfixInterpreter(Compiler compiler, ASTNode tree)
+    throws Compiler.CompilationException
+    {
+        this(compiler, tree, compiler.getVariableLayout(tree));
+    }
+
+    public VariableLayout getVariableLayout()
+    {
+        return layout;
+    }
+
+    // Number of ints in the program, including operands
+    public int getCodeLength()
+    {
+        return code.length;
+    }
+
+    @Override
+    public double compute(double[] variables)
+    {
+        return execute(variables, new double[maxStackDepth]);
+    }
+
+    private double execute(double[] variables, double[] stack)
+    {
+        int top = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case LOAD:
+                    stack[top++] = variables[code[pc++]];
+                    break;
+                case CONST:
+                    stack[top++] = pool[code[pc++]];
+                    break;
+                case CALL:
+                    int index = code[pc++];
+                    int argc = arities[index];
+                    top -= argc;
+                    stack[top] = call(index, stack, top, argc);
+                    top++;
+                    break;
+                case ADD:
+                    top--;
+                    stack[top - 1] += stack[top];
+                    break;
+                case SUB:
+                    top--;
+                    stack[top - 1] -= stack[top];
+                    break;
+                case MUL:
+                    top--;
+                    stack[top - 1] *= stack[top];
+                    break;
+                case DIV:
+                    top--;
+                    stack[top - 1] /= stack[top];
+                    break;
+                case POW:
+                    top--;
+                    stack[top - 1] = Math.pow(stack[top - 1], stack[top]);
+                    break;
+                case COMPARE:
+                    top--;
+                    stack[top - 1] = OPERATORS[code[pc++]].apply(stack[top - 1], stack[top])
+                                     ? 1.0 : 0.0;
+                    break;
+                case TRUTH:
+                    stack[top - 1] = stack[top - 1] != 0.0 ? 1.0 : 0.0;
+                    break;
+                case JUMP_IF_FALSE:
+                    top--;
+                    pc = stack[top] == 0.0 ? code[pc] : pc + 1;
+                    break;
+                case JUMP:
+                    pc = code[pc];
+                    break;
+                case AND:
+                    if (stack[top - 1] == 0.0) {
+                        stack[top - 1] = 0.0;
+                        pc = code[pc];
+                    } else {
+                        top--;
+                        pc++;
+                    }
+                    break;
+                case OR:
+                    if (stack[top - 1] != 0.0) {
+                        stack[top - 1] = 1.0;
+                        pc = code[pc];
+                    } else {
+                        top--;
+                        pc++;
+                    }
+                    break;
+                case GET:
+                    stack[top++] = stack[code[pc++]];
+                    break;
+                case SLIDE:
+                    top -= code[pc++];
+                    stack[top - 1] = stack[top - 1 + code[pc - 1]];
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid instruction " + code[pc - 1]);
+            }
+        }
+
+        return stack[0];
+    }
+
+    private double call(int index, double[] stack, int from, int argc)
+    {
+        MethodHandle handle = calls[index];
+        try {
+            switch (argc) {
+                case 0: return (double)handle.invokeExact();
+                case 1: return (double)handle.invokeExact(stack[from]);
+                case 2: return (double)handle.invokeExact(stack[from], stack[from + 1]);
+                case 3:
+                    return (double)handle.invokeExact(stack[from], stack[from + 1],
+                                                      stack[from + 2]);
+                default:
+                    return (double)handle.invokeExact(Arrays.copyOfRange(stack, from,
+                                                                         from + argc));
+            }
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public double compute(Map<String, Double> variables)
+    {
+        return compute(layout.toArray(variables));
+    }
+
+    @Override
+    public void computeBatch(double[][] columns, double[] out, int from, int to)
+    {
+        // The stack and row are reused across rows
+        double[] stack = new double[maxStackDepth];
+        double[] row = new double[layout.size()];
+        for (int i = from; i < to; i++) {
+            for (int slot = 0; slot < row.length; slot++) {
+                if (columns[slot] != null) {
+                    row[slot] = columns[slot][i];
+                }
+            }
+
+            out[i] = execute(row, stack);
+        }
+    }
+}
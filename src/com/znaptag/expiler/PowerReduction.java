@@ -0,0 +1,262 @@
+package com.znaptag.expiler;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+
+import org.objectweb.asm.MethodVisitor;
+import static org.objectweb.asm.Opcodes.*;
+
+import com.znaptag.expiler.ast.*;
+
+// Strength reduction of exponentiations with a constant exponent. Math.pow is
+// several times slower than a couple of multiplications, so small integer
+// powers are computed by repeated squaring instead.
+//
+// In practice Math.pow is within about half an ulp of the exact result. Each
+// multiplication rounds, so longer chains lose accuracy: x^3 is off by up to
+// 1.3 ulps and x^16 by about 11 (run main below for the numbers). In strict
+// mode only x^2 and x^-1 are reduced, since x*x and 1/x are correctly rounded.
+// Relaxed mode reduces all integer exponents up to MAX_RELAXED_EXPONENT, and
+// also replaces x^0.5 with Math.sqrt and x^(1/3) with Math.cbrt. These don't
+// agree with Math.pow for some special values: sqrt(-0.0) is -0.0 and
+// sqrt(-Infinity) is NaN, where pow returns 0.0 and Infinity, and cbrt is
+// defined for negative numbers, where pow returns NaN.
+//
+// The same holds for floats, where sqrt and cbrt are computed in double
+// precision and rounded. Long multiplication is exact modulo 2^64, so for
+// longs every non-negative integer exponent up to MAX_RELAXED_EXPONENT is
+// reduced, in strict mode too, and agrees with NumericType.pow.
+public class PowerReduction
+{
+    public static final int MAX_RELAXED_EXPONENT = 64;
+
+    private boolean relaxed;
+    private NumericType type;
+
+    public PowerReduction(boolean relaxed)
+    {
+        this(relaxed, NumericType.DOUBLE);
+    }
+
+    public PowerReduction(boolean relaxed, NumericType type)
+    {
+        this.relaxed = relaxed;
+        this.type = type;
+    }
+
+    public boolean isRelaxed()
+    {
+        return relaxed;
+    }
+
+    public NumericType getType()
+    {
+        return type;
+    }
+
+    public boolean canReduce(double exponent)
+    {
+        if (type == NumericType.LONG) {
+            return exponent == Math.rint(exponent) &&
+                   exponent >= 0 && exponent <= MAX_RELAXED_EXPONENT;
+        }
+
+        if (!relaxed) {
+            return exponent == 2.0 || exponent == -1.0;
+        }
+
+        if (exponent == 0.5 || exponent == 1.0/3.0) {
+            return true;
+        }
+
+        return exponent == Math.rint(exponent) &&
+               Math.abs(exponent) <= MAX_RELAXED_EXPONENT;
+    }
+
+    // Number of registers needed by generate
+    public int getScratchRegisters()
+    {
+        return 4;
+    }
+
+    // Generate code which replaces the base on top of the stack with base^exponent.
+    // Needs room for two doubles on the stack, on top of the base. The
+    // registers starting at scratch are overwritten.
+    public void generate(MethodVisitor mv, double exponent, int scratch)
+    {
+        if (exponent == 0.5) {
+            generateDoubleCall(mv, "sqrt");
+            return;
+        }
+        if (exponent == 1.0/3.0) {
+            generateDoubleCall(mv, "cbrt");
+            return;
+        }
+
+        int n = (int)Math.abs(exponent);
+
+        // Math.pow(x, 0) is 1 for every x, including NaN
+        if (n == 0) {
+            type.pop(mv);
+            type.push(mv, 1.0);
+            return;
+        }
+
+        int mul = type.getOpcode(IMUL);
+        int load = type.getOpcode(ILOAD);
+        int store = type.getOpcode(ISTORE);
+
+        if (n == 2) {
+            // The most common case doesn't need any registers
+            type.dup(mv);
+            mv.visitInsn(mul);
+        } else {
+            int baseReg = scratch;
+            int resultReg = scratch + 2;
+            boolean haveResult = false;
+
+            mv.visitVarInsn(store, baseReg);
+            while (true) {
+                // Multiply the base into the result for every set bit
+                if ((n & 1) != 0) {
+                    mv.visitVarInsn(load, baseReg);
+                    if (haveResult) {
+                        mv.visitVarInsn(load, resultReg);
+                        mv.visitInsn(mul);
+                    }
+                    haveResult = true;
+
+                    n >>= 1;
+                    if (n == 0) {
+                        // Leave the final result on the stack
+                        break;
+                    }
+                    mv.visitVarInsn(store, resultReg);
+                } else {
+                    n >>= 1;
+                }
+
+                // Square the base
+                mv.visitVarInsn(load, baseReg);
+                type.dup(mv);
+                mv.visitInsn(mul);
+                mv.visitVarInsn(store, baseReg);
+            }
+        }
+
+        // Negative exponents use the reciprocal of the positive power
+        if (exponent < 0) {
+            mv.visitVarInsn(store, scratch);
+            type.push(mv, 1.0);
+            mv.visitVarInsn(load, scratch);
+            mv.visitInsn(type.getOpcode(IDIV));
+        }
+    }
+
+    // Call a Math method taking and returning a double, converting floats
+    // there and back
+    private void generateDoubleCall(MethodVisitor mv, String name)
+    {
+        if (type == NumericType.FLOAT) {
+            mv.visitInsn(F2D);
+        }
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", name, "(D)D", false);
+        if (type == NumericType.FLOAT) {
+            mv.visitInsn(D2F);
+        }
+    }
+
+    // Distance between a and the exact value, in ulps of the exact value
+    private static double ulpError(double a, BigDecimal exact)
+    {
+        double rounded = exact.doubleValue();
+        if (Double.isInfinite(rounded) || rounded == 0.0) {
+            return a == rounded ? 0.0 : Double.POSITIVE_INFINITY;
+        }
+
+        BigDecimal diff = new BigDecimal(a).subtract(exact).abs();
+        return diff.divide(new BigDecimal(Math.ulp(rounded)), MathContext.DECIMAL64).doubleValue();
+    }
+
+    private static CompiledExpression compile(String expression, boolean optimize, boolean relaxed)
+    throws Exception
+    {
+        Parser parser = new Parser(new Lexer(expression));
+        ASTNode tree = parser.parse();
+
+        Compiler compiler = new Compiler();
+        compiler.setOptimizationEnabled(optimize);
+        compiler.setRelaxedMath(relaxed);
+
+        return compiler.compile("PowerTest", tree);
+    }
+
+    // Basic test method: compares the accuracy and speed of the relaxed
+    // reductions with Math.pow
+    public static void main(String[] args)
+    throws Exception
+    {
+        int[] exponents = { 2, 3, 4, -1, -2, -3, 5, 8, 16, 33 };
+        int samples = 100000;
+        int rows = 1000000;
+
+        Random random = new Random(4711);
+        double[] xs = new double[samples];
+        for (int i = 0; i < samples; i++) {
+            xs[i] = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12) - 6);
+        }
+
+        double[][] columns = { new double[rows] };
+        for (int i = 0; i < rows; i++) {
+            columns[0][i] = random.nextDouble() * 4 - 2;
+        }
+        double[] out = new double[rows];
+
+        System.out.println("exponent  max ulp (pow)  max ulp (reduced)  pow ns/row  reduced ns/row");
+        for (int exponent : exponents) {
+            String expression = "x^" + Math.abs(exponent);
+            if (exponent < 0) {
+                expression = "x^(0-" + Math.abs(exponent) + ")";
+            }
+
+            CompiledExpression pow = compile(expression, false, false);
+            CompiledExpression reduced = compile(expression, true, true);
+
+            double powError = 0.0, reducedError = 0.0;
+            double[] vars = new double[1];
+            for (double x : xs) {
+                BigDecimal exact = new BigDecimal(x).pow(Math.abs(exponent));
+                if (exponent < 0) {
+                    if (exact.signum() == 0) {
+                        continue;
+                    }
+                    exact = BigDecimal.ONE.divide(exact, MathContext.DECIMAL128);
+                }
+
+                vars[0] = x;
+                powError = Math.max(powError, ulpError(pow.compute(vars), exact));
+                reducedError = Math.max(reducedError, ulpError(reduced.compute(vars), exact));
+            }
+
+            // Time the batch entry point, after a few rounds of warmup
+            long powTime = 0, reducedTime = 0;
+            for (int round = 0; round < 10; round++) {
+                long s = System.nanoTime();
+                pow.computeBatch(columns, out, 0, rows);
+                long s2 = System.nanoTime();
+                reduced.computeBatch(columns, out, 0, rows);
+                long s3 = System.nanoTime();
+
+                if (round >= 5) {
+                    powTime += s2 - s;
+                    reducedTime += s3 - s2;
+                }
+            }
+
+            System.out.printf("%8d  %13.3f  %17.3f  %10.2f  %14.2f%n",
+                              exponent, powError, reducedError,
+                              powTime / 5.0 / rows, reducedTime / 5.0 / rows);
+        }
+    }
+}
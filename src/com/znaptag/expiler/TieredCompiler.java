@@ -0,0 +1,287 @@
+package com.znaptag.expiler;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.znaptag.expiler.ast.ASTNode;
+
+// Creates expressions which start out in a PostfixInterpreter and are only
+// compiled to bytecode once they've been evaluated often enough. Most of the
+// cost of Compiler.compile is defining the class, which doesn't pay off for
+// expressions evaluated a handful of times. Compilation runs on a background
+// executor, and callers keep using the interpreter until the compiled class
+// is ready.
+public class TieredCompiler
+{
+    public static final int DEFAULT_THRESHOLD = 10000;
+
+    // An expression which switches from the interpreter to compiled code
+    // once it's hot
+    public class TieredExpression implements CompiledExpression
+    {
+        private String name;
+        private ASTNode tree;
+        private VariableLayout layout;
+        private PostfixInterpreter interpreter;
+
+        // Set once compilation has finished. Until then every call goes
+        // through the interpreter.
+        private volatile CompiledExpression compiled;
+        // Invocations while interpreted. Updated without synchronization, so
+        // it may miss a few increments under contention, which only delays
+        // compilation slightly.
+        private long invocations;
+        private AtomicBoolean queued;
+        private volatile boolean failed;
+
+        private TieredExpression(String name,
+                                 ASTNode tree,
+                                 VariableLayout layout,
+                                 PostfixInterpreter interpreter)
+        {
+            this.name = name;
+            this.tree = tree;
+            this.layout = layout;
+            this.interpreter = interpreter;
+            this.queued = new AtomicBoolean(false);
+        }
+
+        public VariableLayout getVariableLayout()
+        {
+            return layout;
+        }
+
+        // 0 while interpreted, 1 once running compiled code
+        public int getTier()
+        {
+            return compiled == null ? 0 : 1;
+        }
+
+        public long getInvocationCount()
+        {
+            return invocations;
+        }
+
+        // Whether compilation was attempted and failed, in which case the
+        // expression stays interpreted
+        public boolean isCompilationFailed()
+        {
+            return failed;
+        }
+
+        // Count rows evaluated by the interpreter, and queue compilation
+        // once past the threshold
+        private void count(int rows)
+        {
+            invocations += rows;
+            if (invocations >= threshold && queued.compareAndSet(false, true)) {
+                queuedCount.incrementAndGet();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        promote();
+                    }
+                });
+            }
+        }
+
+        private void promote()
+        {
+            try {
+                compiled = compiler.compile(name, tree, layout);
+                compiledCount.incrementAndGet();
+            }
+            catch (Compiler.CompilationException | RuntimeException e) {
+                failed = true;
+                failedCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public double compute(double[] variables)
+        {
+            CompiledExpression c = compiled;
+            if (c != null) {
+                return c.compute(variables);
+            }
+
+            count(1);
+            interpretedCount.incrementAndGet();
+            return interpreter.compute(variables);
+        }
+
+        @Override
+        public double compute(Map<String, Double> variables)
+        {
+            return compute(layout.toArray(variables));
+        }
+
+        @Override
+        public void computeBatch(double[][] columns, double[] out, int from, int to)
+        {
+            CompiledExpression c = compiled;
+            if (c != null) {
+                c.computeBatch(columns, out, from, to);
+                return;
+            }
+
+            count(to - from);
+            interpretedCount.addAndGet(to - from);
+            interpreter.computeBatch(columns, out, from, to);
+        }
+    }
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private Compiler compiler;
+    private int threshold;
+    private Executor executor;
+
+    private AtomicLong createdCount;
+    private AtomicLong interpretedCount;
+    private AtomicLong queuedCount;
+    private AtomicLong compiledCount;
+    private AtomicLong failedCount;
+
+    // Compile on a single daemon thread, once an expression has been
+    // evaluated DEFAULT_THRESHOLD times
+    public TieredCompiler(Compiler compiler)
+    {
+        this(compiler, DEFAULT_THRESHOLD, newDefaultExecutor());
+    }
+
+    // Compilation runs on the executor's threads, and uses whatever the
+    // compiler has registered at that time
+    public TieredCompiler(Compiler compiler, int threshold, Executor executor)
+    {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative");
+        }
+
+        this.compiler = compiler;
+        this.threshold = threshold;
+        this.executor = executor;
+
+        this.createdCount = new AtomicLong();
+        this.interpretedCount = new AtomicLong();
+        this.queuedCount = new AtomicLong();
+        this.compiledCount = new AtomicLong();
+        this.failedCount = new AtomicLong();
+    }
+
+    private static ExecutorService newDefaultExecutor()
+    {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "expiler-tiered-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getThreshold()
+    {
+        return threshold;
+    }
+
+    // Translate the tree for the interpreter. The name is used for the class
+    // if the expression is compiled later on, so it has to be unique for
+    // definers which require that.
+    public TieredExpression compile(String name, ASTNode tree, VariableLayout layout)
+    throws Compiler.CompilationException
+    {
+        PostfixInterpreter interpreter = new PostfixInterpreter(compiler, tree, layout);
+        createdCount.incrementAndGet();
+
+        return new TieredExpression(name, tree, layout, interpreter);
+    }
+
+    public TieredExpression compile(String name, ASTNode tree)
+    throws Compiler.CompilationException
+    {
+        return compile(name, tree, compiler.getVariableLayout(tree));
+    }
+
+    // Number of expressions created by this compiler
+    public long getCreatedCount()
+    {
+        return createdCount.get();
+    }
+
+    // Number of rows evaluated by the interpreter tier
+    public long getInterpretedCount()
+    {
+        return interpretedCount.get();
+    }
+
+    // Number of expressions which crossed the threshold and were queued for
+    // compilation
+    public long getQueuedCount()
+    {
+        return queuedCount.get();
+    }
+
+    // Number of expressions which switched to compiled code
+    public long getCompiledCount()
+    {
+        return compiledCount.get();
+    }
+
+    // Number of expressions which failed to compile, and stay interpreted
+    public long getFailedCount()
+    {
+        return failedCount.get();
+    }
+
+    // Basic test method: evaluate an expression until it's been compiled, and
+    // print the time per call in each tier
+    public static void main(String[] args)
+    throws Exception
+    {
+        Compiler compiler = new Compiler();
+        compiler.registerBuiltins();
+
+        ASTNode tree = new Parser(new Lexer("sin(x)*y + x^2 - max(y, 3)")).parse();
+        VariableLayout layout = new VariableLayout("x", "y");
+
+        TieredCompiler tiered = new TieredCompiler(compiler);
+        TieredExpression expr = tiered.compile("TieredExpression", tree, layout);
+
+        double[] vars = { 0.5, 2.0 };
+        double sum = 0.0;
+        long start = System.nanoTime();
+        int interpreted = 0;
+        while (expr.getTier() == 0 && !expr.isCompilationFailed()) {
+            sum += expr.compute(vars);
+            interpreted++;
+        }
+        long interpretedTime = System.nanoTime() - start;
+
+        int count = 10000000;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            sum += expr.compute(vars);
+        }
+        long compiledTime = System.nanoTime() - start;
+
+        System.out.println("sum: " + sum);
+        System.out.println("interpreted: " + interpreted + " calls, " +
+                           interpretedTime / interpreted + " ns/call");
+        System.out.println((expr.isCompilationFailed() ? "failed to compile: " : "compiled: ") +
+                           count + " calls, " + compiledTime / count + " ns/call");
+        System.out.println("created " + tiered.getCreatedCount() +
+                           ", queued " + tiered.getQueuedCount() +
+                           ", compiled " + tiered.getCompiledCount() +
+                           ", failed " + tiered.getFailedCount());
+    }
+}
@@ -1,34 +1,32 @@
 package com.znaptag.expiler;
 
-import java.util.regex.Pattern;
-
 public class Token
 {
     public enum Type
     {
-        NUMBER (Pattern.compile("[0-9]+")),
-        DECIMALNUMBER (Pattern.compile("[0-9]+\\.[0-9]*")),
-        IDENT (Pattern.compile("[A-Za-z]+[A-Za-z0-9_]*")),
-        ADD (Pattern.compile("\\+")),
-        SUB (Pattern.compile("-")),
-        MUL (Pattern.compile("\\*")),
-        DIV (Pattern.compile("/")),
-        EXP (Pattern.compile("\\^")),
-        LPAREN (Pattern.compile("\\(")),
-        RPAREN (Pattern.compile("\\)")),
-        WHITESPACE (Pattern.compile("[ \t\n]+"));
-
-        private Pattern pattern;
-
-        private Type(Pattern pattern)
-        {
-            this.pattern = pattern;
-        }
-
-        public Pattern getPattern()
-        {
-            return pattern;
-        }
+        NUMBER,
+        DECIMALNUMBER,
+        IDENT,
+        ADD,
+        SUB,
+        MUL,
+        DIV,
+        EXP,
+        LPAREN,
+        RPAREN,
+        COMMA,
+        LESS,
+        LESSEQUAL,
+        GREATER,
+        GREATEREQUAL,
+        EQUAL,
+        NOTEQUAL,
+        AND,
+        OR,
+        QUESTION,
+        COLON,
+        ASSIGN,
+        SEMICOLON
     }
 
     private Type type;
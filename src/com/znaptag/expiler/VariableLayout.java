@@ -0,0 +1,110 @@
+package com.znaptag.expiler;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Assigns each variable a fixed slot in the double[] passed to
+// CompiledExpression.compute. The layout is resolved once at compile time, so
+// the generated code can fetch a variable with a single array load instead
+// of a Map lookup.
+public class VariableLayout
+{
+    private final String[] names;
+    private final Map<String, Integer> indices;
+    private final int hash;
+
+    public VariableLayout(String... names)
+    {
+        this.names = names.clone();
+        this.indices = new HashMap<>();
+        for (int i = 0; i < this.names.length; i++) {
+            if (indices.put(this.names[i], i) != null) {
+                throw new IllegalArgumentException("Variable " + this.names[i] +
+                                                   " occurs more than once in layout");
+            }
+        }
+        this.hash = Arrays.hashCode(this.names);
+    }
+
+    public VariableLayout(Collection<String> names)
+    {
+        this(names.toArray(new String[names.size()]));
+    }
+
+    public int size()
+    {
+        return names.length;
+    }
+
+    // Returns the slot of a variable, or -1 if it isn't part of the layout
+    public int indexOf(String name)
+    {
+        Integer index = indices.get(name);
+        if (index == null) {
+            return -1;
+        }
+
+        return index;
+    }
+
+    public boolean contains(String name)
+    {
+        return indices.containsKey(name);
+    }
+
+    public String getName(int index)
+    {
+        return names[index];
+    }
+
+    public List<String> getNames()
+    {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    // Convenience method for callers that still have their values in a map.
+    // Variables missing from the map are left at zero.
+    public double[] toArray(Map<String, Double> variables)
+    {
+        double[] values = new double[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Double value = variables.get(names[i]);
+            if (value != null) {
+                values[i] = value;
+            }
+        }
+
+        return values;
+    }
+
+    // Layouts are equal if they assign the same slots to the same names
+    @Override
+    public boolean equals(Object other)
+    {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof VariableLayout)) {
+            return false;
+        }
+
+        VariableLayout layout = (VariableLayout)other;
+        return hash == layout.hash && Arrays.equals(names, layout.names);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(names);
+    }
+}
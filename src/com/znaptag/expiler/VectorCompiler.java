@@ -0,0 +1,851 @@
+package com.znaptag.expiler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import static org.objectweb.asm.Opcodes.*;
+
+import com.znaptag.expiler.ast.*;
+
+// Optional batch backend which evaluates SPECIES_PREFERRED.length() rows at a
+// time using the incubating Vector API (jdk.incubator.vector), instead of
+// relying on C2 to auto-vectorize the scalar loop. The generated code refers
+// to the API by name only, so the project itself still builds without it,
+// but the JVM has to be started with --add-modules jdk.incubator.vector for
+// the backend to be used.
+//
+// Arithmetic maps to lanewise operations directly, as do the built-in
+// functions which are intrinsics of java.lang.Math with a vector counterpart
+// (sin, exp, log, min, fma and so on). Expressions calling any other function
+// fall back to the scalar computeBatch. The rows left over after the last
+// full vector are handled by a masked tail, not a scalar loop. Transcendental
+// operations are not required to give bit-identical results to
+// java.lang.Math, only to stay within the same error bounds.
+//
+// Comparisons produce a mask, which is blended into a vector of ones and
+// zeroes. Conditionals, && and || evaluate both sides in every lane and blend
+// the results, which is safe since none of the operations they may contain
+// have side effects.
+public class VectorCompiler
+{
+    private static final String VECTOR = "jdk/incubator/vector/DoubleVector";
+    private static final String VECTOR_DESC = "L" + VECTOR + ";";
+    private static final String SPECIES = "jdk/incubator/vector/VectorSpecies";
+    private static final String SPECIES_DESC = "L" + SPECIES + ";";
+    private static final String MASK_DESC = "Ljdk/incubator/vector/VectorMask;";
+    private static final String OPERATORS = "jdk/incubator/vector/VectorOperators";
+    private static final String ANY_VECTOR_DESC = "Ljdk/incubator/vector/Vector;";
+    private static final String MASK = "jdk/incubator/vector/VectorMask";
+    private static final String COMPARISON_DESC = "L" + OPERATORS + "$Comparison;";
+
+    // Lanewise operators for java.lang.Math methods, by name and number of
+    // arguments, along with the type of the field in VectorOperators
+    private static final Map<String, String> OPERATOR_TYPES = new HashMap<>();
+    static {
+        String unary = "Unary";
+        for (String name : new String[] { "sin", "cos", "tan", "asin", "acos", "atan",
+                                          "exp", "log", "sqrt", "cbrt", "abs" }) {
+            OPERATOR_TYPES.put(name + "/1", unary);
+        }
+        OPERATOR_TYPES.put("min/2", "Associative");
+        OPERATOR_TYPES.put("max/2", "Associative");
+        OPERATOR_TYPES.put("atan2/2", "Binary");
+        OPERATOR_TYPES.put("hypot/2", "Binary");
+        OPERATOR_TYPES.put("pow/2", "Binary");
+        OPERATOR_TYPES.put("fma/3", "Ternary");
+    }
+
+    // Implemented by the generated classes
+    public static interface Kernel
+    {
+        public void computeBatch(double[][] columns, double[] out, int from, int to);
+    }
+
+    // A compiled expression whose batch entry point goes through the vector
+    // kernel, if there is one. Single rows are always evaluated by the scalar
+    // class.
+    public static class VectorizedExpression implements CompiledExpression
+    {
+        private CompiledExpression scalar;
+        private Kernel kernel;
+        private VariableLayout layout;
+        private String fallbackReason;
+
+        private VectorizedExpression(CompiledExpression scalar,
+                                     Kernel kernel,
+                                     VariableLayout layout,
+                                     String fallbackReason)
+        {
+            this.scalar = scalar;
+            this.kernel = kernel;
+            this.layout = layout;
+            this.fallbackReason = fallbackReason;
+        }
+
+        public boolean isVectorized()
+        {
+            return kernel != null;
+        }
+
+        // Why the expression isn't vectorized, or null if it is
+        public String getFallbackReason()
+        {
+            return fallbackReason;
+        }
+
+        @Override
+        public double compute(double[] variables)
+        {
+            return scalar.compute(variables);
+        }
+
+        @Override
+        public double compute(Map<String, Double> variables)
+        {
+            return scalar.compute(variables);
+        }
+
+        @Override
+        public void computeBatch(double[][] columns, double[] out, int from, int to)
+        {
+            if (kernel != null) {
+                kernel.computeBatch(columns, out, from, to);
+            } else {
+                scalar.computeBatch(columns, out, from, to);
+            }
+        }
+
+        // Time the scalar and the vector batch over the given number of rows
+        // of random values in [0.5, 2), and return how many times faster the
+        // vector kernel is. Returns 1.0 if the expression isn't vectorized.
+        public double measureSpeedup(int rows)
+        {
+            if (kernel == null) {
+                return 1.0;
+            }
+
+            Random random = new Random(4711);
+            double[][] columns = new double[layout.size()][rows];
+            for (double[] column : columns) {
+                for (int i = 0; i < rows; i++) {
+                    column[i] = 0.5 + 1.5 * random.nextDouble();
+                }
+            }
+            double[] out = new double[rows];
+
+            // The Vector API is only fast once C2 has compiled the kernel, so
+            // most rounds are warmup
+            long scalarTime = 0, vectorTime = 0;
+            for (int round = 0; round < 100; round++) {
+                long s = System.nanoTime();
+                scalar.computeBatch(columns, out, 0, rows);
+                long s2 = System.nanoTime();
+                kernel.computeBatch(columns, out, 0, rows);
+                long s3 = System.nanoTime();
+
+                if (round >= 80) {
+                    scalarTime += s2 - s;
+                    vectorTime += s3 - s2;
+                }
+            }
+
+            return (double)scalarTime / vectorTime;
+        }
+    }
+
+    // Generates the vector code for a single evaluation of the expression,
+    // either for a full vector or, if maskRegister is set, for the masked
+    // tail. Every value on the stack is a DoubleVector.
+    private static class VectorCodeGenerationVisitor extends PostOrderVisitor
+    {
+        private MethodVisitor mv;
+        private Map<String, Integer> columnRegisters;
+        private Map<String, Class<? extends Function>> functions;
+        private Map<String, Double> constants;
+        private int counterRegister;
+        // the register holding the tail mask, or -1 for full vectors
+        private int maskRegister;
+        private Set<ASTNode> common;
+        private Map<ASTNode, Integer> commonRegisters;
+        // holds a mask while it's turned into a vector
+        private int maskTempRegister = -1;
+        // the registers holding the masks of the conditionals in progress
+        private Deque<Integer> conditionRegisters;
+        // the registers holding the vectors of the let bindings in scope
+        private Map<String, Integer> bindingRegisters;
+        private int nextRegister;
+        // references on the stack
+        private int depth;
+        private int maxDepth;
+
+        public VectorCodeGenerationVisitor(MethodVisitor mv,
+                                           Map<String, Integer> columnRegisters,
+                                           Map<String, Class<? extends Function>> functions,
+                                           Map<String, Double> constants,
+                                           int counterRegister,
+                                           int maskRegister,
+                                           Set<ASTNode> common,
+                                           int firstFreeRegister)
+        {
+            this.mv = mv;
+            this.columnRegisters = columnRegisters;
+            this.functions = functions;
+            this.constants = constants;
+            this.counterRegister = counterRegister;
+            this.maskRegister = maskRegister;
+            this.common = common;
+            this.commonRegisters = new HashMap<>();
+            this.conditionRegisters = new ArrayDeque<>();
+            this.bindingRegisters = new HashMap<>();
+            this.nextRegister = firstFreeRegister;
+        }
+
+        public int getRegisterCount()
+        {
+            return nextRegister;
+        }
+
+        public int getMaxDepth()
+        {
+            return maxDepth;
+        }
+
+        private void push()
+        {
+            depth++;
+            maxDepth = Math.max(depth, maxDepth);
+        }
+
+        private void broadcast(double value)
+        {
+            mv.visitFieldInsn(GETSTATIC, VECTOR, "SPECIES_PREFERRED", SPECIES_DESC);
+            mv.visitLdcInsn(value);
+            mv.visitMethodInsn(INVOKESTATIC, VECTOR, "broadcast",
+                               "(" + SPECIES_DESC + "D)" + VECTOR_DESC, false);
+            push();
+        }
+
+        private void arithmetic(String method)
+        {
+            mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR, method,
+                               "(" + ANY_VECTOR_DESC + ")" + VECTOR_DESC, false);
+            depth--;
+        }
+
+        private void pushOperator(String key, String name)
+        {
+            String type = OPERATOR_TYPES.get(key);
+            mv.visitFieldInsn(GETSTATIC, OPERATORS, name.toUpperCase(),
+                              "L" + OPERATORS + "$" + type + ";");
+            push();
+        }
+
+        // Descriptor of lanewise for an operator with the given number of
+        // operands, including the receiver
+        private static String lanewiseDescriptor(int operands)
+        {
+            String desc;
+            switch (operands) {
+                case 1: desc = "(L" + OPERATORS + "$Unary;"; break;
+                case 2: desc = "(L" + OPERATORS + "$Binary;" + ANY_VECTOR_DESC; break;
+                default: desc = "(L" + OPERATORS + "$Ternary;" + ANY_VECTOR_DESC + ANY_VECTOR_DESC;
+            }
+
+            return desc + ")" + VECTOR_DESC;
+        }
+
+        @Override
+        public void visit(NumberNode node)
+        {
+            broadcast(node.getNumber());
+        }
+
+        @Override
+        public void visit(VariableNode node)
+        {
+            Integer binding = bindingRegisters.get(node.getName());
+            if (binding != null) {
+                mv.visitVarInsn(ALOAD, binding);
+                push();
+                return;
+            }
+
+            Double constant = constants.get(node.getName());
+            if (constant != null) {
+                broadcast(constant);
+                return;
+            }
+
+            mv.visitFieldInsn(GETSTATIC, VECTOR, "SPECIES_PREFERRED", SPECIES_DESC);
+            mv.visitVarInsn(ALOAD, columnRegisters.get(node.getName()));
+            mv.visitVarInsn(ILOAD, counterRegister);
+            if (maskRegister == -1) {
+                mv.visitMethodInsn(INVOKESTATIC, VECTOR, "fromArray",
+                                   "(" + SPECIES_DESC + "[DI)" + VECTOR_DESC, false);
+            } else {
+                mv.visitVarInsn(ALOAD, maskRegister);
+                mv.visitMethodInsn(INVOKESTATIC, VECTOR, "fromArray",
+                                   "(" + SPECIES_DESC + "[DI" + MASK_DESC + ")" + VECTOR_DESC,
+                                   false);
+            }
+            push();
+        }
+
+        // Replace the vector on top of the stack with the mask of its lanes
+        // which compare to 0 as given
+        private void compareToZero(String comparison)
+        {
+            mv.visitFieldInsn(GETSTATIC, OPERATORS, comparison, COMPARISON_DESC);
+            mv.visitInsn(DCONST_0);
+            mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR, "compare",
+                               "(" + COMPARISON_DESC + "D)" + MASK_DESC, false);
+        }
+
+        // Replace the mask on top of the stack with a vector which is 1 in
+        // the lanes which are set, and 0 elsewhere
+        private void maskToVector()
+        {
+            if (maskTempRegister == -1) {
+                maskTempRegister = nextRegister++;
+            }
+
+            mv.visitVarInsn(ASTORE, maskTempRegister);
+            depth--;
+            broadcast(0.0);
+            mv.visitLdcInsn(1.0);
+            mv.visitVarInsn(ALOAD, maskTempRegister);
+            mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR, "blend",
+                               "(D" + MASK_DESC + ")" + VECTOR_DESC, false);
+        }
+
+        // Binary and ternary operators take the operator between the receiver
+        // and the other operands, so it's pushed after the first operand
+        @Override
+        protected boolean enterChild(ASTNode parent, int index)
+        {
+            if (parent instanceof LetNode) {
+                if (index > 0) {
+                    int reg = nextRegister++;
+                    mv.visitVarInsn(ASTORE, reg);
+                    depth--;
+                    bindingRegisters.put(((LetNode)parent).getName(index - 1), reg);
+                }
+                return true;
+            }
+
+            if (index == 1) {
+                if (parent instanceof ComparisonNode) {
+                    String name = comparisonName(((ComparisonNode)parent).getOperator());
+                    mv.visitFieldInsn(GETSTATIC, OPERATORS, name, COMPARISON_DESC);
+                    push();
+                    return true;
+                }
+                if (parent instanceof AndNode || parent instanceof OrNode) {
+                    compareToZero("NE");
+                    return true;
+                }
+                if (parent instanceof ConditionalNode) {
+                    // Lanes where the condition is 0 take the second branch
+                    compareToZero("EQ");
+                    int reg = nextRegister++;
+                    mv.visitVarInsn(ASTORE, reg);
+                    depth--;
+                    conditionRegisters.push(reg);
+                    return true;
+                }
+            }
+
+            if (parent instanceof ExpNode) {
+                if (isSquare((ExpNode)parent)) {
+                    return index == 0;
+                }
+                if (index == 1) {
+                    pushOperator("pow/2", "pow");
+                }
+            }
+            else if (parent instanceof FunctionNode && index == 1) {
+                FunctionNode function = (FunctionNode)parent;
+                pushOperator(operatorKey(function), intrinsicName(function));
+            }
+
+            return true;
+        }
+
+        private static boolean isSquare(ExpNode node)
+        {
+            return node.getRight() instanceof NumberNode &&
+                   ((NumberNode)node.getRight()).getNumber() == 2.0;
+        }
+
+        private String intrinsicName(FunctionNode node)
+        {
+            return functions.get(node.getName()).getAnnotation(Intrinsic.class).name();
+        }
+
+        private String operatorKey(FunctionNode node)
+        {
+            return intrinsicName(node) + "/" + node.getArgumentCount();
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            int operands = node.getArgumentCount();
+            if (operands == 1) {
+                pushOperator(operatorKey(node), intrinsicName(node));
+            }
+
+            mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR, "lanewise",
+                               lanewiseDescriptor(operands), false);
+            // The operator and all but one operand are consumed
+            depth -= operands;
+
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(AddNode node)
+        {
+            arithmetic("add");
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(SubNode node)
+        {
+            arithmetic("sub");
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(MulNode node)
+        {
+            arithmetic("mul");
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(DivNode node)
+        {
+            arithmetic("div");
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(ExpNode node)
+        {
+            if (isSquare(node)) {
+                // x*x is exact, like in the scalar code
+                mv.visitInsn(DUP);
+                push();
+                arithmetic("mul");
+            } else {
+                mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR, "lanewise",
+                                   lanewiseDescriptor(2), false);
+                depth -= 2;
+            }
+
+            storeCommon(node);
+        }
+
+        private static String comparisonName(ComparisonNode.Operator operator)
+        {
+            switch (operator) {
+                case LESS: return "LT";
+                case LESS_EQUAL: return "LE";
+                case GREATER: return "GT";
+                case GREATER_EQUAL: return "GE";
+                case EQUAL: return "EQ";
+                default: return "NE";
+            }
+        }
+
+        @Override
+        public void visit(ComparisonNode node)
+        {
+            mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR, "compare",
+                               "(" + COMPARISON_DESC + ANY_VECTOR_DESC + ")" + MASK_DESC,
+                               false);
+            depth -= 2;
+            maskToVector();
+
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(AndNode node)
+        {
+            logical("and");
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(OrNode node)
+        {
+            logical("or");
+            storeCommon(node);
+        }
+
+        // Combine the mask of the left operand with that of the right one
+        private void logical(String method)
+        {
+            compareToZero("NE");
+            mv.visitMethodInsn(INVOKEVIRTUAL, MASK, method,
+                               "(" + MASK_DESC + ")" + MASK_DESC, false);
+            depth--;
+            maskToVector();
+        }
+
+        @Override
+        public void visit(ConditionalNode node)
+        {
+            mv.visitVarInsn(ALOAD, conditionRegisters.pop());
+            mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR, "blend",
+                               "(" + ANY_VECTOR_DESC + MASK_DESC + ")" + VECTOR_DESC, false);
+            depth--;
+            maxDepth = Math.max(depth + 2, maxDepth);
+
+            storeCommon(node);
+        }
+
+        @Override
+        public void visit(LetNode node)
+        {
+            bindingRegisters.keySet().removeAll(node.getNames());
+        }
+
+        @Override
+        protected boolean enter(ASTNode node)
+        {
+            Integer reg = commonRegisters.get(node);
+            if (reg == null) {
+                return true;
+            }
+
+            mv.visitVarInsn(ALOAD, reg);
+            push();
+            return false;
+        }
+
+        private void storeCommon(ASTNode node)
+        {
+            if (!common.contains(node)) {
+                return;
+            }
+
+            int reg = nextRegister++;
+            mv.visitInsn(DUP);
+            mv.visitVarInsn(ASTORE, reg);
+            commonRegisters.put(node, reg);
+            maxDepth = Math.max(depth + 1, maxDepth);
+        }
+    }
+
+    // Finds the first function call which has no vector counterpart
+    private static class VectorizableVisitor extends PostOrderVisitor
+    {
+        private Map<String, Class<? extends Function>> functions;
+        private String reason;
+
+        public VectorizableVisitor(Map<String, Class<? extends Function>> functions)
+        {
+            this.functions = functions;
+        }
+
+        public String getReason()
+        {
+            return reason;
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            if (reason != null) {
+                return;
+            }
+
+            Class<? extends Function> func = functions.get(node.getName());
+            Intrinsic intrinsic = func.getAnnotation(Intrinsic.class);
+            if (intrinsic == null ||
+                !"java/lang/Math".equals(intrinsic.owner()) ||
+                !OPERATOR_TYPES.containsKey(intrinsic.name() + "/" + node.getArgumentCount())) {
+
+                reason = "Function " + node.getName() + " has no vector form";
+            }
+        }
+    }
+
+    private static final int lanes = findLanes();
+
+    private Compiler compiler;
+
+    public VectorCompiler(Compiler compiler)
+    {
+        this.compiler = compiler;
+    }
+
+    // The number of doubles in the preferred vector shape, or 0 if the Vector
+    // API isn't available
+    private static int findLanes()
+    {
+        try {
+            Class<?> vector = Class.forName("jdk.incubator.vector.DoubleVector");
+            Class<?> species = Class.forName("jdk.incubator.vector.VectorSpecies");
+            Object preferred = vector.getField("SPECIES_PREFERRED").get(null);
+            return (Integer)species.getMethod("length").invoke(preferred);
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            return 0;
+        }
+    }
+
+    // Whether the JVM has the Vector API, which requires
+    // --add-modules jdk.incubator.vector
+    public static boolean isSupported()
+    {
+        return lanes > 0;
+    }
+
+    // Doubles per vector, or 0 if the Vector API isn't available
+    public static int getLanes()
+    {
+        return lanes;
+    }
+
+    public VectorizedExpression compile(String name, ASTNode tree)
+    throws Compiler.CompilationException
+    {
+        return compile(name, tree, compiler.getVariableLayout(tree));
+    }
+
+    // Compile the scalar class, and a vector kernel if the expression and the
+    // JVM allow it
+    public VectorizedExpression compile(String name, ASTNode tree, VariableLayout layout)
+    throws Compiler.CompilationException
+    {
+        // This also checks that all functions and variables are known
+        CompiledExpression scalar = compiler.compile(name, tree, layout);
+
+        if (!isSupported()) {
+            return new VectorizedExpression(scalar, null, layout,
+                                            "Vector API not available, run with " +
+                                            "--add-modules jdk.incubator.vector");
+        }
+
+        Map<String, Class<? extends Function>> functions = compiler.getFunctions();
+        if (compiler.isOptimizationEnabled()) {
+            tree = compiler.optimize(tree);
+        }
+
+        VectorizableVisitor vectorizable = new VectorizableVisitor(functions);
+        vectorizable.walk(tree);
+        if (vectorizable.getReason() != null) {
+            return new VectorizedExpression(scalar, null, layout, vectorizable.getReason());
+        }
+
+        byte[] bytecode = compileToBytecode(name + "Vector", tree, layout);
+        Class<?> c = compiler.getClassDefiner().define("com.znaptag.expiler." + name + "Vector",
+                                                       bytecode);
+        ClassTracker.track(c);
+
+        try {
+            Kernel kernel = (Kernel)c.getConstructor().newInstance();
+            return new VectorizedExpression(scalar, kernel, layout, null);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] compileToBytecode(String name, ASTNode tree, VariableLayout layout)
+    {
+        Map<String, Class<? extends Function>> functions = compiler.getFunctions();
+        Map<String, Double> constants = compiler.getConstants();
+
+        Set<ASTNode> common = new HashSet<>();
+        if (compiler.isOptimizationEnabled()) {
+            Set<String> pureFunctions = new HashSet<>();
+            for (String function : functions.keySet()) {
+                if (compiler.isPureFunction(function)) {
+                    pureFunctions.add(function);
+                }
+            }
+
+            Compiler.CommonSubexpressionVisitor cse =
+                new Compiler.CommonSubexpressionVisitor(pureFunctions);
+            cse.walk(tree);
+            common = cse.getCommonSubexpressions();
+        }
+
+        // Columns of the variables which aren't constants
+        Set<String> variables = new HashSet<>(compiler.getVariableLayout(tree).getNames());
+
+        String className = "com/znaptag/expiler/" + name;
+
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(V1_7,
+                 ACC_PUBLIC,
+                 className,
+                 null,
+                 "java/lang/Object",
+                 new String[] { "com/znaptag/expiler/VectorCompiler$Kernel" });
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(1, 1);
+            mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "computeBatch", "([[D[DII)V", null, null);
+            mv.visitCode();
+
+            // Registers 0-4 hold this, columns, out, from and to, 5 the row
+            // counter and 6 the end of the last full vector
+            int counterReg = 5;
+            int upperReg = 6;
+            int regCounter = 7;
+
+            Map<String, Integer> columnRegisters = new HashMap<>();
+            for (String var : variables) {
+                mv.visitVarInsn(ALOAD, 1);
+                Compiler.pushInt(mv, layout.indexOf(var));
+                mv.visitInsn(AALOAD);
+                mv.visitVarInsn(ASTORE, regCounter);
+
+                columnRegisters.put(var, regCounter);
+                regCounter++;
+            }
+
+            Object[] frameLocals = new Object[regCounter];
+            frameLocals[0] = className;
+            frameLocals[1] = "[[D";
+            frameLocals[2] = "[D";
+            for (int i = 3; i <= upperReg; i++) {
+                frameLocals[i] = INTEGER;
+            }
+            for (int i = upperReg + 1; i < regCounter; i++) {
+                frameLocals[i] = "[D";
+            }
+
+            int maskReg = regCounter++;
+
+            // i = from, upper = from + SPECIES.loopBound(to - from)
+            mv.visitVarInsn(ILOAD, 3);
+            mv.visitVarInsn(ISTORE, counterReg);
+            mv.visitVarInsn(ILOAD, 3);
+            mv.visitFieldInsn(GETSTATIC, VECTOR, "SPECIES_PREFERRED", SPECIES_DESC);
+            mv.visitVarInsn(ILOAD, 4);
+            mv.visitVarInsn(ILOAD, 3);
+            mv.visitInsn(ISUB);
+            mv.visitMethodInsn(INVOKEINTERFACE, SPECIES, "loopBound", "(I)I", true);
+            mv.visitInsn(IADD);
+            mv.visitVarInsn(ISTORE, upperReg);
+
+            Label loopStart = new Label();
+            Label tail = new Label();
+            Label end = new Label();
+
+            // Full vectors while i < upper
+            mv.visitLabel(loopStart);
+            mv.visitFrame(F_FULL, frameLocals.length, frameLocals, 0, new Object[0]);
+            mv.visitVarInsn(ILOAD, counterReg);
+            mv.visitVarInsn(ILOAD, upperReg);
+            mv.visitJumpInsn(IF_ICMPGE, tail);
+
+            VectorCodeGenerationVisitor body =
+                new VectorCodeGenerationVisitor(mv, columnRegisters, functions, constants,
+                                                counterReg, -1, common, regCounter);
+            body.walk(tree);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitVarInsn(ILOAD, counterReg);
+            mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR, "intoArray", "([DI)V", false);
+
+            mv.visitIincInsn(counterReg, lanes);
+            mv.visitJumpInsn(GOTO, loopStart);
+
+            // The remaining rows, if any, as a single masked vector
+            mv.visitLabel(tail);
+            mv.visitFrame(F_FULL, frameLocals.length, frameLocals, 0, new Object[0]);
+            mv.visitVarInsn(ILOAD, counterReg);
+            mv.visitVarInsn(ILOAD, 4);
+            mv.visitJumpInsn(IF_ICMPGE, end);
+
+            mv.visitFieldInsn(GETSTATIC, VECTOR, "SPECIES_PREFERRED", SPECIES_DESC);
+            mv.visitVarInsn(ILOAD, counterReg);
+            mv.visitVarInsn(ILOAD, 4);
+            mv.visitMethodInsn(INVOKEINTERFACE, SPECIES, "indexInRange",
+                               "(II)" + MASK_DESC, true);
+            mv.visitVarInsn(ASTORE, maskReg);
+
+            VectorCodeGenerationVisitor tailBody =
+                new VectorCodeGenerationVisitor(mv, columnRegisters, functions, constants,
+                                                counterReg, maskReg, common, regCounter);
+            tailBody.walk(tree);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitVarInsn(ILOAD, counterReg);
+            mv.visitVarInsn(ALOAD, maskReg);
+            mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR, "intoArray",
+                               "([DI" + MASK_DESC + ")V", false);
+
+            mv.visitLabel(end);
+            mv.visitFrame(F_FULL, frameLocals.length, frameLocals, 0, new Object[0]);
+            mv.visitInsn(RETURN);
+
+            // Loading a column takes the species, array, index and mask on
+            // top of the values, and a broadcast the species and a double
+            int maxDepth = Math.max(body.getMaxDepth(), tailBody.getMaxDepth());
+            mv.visitMaxs(maxDepth + 4,
+                         Math.max(body.getRegisterCount(), tailBody.getRegisterCount()));
+            mv.visitEnd();
+
+        cw.visitEnd();
+
+        return cw.toByteArray();
+    }
+
+    // Basic test method: report whether each expression could be vectorized,
+    // and the speedup over the scalar batch if so
+    public static void main(String[] args)
+    throws Exception
+    {
+        String[] expressions = args.length > 0 ? args : new String[] {
+            "x*y + z",
+            "(x - 1)*(y + 2)/(z*z + 1)",
+            "x^2 + y^2 - 2*x*y",
+            "sin(x)*cos(y)",
+            "exp(0 - x*x/2)/sqrt(2*PI)",
+            "log(x) + log(y) + log(z)",
+            "x^y",
+            "max(x, y) - min(y, z) + fma(x, y, z)",
+            "hypot(x, y) + atan2(y, x)",
+            "x > 1 && y < 1.5 ? x*y : z - x"
+        };
+
+        Compiler compiler = new Compiler();
+        compiler.registerBuiltins();
+        VectorCompiler vectorCompiler = new VectorCompiler(compiler);
+        VariableLayout layout = new VariableLayout("x", "y", "z");
+
+        System.out.println("lanes: " + getLanes());
+        for (int i = 0; i < expressions.length; i++) {
+            ASTNode tree = new Parser(new Lexer(expressions[i])).parse();
+            VectorizedExpression expr = vectorCompiler.compile("VectorTest" + i, tree, layout);
+
+            if (expr.isVectorized()) {
+                System.out.printf("%-40s %6.2fx%n", expressions[i], expr.measureSpeedup(1 << 16));
+            } else {
+                System.out.printf("%-40s scalar: %s%n", expressions[i], expr.getFallbackReason());
+            }
+        }
+    }
+}
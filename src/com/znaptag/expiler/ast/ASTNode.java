@@ -3,4 +3,9 @@ package com.znaptag.expiler.ast;
 public interface ASTNode
 {
     public void visit(ASTVisitor visitor);
+
+    // Generic access to the children of a node, which allows a tree to be
+    // traversed without recursion. See PostOrderVisitor.
+    public int getChildCount();
+    public ASTNode getChild(int index);
 }
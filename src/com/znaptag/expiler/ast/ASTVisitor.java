@@ -10,4 +10,9 @@ public interface ASTVisitor
     public void visit(MulNode node);
     public void visit(DivNode node);
     public void visit(ExpNode node);
+    public void visit(ComparisonNode node);
+    public void visit(AndNode node);
+    public void visit(OrNode node);
+    public void visit(ConditionalNode node);
+    public void visit(LetNode node);
 }
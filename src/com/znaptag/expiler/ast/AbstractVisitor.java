@@ -15,8 +15,9 @@ public abstract class AbstractVisitor implements ASTVisitor
     @Override
     public void visit(FunctionNode node)
     {
-        ASTNode expr = node.getExpression();
-        expr.visit(this);
+        for (int i = 0; i < node.getArgumentCount(); i++) {
+            node.getArgument(i).visit(this);
+        }
     }
 
     @Override
@@ -68,4 +69,51 @@ public abstract class AbstractVisitor implements ASTVisitor
         ASTNode right = node.getRight();
         right.visit(this);
     }
+
+    @Override
+    public void visit(ComparisonNode node)
+    {
+        ASTNode left = node.getLeft();
+        left.visit(this);
+
+        ASTNode right = node.getRight();
+        right.visit(this);
+    }
+
+    @Override
+    public void visit(AndNode node)
+    {
+        ASTNode left = node.getLeft();
+        left.visit(this);
+
+        ASTNode right = node.getRight();
+        right.visit(this);
+    }
+
+    @Override
+    public void visit(OrNode node)
+    {
+        ASTNode left = node.getLeft();
+        left.visit(this);
+
+        ASTNode right = node.getRight();
+        right.visit(this);
+    }
+
+    @Override
+    public void visit(ConditionalNode node)
+    {
+        node.getCondition().visit(this);
+        node.getWhenTrue().visit(this);
+        node.getWhenFalse().visit(this);
+    }
+
+    @Override
+    public void visit(LetNode node)
+    {
+        for (int i = 0; i < node.getBindingCount(); i++) {
+            node.getValue(i).visit(this);
+        }
+        node.getBody().visit(this);
+    }
 }
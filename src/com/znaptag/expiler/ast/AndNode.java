@@ -0,0 +1,24 @@
+package com.znaptag.expiler.ast;
+
+// Logical and, which is 1 if both operands are non-zero and 0 otherwise. The
+// right operand is only evaluated if the left one is non-zero. NaN counts as
+// non-zero, like in C.
+public class AndNode extends BinaryNode
+{
+    public AndNode(ASTNode left, ASTNode right)
+    {
+        super(left, right);
+    }
+
+    @Override
+    public void visit(ASTVisitor visitor)
+    {
+        visitor.visit(this);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "(" + getLeft().toString() + " && " + getRight().toString() + ")";
+    }
+}
@@ -2,15 +2,58 @@ package com.znaptag.expiler.ast;
 
 public abstract class BinaryNode implements ASTNode
 {
-    private ASTNode left;
-    private ASTNode right;
+    private final ASTNode left;
+    private final ASTNode right;
+    private final int hash;
 
     public BinaryNode(ASTNode left, ASTNode right)
     {
         this.left = left;
         this.right = right;
+
+        // Children are complete by the time their parent is constructed, so
+        // the structural hash can be computed once, up front
+        this.hash = 31 * (31 * getClass().getName().hashCode() + left.hashCode()) +
+                    right.hashCode();
     }
 
     public ASTNode getLeft() { return left; }
     public ASTNode getRight() { return right; }
+
+    @Override
+    public int getChildCount()
+    {
+        return 2;
+    }
+
+    @Override
+    public ASTNode getChild(int index)
+    {
+        switch (index) {
+            case 0: return left;
+            case 1: return right;
+            default: throw new IndexOutOfBoundsException("No child " + index);
+        }
+    }
+
+    // Two nodes are equal if they have the same operation and structurally
+    // equal operands
+    @Override
+    public boolean equals(Object other)
+    {
+        if (this == other) {
+            return true;
+        }
+        if (other == null || other.getClass() != getClass()) {
+            return false;
+        }
+
+        return StructuralEquality.equal(this, (BinaryNode)other);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
 }
@@ -0,0 +1,74 @@
+package com.znaptag.expiler.ast;
+
+// A comparison of two values, which is 1 if it holds and 0 otherwise. As in
+// Java, every comparison involving NaN is false, except for !=.
+public class ComparisonNode extends BinaryNode
+{
+    public enum Operator
+    {
+        LESS ("<"),
+        LESS_EQUAL ("<="),
+        GREATER (">"),
+        GREATER_EQUAL (">="),
+        EQUAL ("=="),
+        NOT_EQUAL ("!=");
+
+        private String symbol;
+
+        private Operator(String symbol)
+        {
+            this.symbol = symbol;
+        }
+
+        public String getSymbol()
+        {
+            return symbol;
+        }
+
+        public boolean apply(double left, double right)
+        {
+            switch (this) {
+                case LESS: return left < right;
+                case LESS_EQUAL: return left <= right;
+                case GREATER: return left > right;
+                case GREATER_EQUAL: return left >= right;
+                case EQUAL: return left == right;
+                default: return left != right;
+            }
+        }
+    }
+
+    private final Operator operator;
+    private final int hash;
+
+    public ComparisonNode(Operator operator, ASTNode left, ASTNode right)
+    {
+        super(left, right);
+        this.operator = operator;
+        this.hash = 31 * super.hashCode() + operator.getSymbol().hashCode();
+    }
+
+    public Operator getOperator()
+    {
+        return operator;
+    }
+
+    @Override
+    public void visit(ASTVisitor visitor)
+    {
+        visitor.visit(this);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "(" + getLeft().toString() + " " + operator.getSymbol() + " " +
+               getRight().toString() + ")";
+    }
+}
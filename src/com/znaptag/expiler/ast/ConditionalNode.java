@@ -0,0 +1,78 @@
+package com.znaptag.expiler.ast;
+
+// condition ? whenTrue : whenFalse, where any non-zero condition, including
+// NaN, counts as true. Only the selected branch is evaluated, as far as
+// anyone can tell: the compiler may evaluate both when they're cheap and
+// have no side effects.
+public class ConditionalNode implements ASTNode
+{
+    private final ASTNode condition;
+    private final ASTNode whenTrue;
+    private final ASTNode whenFalse;
+    private final int hash;
+
+    public ConditionalNode(ASTNode condition, ASTNode whenTrue, ASTNode whenFalse)
+    {
+        this.condition = condition;
+        this.whenTrue = whenTrue;
+        this.whenFalse = whenFalse;
+
+        this.hash = 31 * (31 * (31 * getClass().getName().hashCode() +
+                                condition.hashCode()) +
+                          whenTrue.hashCode()) +
+                    whenFalse.hashCode();
+    }
+
+    public ASTNode getCondition() { return condition; }
+    public ASTNode getWhenTrue() { return whenTrue; }
+    public ASTNode getWhenFalse() { return whenFalse; }
+
+    @Override
+    public int getChildCount()
+    {
+        return 3;
+    }
+
+    @Override
+    public ASTNode getChild(int index)
+    {
+        switch (index) {
+            case 0: return condition;
+            case 1: return whenTrue;
+            case 2: return whenFalse;
+            default: throw new IndexOutOfBoundsException("No child " + index);
+        }
+    }
+
+    @Override
+    public void visit(ASTVisitor visitor)
+    {
+        visitor.visit(this);
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ConditionalNode)) {
+            return false;
+        }
+
+        return StructuralEquality.equal(this, (ConditionalNode)other);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "(" + condition.toString() + " ? " + whenTrue.toString() + " : " +
+               whenFalse.toString() + ")";
+    }
+}
@@ -1,14 +1,29 @@
 package com.znaptag.expiler.ast;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class FunctionNode implements ASTNode
 {
-    private String name;
-    private ASTNode expr;
+    private final String name;
+    private final ASTNode[] args;
+    private final int hash;
 
-    public FunctionNode(String name, ASTNode expr)
+    public FunctionNode(String name, ASTNode... args)
     {
         this.name = name;
-        this.expr = expr;
+        this.args = args.clone();
+
+        int hash = name.hashCode();
+        for (ASTNode arg : this.args) {
+            hash = 31 * hash + arg.hashCode();
+        }
+        this.hash = hash;
+    }
+
+    public FunctionNode(String name, List<ASTNode> args)
+    {
+        this(name, args.toArray(new ASTNode[args.size()]));
     }
 
     public String getName()
@@ -16,9 +31,35 @@ public class FunctionNode implements ASTNode
         return name;
     }
 
-    public ASTNode getExpression()
+    public int getArgumentCount()
+    {
+        return args.length;
+    }
+
+    public ASTNode getArgument(int index)
+    {
+        return args[index];
+    }
+
+    public List<ASTNode> getArguments()
+    {
+        return Arrays.asList(args.clone());
+    }
+
+    @Override
+    public int getChildCount()
+    {
+        return args.length;
+    }
+
+    @Override
+    public ASTNode getChild(int index)
     {
-        return expr;
+        if (index < 0 || index >= args.length) {
+            throw new IndexOutOfBoundsException("No child " + index);
+        }
+
+        return args[index];
     }
 
     @Override
@@ -27,9 +68,38 @@ public class FunctionNode implements ASTNode
         visitor.visit(this);
     }
 
+    @Override
+    public boolean equals(Object other)
+    {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof FunctionNode)) {
+            return false;
+        }
+
+        return StructuralEquality.equal(this, (FunctionNode)other);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
     @Override
     public String toString()
     {
-        return name + "(" + expr.toString() + ")";
+        StringBuilder buffer = new StringBuilder(name);
+        buffer.append("(");
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(args[i].toString());
+        }
+        buffer.append(")");
+
+        return buffer.toString();
     }
 }
@@ -0,0 +1,264 @@
+package com.znaptag.expiler.ast;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import com.znaptag.expiler.Lexer;
+import com.znaptag.expiler.Parser;
+
+// Hash consing: returns the same instance for structurally equal nodes, so
+// a set of trees parsed with one factory shares every repeated variable,
+// number and subtree. Since the children of a new node are canonical
+// already, looking it up only compares the children by identity, and equal
+// trees from the same factory are equal by identity, too.
+//
+// The table holds its nodes weakly, so nodes which no longer belong to any
+// tree are collected as usual. It may be shared between threads.
+public class InterningNodeFactory extends NodeFactory
+{
+    // A weak reference to a canonical node, chained within its bucket. Unlike
+    // a WeakHashMap, which would need a second reference to hand back the
+    // canonical key, this takes a single object per node.
+    private static class Entry extends WeakReference<ASTNode>
+    {
+        private final int hash;
+        private Entry next;
+
+        public Entry(ASTNode node, ReferenceQueue<ASTNode> queue, Entry next)
+        {
+            super(node, queue);
+            this.hash = node.hashCode();
+            this.next = next;
+        }
+    }
+
+    private Entry[] table;
+    private int size;
+    // Entries whose nodes have been collected, which are unlinked on the
+    // next access
+    private final ReferenceQueue<ASTNode> queue;
+    private long lookups;
+    private long hits;
+
+    public InterningNodeFactory()
+    {
+        this.table = new Entry[64];
+        this.queue = new ReferenceQueue<>();
+    }
+
+    private static int indexFor(int hash, int length)
+    {
+        // Doubles have all their variation in the high bits
+        return (hash ^ (hash >>> 16)) & (length - 1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected synchronized <T extends ASTNode> T intern(T node)
+    {
+        expunge();
+        lookups++;
+
+        int hash = node.hashCode();
+        int index = indexFor(hash, table.length);
+        for (Entry entry = table[index]; entry != null; entry = entry.next) {
+            if (entry.hash != hash) {
+                continue;
+            }
+
+            ASTNode canonical = entry.get();
+            if (canonical != null && canonical.equals(node)) {
+                hits++;
+                // Equal nodes always have the same class
+                return (T)canonical;
+            }
+        }
+
+        table[index] = new Entry(node, queue, table[index]);
+        if (++size > table.length / 4 * 3) {
+            resize();
+        }
+
+        return node;
+    }
+
+    private void resize()
+    {
+        Entry[] old = table;
+        table = new Entry[2 * old.length];
+        for (Entry head : old) {
+            Entry entry = head;
+            while (entry != null) {
+                Entry next = entry.next;
+                int index = indexFor(entry.hash, table.length);
+                entry.next = table[index];
+                table[index] = entry;
+                entry = next;
+            }
+        }
+    }
+
+    private void expunge()
+    {
+        Reference<? extends ASTNode> ref;
+        while ((ref = queue.poll()) != null) {
+            Entry stale = (Entry)ref;
+            int index = indexFor(stale.hash, table.length);
+
+            Entry previous = null;
+            for (Entry entry = table[index]; entry != null; entry = entry.next) {
+                if (entry == stale) {
+                    if (previous == null) {
+                        table[index] = entry.next;
+                    } else {
+                        previous.next = entry.next;
+                    }
+                    size--;
+                    break;
+                }
+                previous = entry;
+            }
+        }
+    }
+
+    // Number of distinct nodes which are still reachable
+    public synchronized int size()
+    {
+        expunge();
+        return size;
+    }
+
+    public synchronized long getLookups()
+    {
+        return lookups;
+    }
+
+    // Number of nodes which were replaced by an existing one
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    // Basic test method: Parse a set of generated formulas, first with
+    // separate nodes for every tree and then with a shared factory, and
+    // compare the heap retained by the trees (and the table)
+    public static void main(String[] args)
+    throws Exception
+    {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        Random random = new Random(4711);
+        String[] sources = new String[count];
+        long chars = 0;
+        for (int i = 0; i < count; i++) {
+            StringBuilder buffer = new StringBuilder();
+            generate(random, 4, buffer);
+            sources[i] = buffer.toString();
+            chars += sources[i].length();
+        }
+        System.out.println(count + " formulas, " + chars / count + " characters on average");
+
+        long nodes = 0;
+        for (int round = 0; round < 2; round++) {
+            NodeFactory factory = round == 0 ? new NodeFactory() : new InterningNodeFactory();
+
+            long before = usedHeap();
+            long start = System.nanoTime();
+            List<ASTNode> trees = new ArrayList<>(count);
+            for (String source : sources) {
+                trees.add(new Parser(new Lexer(source), factory).parse());
+            }
+            long time = System.nanoTime() - start;
+            long retained = usedHeap() - before;
+
+            if (round == 0) {
+                for (ASTNode tree : trees) {
+                    nodes += countNodes(tree);
+                }
+                System.out.printf("separate:  %,d nodes, %,d bytes (%.1f per formula), " +
+                                  "parsed in %d ms%n",
+                                  nodes, retained, (double)retained / count, time / 1000000);
+            } else {
+                InterningNodeFactory interning = (InterningNodeFactory)factory;
+                System.out.printf("interned:  %,d nodes, %,d bytes (%.1f per formula), " +
+                                  "parsed in %d ms, %d%% hits%n",
+                                  interning.size(), retained, (double)retained / count,
+                                  time / 1000000,
+                                  100 * interning.getHits() / interning.getLookups());
+            }
+
+            // Keep the trees and factory alive until they have been measured
+            if (trees.size() != count || factory == null) {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    private static final String[] VARIABLES = { "x", "y", "z", "a", "b", "c", "t", "u" };
+    private static final String[] FUNCTIONS = { "sin", "cos", "sqrt", "abs" };
+    private static final String[] OPERATORS = { " + ", " - ", "*", "/" };
+
+    // Random arithmetic over a few variables and small constants, which is
+    // what typical hand written formulas look like
+    private static void generate(Random random, int depth, StringBuilder buffer)
+    {
+        int choice = random.nextInt(10);
+        if (depth == 0 || choice < 2) {
+            if (random.nextInt(3) == 0) {
+                buffer.append(random.nextInt(10));
+            } else {
+                buffer.append(VARIABLES[random.nextInt(VARIABLES.length)]);
+            }
+        }
+        else if (choice < 3) {
+            buffer.append(FUNCTIONS[random.nextInt(FUNCTIONS.length)]).append('(');
+            generate(random, depth - 1, buffer);
+            buffer.append(')');
+        }
+        else if (choice < 4) {
+            buffer.append(VARIABLES[random.nextInt(VARIABLES.length)])
+                  .append('^').append(2 + random.nextInt(2));
+        }
+        else {
+            buffer.append('(');
+            generate(random, depth - 1, buffer);
+            buffer.append(OPERATORS[random.nextInt(OPERATORS.length)]);
+            generate(random, depth - 1, buffer);
+            buffer.append(')');
+        }
+    }
+
+    private static long countNodes(ASTNode tree)
+    {
+        long count = 0;
+        Deque<ASTNode> pending = new ArrayDeque<>();
+        pending.push(tree);
+        while (!pending.isEmpty()) {
+            ASTNode node = pending.pop();
+            count++;
+            for (int i = 0; i < node.getChildCount(); i++) {
+                pending.push(node.getChild(i));
+            }
+        }
+
+        return count;
+    }
+
+    private static long usedHeap()
+    throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,121 @@
+package com.znaptag.expiler.ast;
+
+import java.util.Arrays;
+import java.util.List;
+
+// let name1 = value1; name2 = value2; body. Each value is evaluated once, in
+// order, and is referred to by a VariableNode with its name in the values
+// after it and in the body. The names are distinct, and none of them is used
+// as an ordinary variable anywhere in the node, so a VariableNode always
+// means the same thing within it.
+public class LetNode implements ASTNode
+{
+    private final String[] names;
+    private final ASTNode[] values;
+    private final ASTNode body;
+    private final int hash;
+
+    public LetNode(String[] names, ASTNode[] values, ASTNode body)
+    {
+        if (names.length != values.length) {
+            throw new IllegalArgumentException("Got " + names.length + " names for " +
+                                               values.length + " values");
+        }
+
+        this.names = names.clone();
+        this.values = values.clone();
+        this.body = body;
+
+        int hash = getClass().getName().hashCode();
+        for (int i = 0; i < this.names.length; i++) {
+            hash = 31 * (31 * hash + this.names[i].hashCode()) + this.values[i].hashCode();
+        }
+        this.hash = 31 * hash + body.hashCode();
+    }
+
+    public LetNode(List<String> names, List<ASTNode> values, ASTNode body)
+    {
+        this(names.toArray(new String[names.size()]),
+             values.toArray(new ASTNode[values.size()]),
+             body);
+    }
+
+    public int getBindingCount()
+    {
+        return names.length;
+    }
+
+    public String getName(int index)
+    {
+        return names[index];
+    }
+
+    public ASTNode getValue(int index)
+    {
+        return values[index];
+    }
+
+    public List<String> getNames()
+    {
+        return Arrays.asList(names.clone());
+    }
+
+    public ASTNode getBody()
+    {
+        return body;
+    }
+
+    // The values, followed by the body
+    @Override
+    public int getChildCount()
+    {
+        return values.length + 1;
+    }
+
+    @Override
+    public ASTNode getChild(int index)
+    {
+        if (index < 0 || index > values.length) {
+            throw new IndexOutOfBoundsException("No child " + index);
+        }
+
+        return index < values.length ? values[index] : body;
+    }
+
+    @Override
+    public void visit(ASTVisitor visitor)
+    {
+        visitor.visit(this);
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof LetNode)) {
+            return false;
+        }
+
+        return StructuralEquality.equal(this, (LetNode)other);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder buffer = new StringBuilder("let ");
+        for (int i = 0; i < names.length; i++) {
+            buffer.append(names[i]).append(" = ").append(values[i].toString()).append("; ");
+        }
+        buffer.append(body.toString());
+
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package com.znaptag.expiler.ast;
+
+import java.util.List;
+
+// Constructs the nodes of a tree bottom up, which is how the Parser builds
+// them. This one simply allocates a new node every time; see
+// InterningNodeFactory for one which shares identical subtrees.
+public class NodeFactory
+{
+    public NumberNode number(double value)
+    {
+        return intern(new NumberNode(value));
+    }
+
+    public VariableNode variable(String name)
+    {
+        return intern(new VariableNode(name));
+    }
+
+    public FunctionNode function(String name, ASTNode... args)
+    {
+        return intern(new FunctionNode(name, args));
+    }
+
+    public AddNode add(ASTNode left, ASTNode right)
+    {
+        return intern(new AddNode(left, right));
+    }
+
+    public SubNode sub(ASTNode left, ASTNode right)
+    {
+        return intern(new SubNode(left, right));
+    }
+
+    public MulNode mul(ASTNode left, ASTNode right)
+    {
+        return intern(new MulNode(left, right));
+    }
+
+    public DivNode div(ASTNode left, ASTNode right)
+    {
+        return intern(new DivNode(left, right));
+    }
+
+    public ExpNode exp(ASTNode left, ASTNode right)
+    {
+        return intern(new ExpNode(left, right));
+    }
+
+    public ComparisonNode comparison(ComparisonNode.Operator operator,
+                                     ASTNode left, ASTNode right)
+    {
+        return intern(new ComparisonNode(operator, left, right));
+    }
+
+    public AndNode and(ASTNode left, ASTNode right)
+    {
+        return intern(new AndNode(left, right));
+    }
+
+    public OrNode or(ASTNode left, ASTNode right)
+    {
+        return intern(new OrNode(left, right));
+    }
+
+    public ConditionalNode conditional(ASTNode condition, ASTNode whenTrue,
+                                       ASTNode whenFalse)
+    {
+        return intern(new ConditionalNode(condition, whenTrue, whenFalse));
+    }
+
+    public LetNode let(List<String> names, List<ASTNode> values, ASTNode body)
+    {
+        return intern(new LetNode(names, values, body));
+    }
+
+    // Called with every node that has just been constructed, and returns
+    // the node to use in its place, which has to be equal to it
+    protected <T extends ASTNode> T intern(T node)
+    {
+        return node;
+    }
+}
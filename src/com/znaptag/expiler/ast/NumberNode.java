@@ -2,11 +2,15 @@ package com.znaptag.expiler.ast;
 
 public class NumberNode implements ASTNode
 {
-    private double num;
+    private final double num;
+    private final int hash;
 
     public NumberNode(double num)
     {
         this.num = num;
+
+        long bits = Double.doubleToLongBits(num);
+        this.hash = (int)(bits ^ (bits >>> 32));
     }
 
     public double getNumber()
@@ -14,12 +18,43 @@ public class NumberNode implements ASTNode
         return num;
     }
 
+    @Override
+    public int getChildCount()
+    {
+        return 0;
+    }
+
+    @Override
+    public ASTNode getChild(int index)
+    {
+        throw new IndexOutOfBoundsException("No child " + index);
+    }
+
     @Override
     public void visit(ASTVisitor visitor)
     {
         visitor.visit(this);
     }
 
+    // Compares the bit patterns, so that 0.0 and -0.0 are considered
+    // different, and NaN is equal to itself
+    @Override
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof NumberNode)) {
+            return false;
+        }
+
+        NumberNode node = (NumberNode)other;
+        return Double.doubleToLongBits(num) == Double.doubleToLongBits(node.num);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
     @Override
     public String toString()
     {
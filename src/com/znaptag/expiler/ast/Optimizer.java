@@ -0,0 +1,483 @@
+package com.znaptag.expiler.ast;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.znaptag.expiler.Function;
+
+// Simplifies a tree before code generation. Subtrees which only depend on
+// numbers and constants are evaluated, including calls to pure functions, and
+// a number of algebraic identities are applied. Only identities which hold for
+// every IEEE 754 double, including NaN, infinities and negative zero, are
+// used. That rules out some familiar ones, such as x + 0 (which turns -0.0
+// into 0.0) and x * 0 (which isn't 0 for NaN or infinite x).
+public class Optimizer extends RewritingVisitor
+{
+    // Counts the nodes of a tree
+    private static class CountingVisitor extends PostOrderVisitor
+    {
+        private int count = 0;
+
+        public int getCount()
+        {
+            return count;
+        }
+
+        @Override
+        protected boolean enter(ASTNode node)
+        {
+            count++;
+            return true;
+        }
+    }
+
+    // Checks whether a tree calls any function which isn't known to be pure
+    private class PurityVisitor extends PostOrderVisitor
+    {
+        private boolean pure = true;
+
+        public boolean isPure()
+        {
+            return pure;
+        }
+
+        @Override
+        public void visit(FunctionNode node)
+        {
+            if (!pureFunctions.containsKey(node.getName())) {
+                pure = false;
+            }
+        }
+    }
+
+    private Map<String, Double> constants;
+    private Map<String, Class<? extends Function>> pureFunctions;
+    private int removedNodes = 0;
+    // The let bindings in scope, and what references to them are replaced
+    // by: the value itself if it's a number or a variable, or otherwise
+    // the reference
+    private Map<String, ASTNode> bindings = new HashMap<>();
+
+    public Optimizer(Map<String, Double> constants,
+                     Map<String, Class<? extends Function>> pureFunctions)
+    {
+        this.constants = constants;
+        this.pureFunctions = pureFunctions;
+    }
+
+    // Number of nodes removed by all trees optimized so far
+    public int getRemovedNodes()
+    {
+        return removedNodes;
+    }
+
+    public ASTNode optimize(ASTNode tree)
+    {
+        int before = countNodes(tree);
+        ASTNode optimized = rewrite(tree);
+        removedNodes += before - countNodes(optimized);
+
+        return optimized;
+    }
+
+    public static int countNodes(ASTNode tree)
+    {
+        CountingVisitor counter = new CountingVisitor();
+        counter.walk(tree);
+        return counter.getCount();
+    }
+
+    @Override
+    public void visit(VariableNode node)
+    {
+        ASTNode binding = bindings.get(node.getName());
+        if (binding != null) {
+            pushResult(binding);
+            return;
+        }
+
+        Double constant = constants.get(node.getName());
+        if (constant != null) {
+            pushResult(new NumberNode(constant));
+        } else {
+            pushResult(node);
+        }
+    }
+
+    @Override
+    public void visit(FunctionNode node)
+    {
+        ASTNode[] args = popArguments(node);
+
+        Class<? extends Function> func = pureFunctions.get(node.getName());
+        if (func != null && allNumbers(args)) {
+            Class<?>[] paramTypes = new Class<?>[args.length];
+            Object[] values = new Object[args.length];
+            for (int i = 0; i < args.length; i++) {
+                paramTypes[i] = double.class;
+                values[i] = number(args[i]);
+            }
+
+            try {
+                Method call = func.getMethod("call", paramTypes);
+                pushResult(new NumberNode((Double)call.invoke(null, values)));
+                return;
+            }
+            catch (NoSuchMethodException | IllegalAccessException |
+                   InvocationTargetException e) {
+                // Leave the call for runtime, and let it fail there if it must
+            }
+        }
+
+        if (sameArguments(node, args)) {
+            pushResult(node);
+        } else {
+            pushResult(new FunctionNode(node.getName(), args));
+        }
+    }
+
+    @Override
+    public void visit(AddNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+
+        if (isNumber(left) && isNumber(right)) {
+            pushResult(new NumberNode(number(left) + number(right)));
+        }
+        // -0.0 is the additive identity, as opposed to 0.0: -0.0 + 0.0 = 0.0
+        else if (isNegativeZero(right)) {
+            pushResult(left);
+        }
+        else if (isNegativeZero(left)) {
+            pushResult(right);
+        }
+        else if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        }
+        else {
+            pushResult(new AddNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(SubNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+
+        if (isNumber(left) && isNumber(right)) {
+            pushResult(new NumberNode(number(left) - number(right)));
+        }
+        // x - 0.0 = x holds for -0.0 too, since -0.0 - 0.0 = -0.0
+        else if (isPositiveZero(right)) {
+            pushResult(left);
+        }
+        else if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        }
+        else {
+            pushResult(new SubNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(MulNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+
+        if (isNumber(left) && isNumber(right)) {
+            pushResult(new NumberNode(number(left) * number(right)));
+        }
+        else if (isNumber(right, 1.0)) {
+            pushResult(left);
+        }
+        else if (isNumber(left, 1.0)) {
+            pushResult(right);
+        }
+        else if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        }
+        else {
+            pushResult(new MulNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(DivNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+
+        if (isNumber(left) && isNumber(right)) {
+            pushResult(new NumberNode(number(left) / number(right)));
+        }
+        else if (isNumber(right, 1.0)) {
+            pushResult(left);
+        }
+        // Dividing by a power of two is the same as multiplying by its exact
+        // reciprocal, and multiplication is cheaper
+        else if (isNumber(right) && hasExactReciprocal(number(right))) {
+            pushResult(new MulNode(left, new NumberNode(1.0 / number(right))));
+        }
+        else if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        }
+        else {
+            pushResult(new DivNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(ExpNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+
+        if (isNumber(left) && isNumber(right)) {
+            pushResult(new NumberNode(Math.pow(number(left), number(right))));
+        }
+        // Math.pow guarantees that x^1 = x
+        else if (isNumber(right, 1.0)) {
+            pushResult(left);
+        }
+        // ... as well as x^0 = 1, even for NaN. The base can only be dropped
+        // if evaluating it has no side effects, though.
+        else if (isNumber(right, 0.0) && isPure(left)) {
+            pushResult(new NumberNode(1.0));
+        }
+        else if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        }
+        else {
+            pushResult(new ExpNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(ComparisonNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+
+        if (isNumber(left) && isNumber(right)) {
+            pushResult(bool(node.getOperator().apply(number(left), number(right))));
+        }
+        else if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        }
+        else {
+            pushResult(new ComparisonNode(node.getOperator(), left, right));
+        }
+    }
+
+    // The right operand is only evaluated if the left one is non-zero, so a
+    // constant left operand decides whether it's kept at all
+    @Override
+    public void visit(AndNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+
+        if (isNumber(left, 0.0)) {
+            pushResult(bool(false));
+        }
+        else if (isNumber(left)) {
+            pushResult(truth(right));
+        }
+        else if (isNumber(right) && number(right) != 0.0) {
+            pushResult(truth(left));
+        }
+        else if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        }
+        else {
+            pushResult(new AndNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(OrNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+
+        if (isNumber(left, 0.0)) {
+            pushResult(truth(right));
+        }
+        else if (isNumber(left)) {
+            pushResult(bool(true));
+        }
+        else if (isNumber(right, 0.0)) {
+            pushResult(truth(left));
+        }
+        else if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        }
+        else {
+            pushResult(new OrNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(ConditionalNode node)
+    {
+        ASTNode whenFalse = popResult();
+        ASTNode whenTrue = popResult();
+        ASTNode condition = popResult();
+
+        // NaN is true
+        if (isNumber(condition)) {
+            pushResult(number(condition) != 0.0 ? whenTrue : whenFalse);
+        }
+        else if (whenTrue.equals(whenFalse) && isPure(condition)) {
+            pushResult(whenTrue);
+        }
+        else if (condition == node.getCondition() &&
+                 whenTrue == node.getWhenTrue() &&
+                 whenFalse == node.getWhenFalse()) {
+
+            pushResult(node);
+        }
+        else {
+            pushResult(new ConditionalNode(condition, whenTrue, whenFalse));
+        }
+    }
+
+    // The value of a binding has just been rewritten, and is on top of the
+    // result stack
+    @Override
+    protected boolean enterChild(ASTNode parent, int index)
+    {
+        if (parent instanceof LetNode && index > 0) {
+            LetNode let = (LetNode)parent;
+            String name = let.getName(index - 1);
+            ASTNode value = popResult();
+            pushResult(value);
+
+            if (isNumber(value) || value instanceof VariableNode) {
+                bindings.put(name, value);
+            } else {
+                bindings.put(name, new VariableNode(name));
+            }
+        }
+        return true;
+    }
+
+    // Bindings to numbers and variables have been replaced by their values,
+    // and are dropped
+    @Override
+    public void visit(LetNode node)
+    {
+        ASTNode body = popResult();
+        ASTNode[] values = new ASTNode[node.getBindingCount()];
+        for (int i = values.length - 1; i >= 0; i--) {
+            values[i] = popResult();
+        }
+
+        List<String> keptNames = new ArrayList<>();
+        List<ASTNode> keptValues = new ArrayList<>();
+        boolean same = body == node.getBody();
+        for (int i = 0; i < values.length; i++) {
+            bindings.remove(node.getName(i));
+            if (!isNumber(values[i]) && !(values[i] instanceof VariableNode)) {
+                keptNames.add(node.getName(i));
+                keptValues.add(values[i]);
+            }
+            same &= values[i] == node.getValue(i);
+        }
+
+        if (keptNames.isEmpty()) {
+            pushResult(body);
+        } else if (same && keptNames.size() == values.length) {
+            pushResult(node);
+        } else {
+            pushResult(new LetNode(keptNames, keptValues, body));
+        }
+    }
+
+    private static NumberNode bool(boolean value)
+    {
+        return new NumberNode(value ? 1.0 : 0.0);
+    }
+
+    // A node which is 1 if the given one is non-zero and 0 otherwise
+    private static ASTNode truth(ASTNode node)
+    {
+        if (isNumber(node)) {
+            return bool(number(node) != 0.0);
+        }
+        if (node instanceof ComparisonNode ||
+            node instanceof AndNode ||
+            node instanceof OrNode) {
+
+            return node;
+        }
+
+        return new ComparisonNode(ComparisonNode.Operator.NOT_EQUAL, node, new NumberNode(0.0));
+    }
+
+    private boolean isPure(ASTNode node)
+    {
+        PurityVisitor purity = new PurityVisitor();
+        purity.walk(node);
+        return purity.isPure();
+    }
+
+    private static boolean isNumber(ASTNode node)
+    {
+        return node instanceof NumberNode;
+    }
+
+    private static boolean allNumbers(ASTNode[] nodes)
+    {
+        for (ASTNode node : nodes) {
+            if (!isNumber(node)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Note that 0.0 == -0.0, so this matches zeroes of both signs
+    private static boolean isNumber(ASTNode node, double value)
+    {
+        return isNumber(node) && number(node) == value;
+    }
+
+    private static double number(ASTNode node)
+    {
+        return ((NumberNode)node).getNumber();
+    }
+
+    private static boolean isPositiveZero(ASTNode node)
+    {
+        return isNumber(node) &&
+               Double.doubleToRawLongBits(number(node)) == Double.doubleToRawLongBits(0.0);
+    }
+
+    private static boolean isNegativeZero(ASTNode node)
+    {
+        return isNumber(node) &&
+               Double.doubleToRawLongBits(number(node)) == Double.doubleToRawLongBits(-0.0);
+    }
+
+    // True for powers of two whose reciprocal is a normal double
+    private static boolean hasExactReciprocal(double value)
+    {
+        if (value == 0.0 || Double.isNaN(value) || Double.isInfinite(value)) {
+            return false;
+        }
+
+        int exponent = Math.getExponent(value);
+        return Math.abs(value) == Math.scalb(1.0, exponent) &&
+               -exponent >= Double.MIN_EXPONENT &&
+               -exponent <= Double.MAX_EXPONENT;
+    }
+}
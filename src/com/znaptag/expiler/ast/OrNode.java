@@ -0,0 +1,23 @@
+package com.znaptag.expiler.ast;
+
+// Logical or, which is 1 if either operand is non-zero and 0 otherwise. The
+// right operand is only evaluated if the left one is zero.
+public class OrNode extends BinaryNode
+{
+    public OrNode(ASTNode left, ASTNode right)
+    {
+        super(left, right);
+    }
+
+    @Override
+    public void visit(ASTVisitor visitor)
+    {
+        visitor.visit(this);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "(" + getLeft().toString() + " || " + getRight().toString() + ")";
+    }
+}
@@ -0,0 +1,133 @@
+package com.znaptag.expiler.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Base class for visitors which handle a node after all of its children.
+// As opposed to AbstractVisitor, the traversal is driven by walk using an
+// explicit stack, so the Java stack depth stays constant no matter how deep
+// the tree is. The visit methods therefore shouldn't visit any children
+// themselves.
+public abstract class PostOrderVisitor implements ASTVisitor
+{
+    // Called when a node is reached, before any of its children. Returning
+    // false skips the node entirely: neither its children nor the visit
+    // method for the node itself are called.
+    protected boolean enter(ASTNode node)
+    {
+        return true;
+    }
+
+    // Called before descending into a child. Returning false skips it.
+    protected boolean enterChild(ASTNode parent, int index)
+    {
+        return true;
+    }
+
+    public void walk(ASTNode root)
+    {
+        if (!enter(root)) {
+            return;
+        }
+
+        // The nodes on the path from the root, and for each of them, the
+        // index of the next child to visit
+        List<ASTNode> nodes = new ArrayList<>();
+        int[] childIndices = new int[16];
+
+        nodes.add(root);
+        childIndices[0] = 0;
+
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            ASTNode node = nodes.get(top);
+            int index = childIndices[top];
+
+            if (index < node.getChildCount()) {
+                childIndices[top]++;
+
+                if (!enterChild(node, index)) {
+                    continue;
+                }
+
+                ASTNode child = node.getChild(index);
+                if (enter(child)) {
+                    if (nodes.size() == childIndices.length) {
+                        childIndices = Arrays.copyOf(childIndices, 2 * childIndices.length);
+                    }
+                    childIndices[nodes.size()] = 0;
+                    nodes.add(child);
+                }
+            } else {
+                nodes.remove(top);
+                node.visit(this);
+            }
+        }
+    }
+
+    @Override
+    public void visit(NumberNode node)
+    {
+    }
+
+    @Override
+    public void visit(VariableNode node)
+    {
+    }
+
+    @Override
+    public void visit(FunctionNode node)
+    {
+    }
+
+    @Override
+    public void visit(AddNode node)
+    {
+    }
+
+    @Override
+    public void visit(SubNode node)
+    {
+    }
+
+    @Override
+    public void visit(MulNode node)
+    {
+    }
+
+    @Override
+    public void visit(DivNode node)
+    {
+    }
+
+    @Override
+    public void visit(ExpNode node)
+    {
+    }
+
+    @Override
+    public void visit(ComparisonNode node)
+    {
+    }
+
+    @Override
+    public void visit(AndNode node)
+    {
+    }
+
+    @Override
+    public void visit(OrNode node)
+    {
+    }
+
+    @Override
+    public void visit(ConditionalNode node)
+    {
+    }
+
+    @Override
+    public void visit(LetNode node)
+    {
+    }
+}
@@ -0,0 +1,208 @@
+package com.znaptag.expiler.ast;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Base class for visitors which transform a tree into a new tree. The tree is
+// rewritten bottom up: by the time a node is visited, the rewritten versions
+// of its children are on the result stack, with the last child on top. The
+// visit method pops them and pushes the replacement for the node. By default
+// every node is rewritten into itself, and a node is only copied if one of
+// its children was replaced.
+public abstract class RewritingVisitor extends PostOrderVisitor
+{
+    private Deque<ASTNode> results = new ArrayDeque<>();
+
+    // Rewrite a tree and return the result
+    public ASTNode rewrite(ASTNode node)
+    {
+        walk(node);
+        return results.pop();
+    }
+
+    protected void pushResult(ASTNode node)
+    {
+        results.push(node);
+    }
+
+    protected ASTNode popResult()
+    {
+        return results.pop();
+    }
+
+    // Pop the rewritten arguments of a function call, in order
+    protected ASTNode[] popArguments(FunctionNode node)
+    {
+        ASTNode[] args = new ASTNode[node.getArgumentCount()];
+        for (int i = args.length - 1; i >= 0; i--) {
+            args[i] = popResult();
+        }
+
+        return args;
+    }
+
+    protected static boolean sameArguments(FunctionNode node, ASTNode[] args)
+    {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] != node.getArgument(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void visit(NumberNode node)
+    {
+        pushResult(node);
+    }
+
+    @Override
+    public void visit(VariableNode node)
+    {
+        pushResult(node);
+    }
+
+    @Override
+    public void visit(FunctionNode node)
+    {
+        ASTNode[] args = popArguments(node);
+        if (sameArguments(node, args)) {
+            pushResult(node);
+        } else {
+            pushResult(new FunctionNode(node.getName(), args));
+        }
+    }
+
+    @Override
+    public void visit(AddNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+        if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        } else {
+            pushResult(new AddNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(SubNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+        if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        } else {
+            pushResult(new SubNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(MulNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+        if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        } else {
+            pushResult(new MulNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(DivNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+        if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        } else {
+            pushResult(new DivNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(ExpNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+        if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        } else {
+            pushResult(new ExpNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(ComparisonNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+        if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        } else {
+            pushResult(new ComparisonNode(node.getOperator(), left, right));
+        }
+    }
+
+    @Override
+    public void visit(AndNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+        if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        } else {
+            pushResult(new AndNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(OrNode node)
+    {
+        ASTNode right = popResult();
+        ASTNode left = popResult();
+        if (left == node.getLeft() && right == node.getRight()) {
+            pushResult(node);
+        } else {
+            pushResult(new OrNode(left, right));
+        }
+    }
+
+    @Override
+    public void visit(ConditionalNode node)
+    {
+        ASTNode whenFalse = popResult();
+        ASTNode whenTrue = popResult();
+        ASTNode condition = popResult();
+        if (condition == node.getCondition() &&
+            whenTrue == node.getWhenTrue() &&
+            whenFalse == node.getWhenFalse()) {
+
+            pushResult(node);
+        } else {
+            pushResult(new ConditionalNode(condition, whenTrue, whenFalse));
+        }
+    }
+
+    @Override
+    public void visit(LetNode node)
+    {
+        ASTNode body = popResult();
+        boolean same = body == node.getBody();
+        ASTNode[] values = new ASTNode[node.getBindingCount()];
+        for (int i = values.length - 1; i >= 0; i--) {
+            values[i] = popResult();
+            same &= values[i] == node.getValue(i);
+        }
+
+        if (same) {
+            pushResult(node);
+        } else {
+            String[] names = node.getNames().toArray(new String[values.length]);
+            pushResult(new LetNode(names, values, body));
+        }
+    }
+}
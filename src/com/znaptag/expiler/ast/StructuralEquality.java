@@ -0,0 +1,64 @@
+package com.znaptag.expiler.ast;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Structural comparison of trees, using an explicit stack so that very deep
+// trees can be compared without running out of Java stack
+class StructuralEquality
+{
+    private StructuralEquality()
+    {
+    }
+
+    public static boolean equal(ASTNode a, ASTNode b)
+    {
+        Deque<ASTNode> pending = new ArrayDeque<>();
+        pending.push(a);
+        pending.push(b);
+
+        while (!pending.isEmpty()) {
+            ASTNode y = pending.pop();
+            ASTNode x = pending.pop();
+
+            if (x == y) {
+                continue;
+            }
+            if (x.getClass() != y.getClass() ||
+                x.hashCode() != y.hashCode() ||
+                x.getChildCount() != y.getChildCount()) {
+
+                return false;
+            }
+
+            // Compare whatever the nodes hold apart from their children
+            if (x instanceof NumberNode || x instanceof VariableNode) {
+                if (!x.equals(y)) {
+                    return false;
+                }
+            }
+            else if (x instanceof FunctionNode) {
+                if (!((FunctionNode)x).getName().equals(((FunctionNode)y).getName())) {
+                    return false;
+                }
+            }
+            else if (x instanceof ComparisonNode) {
+                if (((ComparisonNode)x).getOperator() != ((ComparisonNode)y).getOperator()) {
+                    return false;
+                }
+            }
+            else if (x instanceof LetNode) {
+                if (!((LetNode)x).getNames().equals(((LetNode)y).getNames())) {
+                    return false;
+                }
+            }
+
+            for (int i = 0; i < x.getChildCount(); i++) {
+                pending.push(x.getChild(i));
+                pending.push(y.getChild(i));
+            }
+        }
+
+        return true;
+    }
+}
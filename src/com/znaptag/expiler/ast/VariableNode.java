@@ -2,7 +2,7 @@ package com.znaptag.expiler.ast;
 
 public class VariableNode implements ASTNode
 {
-    private String name;
+    private final String name;
 
     public VariableNode(String name)
     {
@@ -14,12 +14,40 @@ public class VariableNode implements ASTNode
         return name;
     }
 
+    @Override
+    public int getChildCount()
+    {
+        return 0;
+    }
+
+    @Override
+    public ASTNode getChild(int index)
+    {
+        throw new IndexOutOfBoundsException("No child " + index);
+    }
+
     @Override
     public void visit(ASTVisitor visitor)
     {
         visitor.visit(this);
     }
 
+    @Override
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof VariableNode)) {
+            return false;
+        }
+
+        return name.equals(((VariableNode)other).name);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return name.hashCode();
+    }
+
     @Override
     public String toString()
     {
@@ -0,0 +1,13 @@
+package com.znaptag.expiler.function;
+
+import com.znaptag.expiler.Function;
+import com.znaptag.expiler.Intrinsic;
+
+@Intrinsic(name = "abs")
+public class AbsFunction implements Function
+{
+    public static double call(double param)
+    {
+        return Math.abs(param);
+    }
+}
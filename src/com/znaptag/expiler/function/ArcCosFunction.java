@@ -1,11 +1,18 @@
 package com.znaptag.expiler.function;
 
 import com.znaptag.expiler.Function;
+import com.znaptag.expiler.Intrinsic;
 
+@Intrinsic(name = "acos")
 public class ArcCosFunction implements Function
 {
     public static double call(double param)
     {
         return Math.acos(param);
     }
+
+    public static float call(float param)
+    {
+        return (float)Math.acos(param);
+    }
 }
@@ -1,11 +1,18 @@
 package com.znaptag.expiler.function;
 
 import com.znaptag.expiler.Function;
+import com.znaptag.expiler.Intrinsic;
 
+@Intrinsic(name = "asin")
 public class ArcSinFunction implements Function
 {
     public static double call(double param)
     {
         return Math.asin(param);
     }
+
+    public static float call(float param)
+    {
+        return (float)Math.asin(param);
+    }
 }
@@ -0,0 +1,18 @@
+package com.znaptag.expiler.function;
+
+import com.znaptag.expiler.Function;
+import com.znaptag.expiler.Intrinsic;
+
+@Intrinsic(name = "atan2")
+public class Atan2Function implements Function
+{
+    public static double call(double y, double x)
+    {
+        return Math.atan2(y, x);
+    }
+
+    public static float call(float y, float x)
+    {
+        return (float)Math.atan2(y, x);
+    }
+}
@@ -1,11 +1,18 @@
 package com.znaptag.expiler.function;
 
 import com.znaptag.expiler.Function;
+import com.znaptag.expiler.Intrinsic;
 
+@Intrinsic(name = "cos")
 public class CosFunction implements Function
 {
     public static double call(double param)
     {
         return Math.cos(param);
     }
+
+    public static float call(float param)
+    {
+        return (float)Math.cos(param);
+    }
 }
@@ -1,11 +1,18 @@
 package com.znaptag.expiler.function;
 
 import com.znaptag.expiler.Function;
+import com.znaptag.expiler.Intrinsic;
 
+@Intrinsic(name = "exp")
 public class ExpFunction implements Function
 {
     public static double call(double param)
     {
         return Math.exp(param);
     }
+
+    public static float call(float param)
+    {
+        return (float)Math.exp(param);
+    }
 }
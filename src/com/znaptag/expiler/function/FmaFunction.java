@@ -0,0 +1,13 @@
+package com.znaptag.expiler.function;
+
+import com.znaptag.expiler.Function;
+import com.znaptag.expiler.Intrinsic;
+
+@Intrinsic(name = "fma")
+public class FmaFunction implements Function
+{
+    public static double call(double a, double b, double c)
+    {
+        return Math.fma(a, b, c);
+    }
+}
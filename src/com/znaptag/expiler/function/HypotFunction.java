@@ -0,0 +1,18 @@
+package com.znaptag.expiler.function;
+
+import com.znaptag.expiler.Function;
+import com.znaptag.expiler.Intrinsic;
+
+@Intrinsic(name = "hypot")
+public class HypotFunction implements Function
+{
+    public static double call(double x, double y)
+    {
+        return Math.hypot(x, y);
+    }
+
+    public static float call(float x, float y)
+    {
+        return (float)Math.hypot(x, y);
+    }
+}
@@ -0,0 +1,13 @@
+package com.znaptag.expiler.function;
+
+import com.znaptag.expiler.Function;
+import com.znaptag.expiler.Intrinsic;
+
+@Intrinsic(name = "max")
+public class MaxFunction implements Function
+{
+    public static double call(double a, double b)
+    {
+        return Math.max(a, b);
+    }
+}
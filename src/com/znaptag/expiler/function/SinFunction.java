@@ -1,11 +1,18 @@
 package com.znaptag.expiler.function;
 
 import com.znaptag.expiler.Function;
+import com.znaptag.expiler.Intrinsic;
 
+@Intrinsic(name = "sin")
 public class SinFunction implements Function
 {
     public static double call(double param)
     {
         return Math.sin(param);
     }
+
+    public static float call(float param)
+    {
+        return (float)Math.sin(param);
+    }
 }